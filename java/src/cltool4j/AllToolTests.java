@@ -6,6 +6,12 @@ import org.junit.runners.Suite;
 import cltool4j.args4j.TestArgs4J;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses( {TestArgs4J.class, TestBaseCommandlineTool.class, TestLinewiseCommandlineTool.class})
+@Suite.SuiteClasses( {TestArgs4J.class, TestBaseCommandlineTool.class, TestLinewiseCommandlineTool.class,
+        TestByteScanner.class, TestCsvCommandlineTool.class,
+        TestFieldCursor.class, TestHashAggregator.class,
+        TestDistinctFilter.class, TestMappedModel.class,
+        TestResourcePool.class, TestMemoryBudget.class,
+        TestSymbolTable.class, TestCounters.class,
+        TestSketches.class, TestSideInput.class})
 public class AllToolTests
 {}
@@ -8,20 +8,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.SequenceInputStream;
 import java.net.URL;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.Manifest;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
 
 import cltool4j.args4j.Argument;
 import cltool4j.args4j.ArgumentParser;
@@ -79,8 +80,39 @@ public abstract class BaseCommandlineTool {
             .getAnnotation(Threadable.class).defaultThreads() != 0 ? getClass().getAnnotation(
             Threadable.class).defaultThreads() : Runtime.getRuntime().availableProcessors()) : 1;
 
+    @Option(name = "-files-from", metaVar = "file", usage = "Read input paths or patterns from file, one per line ('-' for STDIN)")
+    protected String filesFrom;
+
+    @Option(name = "-largest-first", usage = "Process input files in descending order of size")
+    protected boolean largestFirst = false;
+
+    @Option(name = "-output", metaVar = "file", usage = "Write output to file (using parallel writes)")
+    protected File outputFile;
+
+    @Option(name = "-shard-lines", metaVar = "count", usage = "Split -output into shards of at most count lines")
+    protected long shardLines = 0;
+
+    @Option(name = "-shard-bytes", metaVar = "bytes", usage = "Split -output into shards of at most the specified size")
+    protected long shardBytes = 0;
+
+    @Option(name = "-gzip-shards", usage = "Compress output shards")
+    protected boolean gzipShards = false;
+
+    @Option(name = "-memory", metaVar = "bytes", usage = "Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)")
+    protected long memory = 0;
+
     protected final static Logger globalLogger = GlobalLogger.singleton();
 
+    /**
+     * Maximum concurrent writers for -output. A few concurrent positional writes keep a disk's queue full;
+     * beyond that, additional writers only add seeks and hold more unwritten batches in memory.
+     */
+    private final static int MAX_OUTPUT_WRITERS = 8;
+
+    /**
+     * Input files, directories, and glob patterns. Directories and patterns are expanded by an
+     * {@link InputFileWalker}.
+     */
     @Argument(multiValued = true, metaVar = "files")
     protected String[] inputFiles = new String[0];
 
@@ -88,12 +120,37 @@ public abstract class BaseCommandlineTool {
 
     protected String currentInputFile;
 
+    /** Destination for output records (see {@link #output()}) */
+    private RecordOutput output;
+
+    private MemoryBudget memoryBudget;
+
     /**
      * Default constructor
      */
     protected BaseCommandlineTool() {
     }
 
+    /**
+     * Validates combinations of options (called before {@link #setup(CmdLineParser)}). Framework subclasses
+     * override this method to check their own options.
+     * 
+     * @param parser The command-line parser which parsed the options
+     * @throws CmdLineException if the options are invalid
+     */
+    void validateOptions(final CmdLineParser parser) throws CmdLineException {
+    }
+
+    /**
+     * Registers the framework subsystems which require a share of the memory budget (called before
+     * {@link #setup(CmdLineParser)}). Framework subclasses override this method to register their own
+     * subsystems; tools register theirs in {@link #setup(CmdLineParser)} (see {@link MemoryBudget}).
+     * 
+     * @param budget The memory budget
+     */
+    void planMemory(final MemoryBudget budget) {
+    }
+
     /**
      * Perform any tool-specific setup. This method will only be called once, even if the tool is threadable
      * and {@link #run()} is called by multiple threads.
@@ -105,10 +162,11 @@ public abstract class BaseCommandlineTool {
     }
 
     /**
-     * Perform any tool-specific setup. This method will only be called once, even if the tool is threadable
-     * and {@link #run()} is called by multiple threads.
+     * Perform any tool-specific cleanup (e.g., writing aggregated output; see {@link HashAggregator}). This
+     * method will only be called once, even if the tool is threadable and {@link #run()} is called by
+     * multiple threads.
      */
-    protected void cleanup() {
+    protected void cleanup() throws Exception {
     }
 
     /**
@@ -119,6 +177,44 @@ public abstract class BaseCommandlineTool {
      */
     protected abstract void run() throws Exception;
 
+    /**
+     * Returns the memory budget (see <code>-memory</code>), from which subsystems which buffer data in memory
+     * should take their shares, and to which they should report their usage.
+     *
+     * @return The memory budget
+     */
+    protected final MemoryBudget memoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Returns the destination for output records. Output is written to STDOUT, unless redirected to a file
+     * with <code>-output</code>, in which case it is written with concurrent positional writes (see
+     * {@link PositionalFileOutput}), or split into shards (see {@link ShardedOutput}). In any case, output
+     * written directly to {@link System#out} goes to the same destination.
+     *
+     * @return The destination for output records
+     */
+    protected RecordOutput output() {
+        return output != null ? output : RecordOutput.forStream(System.out);
+    }
+
+    /**
+     * Creates the {@link RecordOutput} for output redirected to a file with <code>-output</code>. Subclasses
+     * may override to support other output layouts.
+     *
+     * @param f Output file (or base name for sharded output)
+     * @param writerThreads Number of concurrent writers
+     * @return The destination for output records
+     * @throws IOException if the output cannot be created
+     */
+    protected RecordOutput createOutput(final File f, final int writerThreads) throws IOException {
+        if (shardLines > 0 || shardBytes > 0 || gzipShards) {
+            return new ShardedOutput(f, shardLines, shardBytes, gzipShards, writerThreads);
+        }
+        return new PositionalFileOutput(f, writerThreads);
+    }
+
     /**
      * Callback executed when starting to process a new input file
      * 
@@ -235,11 +331,24 @@ public abstract class BaseCommandlineTool {
             // If input files were specified on the command-line, check for the first one before running
             // setup()
             // If it cannot be found, we'd prefer to fail here than after a potentially expensive setup() call
-            if (inputFiles.length > 0 && inputFiles[0].length() > 0) {
+            if (inputFiles.length > 0 && inputFiles[0].length() > 0 && !InputFileWalker.isGlob(inputFiles[0])) {
                 if (!new File(inputFiles[0]).exists()) {
                     throw new CmdLineException(parser, "Unable to find file: " + inputFiles[0]);
                 }
             }
+            if (filesFrom != null && !filesFrom.equals("-") && !new File(filesFrom).exists()) {
+                throw new CmdLineException(parser, "Unable to find file: " + filesFrom);
+            }
+            if ((shardLines > 0 || shardBytes > 0 || gzipShards) && outputFile == null) {
+                throw new CmdLineException(parser, "Output sharding requires -output");
+            }
+            if (memory < 0) {
+                throw new CmdLineException(parser, "Invalid memory budget: " + memory);
+            }
+            validateOptions(parser);
+
+            memoryBudget = new MemoryBudget(memory > 0 ? memory : Runtime.getRuntime().maxMemory() / 2);
+            planMemory(memoryBudget);
 
             setup(null);
         } catch (final CmdLineException e) {
@@ -248,18 +357,29 @@ public abstract class BaseCommandlineTool {
             return;
         }
 
+        if (outputFile != null) {
+            // Redirect STDOUT to the output file(s), so any output not written via output() still reaches it
+            output = createOutput(outputFile, Math.min(maxThreads, MAX_OUTPUT_WRITERS));
+            System.setOut(new PrintStream(output));
+        }
+
         // Handle arguments
-        if (inputFiles.length > 0 && inputFiles[0].length() > 0) {
-            // Handle one or more input files from the command-line, translating gzipped
-            // files as appropriate. Re-route multiple files into a single InputStream so we can execute the
-            // tool a single time.
-            // Open all files prior to processing, so we can fail early if one or more files cannot be opened
-            final LinkedList<InputStream> inputList = new LinkedList<InputStream>();
-            for (final String filename : inputFiles) {
-                inputList.add(fileAsInputStream(filename));
+        if ((inputFiles.length > 0 && inputFiles[0].length() > 0) || filesFrom != null) {
+            // Handle one or more input files from the command-line (or from a file list), expanding
+            // directories and glob patterns and translating gzipped files as appropriate. Re-route multiple
+            // files into a single InputStream so we can execute the tool a single time. Files are opened as
+            // they are reached, so processing can begin while the walker is still expanding the input list.
+            BufferedReader fileList = null;
+            if (filesFrom != null) {
+                fileList = new BufferedReader(new InputStreamReader(filesFrom.equals("-") ? System.in
+                        : new FileInputStream(filesFrom)));
             }
+            final InputFileWalker walker = new InputFileWalker(inputFiles, fileList, maxThreads, largestFirst);
+            walker.start();
 
-            final InputStream is = new MultiInputStream(inputList);
+            final InputDecoder decoder = new InputDecoder(this, walker, maxThreads);
+
+            final InputStream is = new MultiInputStream(decoder);
             System.setIn(is);
             run();
             is.close();
@@ -274,6 +394,9 @@ public abstract class BaseCommandlineTool {
         }
 
         cleanup();
+        if (!memoryBudget.isEmpty()) {
+            globalLogger.fine(memoryBudget.toString());
+        }
         System.out.flush();
         System.out.close();
     }
@@ -290,25 +413,25 @@ public abstract class BaseCommandlineTool {
     }
 
     /**
-     * Open the specified file, uncompressing GZIP'd files as appropriate
+     * Open the specified file, uncompressing GZIP'd files as appropriate. Compression is detected from the
+     * file contents rather than the filename. A zip or jar archive is read as the concatenation of all its
+     * entries, and a single archive entry may be opened as <code>archive!entry</code>.
      * 
      * @param filename
      * @return InputStream
      * @throws IOException
      */
     protected InputStream fileAsInputStream(final String filename) throws IOException {
-        final File f = new File(filename);
+        final int separator = filename.indexOf(InputDecoder.ENTRY_SEPARATOR);
+        final File f = new File(separator > 0 && !new File(filename).exists() ? filename.substring(0,
+                separator) : filename);
         if (!f.exists()) {
             System.err.println("Unable to find file: " + filename);
             System.err.flush();
             System.exit(-1);
         }
 
-        InputStream is = new FileInputStream(filename);
-        if (filename.endsWith(".gz")) {
-            is = new GZIPInputStream(is);
-        }
-        return is;
+        return InputDecoder.open(filename);
     }
 
     /**
@@ -319,21 +442,12 @@ public abstract class BaseCommandlineTool {
      * @throws IOException
      */
     protected String fileAsString(final String filename) throws IOException {
-        final File f = new File(filename);
-        if (!f.exists()) {
-            System.err.println("Unable to find file: " + filename);
-            System.exit(-1);
-        }
-
         final StringBuilder sb = new StringBuilder(10240);
-        InputStream is = new FileInputStream(filename);
-        if (filename.endsWith(".gz")) {
-            is = new GZIPInputStream(is);
-        }
-        final BufferedReader r = new BufferedReader(new InputStreamReader(is));
-        for (int c = r.read(); c != 0; c = r.read()) {
+        final BufferedReader r = new BufferedReader(new InputStreamReader(fileAsInputStream(filename)));
+        for (int c = r.read(); c >= 0; c = r.read()) {
             sb.append((char) c);
         }
+        r.close();
         return sb.toString();
     }
 
@@ -379,6 +493,24 @@ public abstract class BaseCommandlineTool {
         return cal.getTime();
     }
 
+    /**
+     * Creates a fixed-size pool of daemon threads (so an unfinished pool does not prevent the JVM from exiting)
+     *
+     * @param threads
+     * @param name Thread name
+     * @return The pool
+     */
+    static ExecutorService newDaemonPool(final int threads, final String name) {
+        return Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
     /**
      * Parses a date into a long (seconds since the epoch)
      */
@@ -453,37 +585,33 @@ public abstract class BaseCommandlineTool {
 
     /**
      * Combines multiple {@link InputStream}s into a single stream. Adapted from {@link SequenceInputStream}
-     * to alert {@link BaseCommandlineTool} when beginning a new file.
+     * to alert {@link BaseCommandlineTool} when beginning a new file. Each file is opened when the previous
+     * one is exhausted.
      * 
      * @author aarond
      * 
      */
     private class MultiInputStream extends InputStream {
-        Iterator<? extends InputStream> streamIterator;
+        Iterator<InputDecoder.Input> inputIterator;
         InputStream currentStream;
-        int currentFileIndex = -1;
-        
-        public MultiInputStream(List<? extends InputStream> inputStreams) {
-            this.streamIterator = inputStreams.iterator();
-            try {
-                next();
-            } catch (IOException ex) {
-                // This should never happen
-                throw new Error("panic");
-            }
+
+        public MultiInputStream(final Iterator<InputDecoder.Input> inputs) throws IOException {
+            this.inputIterator = inputs;
+            next();
         }
 
         /**
-         * Proceed on to the next input file
+         * Proceed on to the next input file (or archive entry)
          */
         final void next() throws IOException {
             if (currentStream != null) {
                 currentStream.close();
             }
 
-            if (streamIterator.hasNext()) {
-                currentStream = streamIterator.next();
-                currentInputFile = inputFiles[++currentFileIndex];
+            if (inputIterator.hasNext()) {
+                final InputDecoder.Input input = inputIterator.next();
+                currentStream = input.stream;
+                currentInputFile = input.name;
                 beginFile(currentInputFile);
                 if (currentStream == null) {
                     throw new NullPointerException();
@@ -511,15 +639,14 @@ public abstract class BaseCommandlineTool {
          * @exception IOException if an I/O error occurs.
          */
         public int read() throws IOException {
-            if (currentStream == null) {
-                return -1;
-            }
-            int c = currentStream.read();
-            if (c == -1) {
+            while (currentStream != null) {
+                final int c = currentStream.read();
+                if (c != -1) {
+                    return c;
+                }
                 next();
-                return read();
             }
-            return c;
+            return -1;
         }
 
         /**
@@ -552,13 +679,16 @@ public abstract class BaseCommandlineTool {
                 return 0;
             }
 
-            int n = currentStream.read(b, off, len);
-            if (n <= 0) {
+            // Skip over empty files iteratively (a directory walk may produce a great many of them)
+            while (currentStream != null) {
+                final int n = currentStream.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
                 // TODO Insert a line-feed at the end of a file?
                 next();
-                return read(b, off, len);
             }
-            return n;
+            return -1;
         }
 
         /**
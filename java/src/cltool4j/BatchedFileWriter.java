@@ -0,0 +1,156 @@
+package cltool4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes (and optionally compresses) a file asynchronously. Output is accumulated into batches, which are
+ * written in order by a {@link SerialExecutor} drawn from a shared thread pool, so many files (shards,
+ * partitions) can be written concurrently by a few threads. Batches in flight are bounded by a semaphore,
+ * generally shared by all writers.
+ *
+ * Not thread-safe; callers must serialize calls to {@link #write(byte[], int, int)} and {@link #close()}.
+ *
+ * @author Aaron Dunlop
+ */
+class BatchedFileWriter {
+
+    private final SerialExecutor writer;
+    private final Semaphore batchesInFlight;
+    private final int batchSize;
+
+    private OutputStream os;
+    private byte[] batch;
+    private int batchLength;
+
+    /** Total (uncompressed) bytes written */
+    private long bytes;
+
+    private volatile IOException exception;
+
+    /**
+     * @param f Output file
+     * @param gzip Compress output
+     * @param executor Thread pool which will write the file
+     * @param batchesInFlight Bounds the number of batches submitted but not yet written
+     * @param batchSize
+     */
+    public BatchedFileWriter(final File f, final boolean gzip, final Executor executor,
+            final Semaphore batchesInFlight, final int batchSize) {
+        this.writer = new SerialExecutor(executor);
+        this.batchesInFlight = batchesInFlight;
+        this.batchSize = batchSize;
+        this.batch = new byte[batchSize];
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final OutputStream fos = new FileOutputStream(f);
+                    os = gzip ? new GZIPOutputStream(fos, 64 * 1024) : fos;
+                } catch (final IOException e) {
+                    exception = e;
+                }
+            }
+        });
+    }
+
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        int written = 0;
+        while (written < len) {
+            final int n = Math.min(len - written, batch.length - batchLength);
+            System.arraycopy(b, off + written, batch, batchLength, n);
+            batchLength += n;
+            written += n;
+            if (batchLength == batch.length) {
+                submitBatch();
+            }
+        }
+        bytes += len;
+    }
+
+    private void submitBatch() throws IOException {
+        if (exception != null) {
+            throw exception;
+        }
+        if (batchLength == 0) {
+            return;
+        }
+        try {
+            batchesInFlight.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        final byte[] b = batch;
+        final int length = batchLength;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (exception == null) {
+                        os.write(b, 0, length);
+                    }
+                } catch (final IOException e) {
+                    exception = e;
+                } finally {
+                    batchesInFlight.release();
+                }
+            }
+        });
+        batch = new byte[batchSize];
+        batchLength = 0;
+    }
+
+    /**
+     * Writes any remaining output and closes the file asynchronously (see {@link #awaitCompletion()})
+     *
+     * @throws IOException if an earlier write failed
+     */
+    public void close() throws IOException {
+        submitBatch();
+        batch = null;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (os != null) {
+                        os.close();
+                    }
+                } catch (final IOException e) {
+                    exception = e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for all pending writes to complete
+     *
+     * @throws IOException if a write failed
+     */
+    public void awaitCompletion() throws IOException {
+        try {
+            writer.awaitCompletion();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * @return Total (uncompressed) bytes written
+     */
+    public long bytes() {
+        return bytes;
+    }
+}
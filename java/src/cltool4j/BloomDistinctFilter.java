@@ -0,0 +1,140 @@
+package cltool4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An approximate {@link DistinctFilter}: a 'register-blocked' Bloom filter, in which all of a record's bits
+ * fall within a single 64-bit word. Setting a record's bits is thus a single compare-and-set, so the filter is
+ * lock-free, and concurrent additions of the same record are reported as distinct exactly once (which a
+ * conventional Bloom filter cannot guarantee without locking). Blocking also confines each lookup to a single
+ * cache line.
+ *
+ * Blocking increases the false-positive rate at a given size (the records in each block vary in number), so
+ * the filter is sized using the false-positive rate of the blocked structure, rather than the conventional
+ * formula.
+ *
+ * @author Aaron Dunlop
+ */
+final class BloomDistinctFilter extends DistinctFilter {
+
+    private final static int MAX_HASHES = 16;
+
+    private final OffHeapLongArray words;
+    private final int hashes;
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * @param expectedRecords The expected number of distinct records
+     * @param falsePositiveRate Target false-positive rate
+     */
+    public BloomDistinctFilter(final long expectedRecords, final double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid false-positive rate: " + falsePositiveRate);
+        }
+
+        final double bitsPerRecord = bitsPerRecord(falsePositiveRate);
+        this.hashes = hashes(bitsPerRecord, falsePositiveRate);
+        this.words = new OffHeapLongArray(Math.max((long) Math.ceil(expectedRecords * bitsPerRecord / 64), 1));
+    }
+
+    /**
+     * @param falsePositiveRate Target false-positive rate
+     * @return The smallest size (in bits per record) of a blocked filter which meets the target rate
+     */
+    static double bitsPerRecord(final double falsePositiveRate) {
+        for (double bitsPerRecord = 1; bitsPerRecord < 1024; bitsPerRecord *= 1.02) {
+            if (hashes(bitsPerRecord, falsePositiveRate) > 0) {
+                return bitsPerRecord;
+            }
+        }
+        throw new IllegalArgumentException("False-positive rate too low for an approximate filter: "
+                + falsePositiveRate);
+    }
+
+    /**
+     * @param bitsPerRecord
+     * @param falsePositiveRate Target false-positive rate
+     * @return The smallest number of hashes which meets the target rate at the specified size (0 if none does)
+     */
+    static int hashes(final double bitsPerRecord, final double falsePositiveRate) {
+        for (int k = 1; k <= MAX_HASHES; k++) {
+            if (falsePositiveRate(bitsPerRecord, k) <= falsePositiveRate) {
+                return k;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param h Hash bits
+     * @param hashes Number of bits to set
+     * @return The bits of a record within its block
+     */
+    static long mask(long h, final int hashes) {
+        long mask = 0;
+        for (int i = 0, bits = 64; i < hashes; i++, bits -= 6) {
+            if (bits < 6) {
+                h = mix(h);
+                bits = 64;
+            }
+            mask |= 1L << (h & 63);
+            h >>>= 6;
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the false-positive rate of a blocked filter. The number of records in a block is Poisson
+     * distributed, with mean 64 / <code>bitsPerRecord</code>; for each possible load, we compute the rate of a
+     * 64-bit Bloom filter with that many records.
+     *
+     * @param bitsPerRecord
+     * @param k Bits set per record
+     * @return The expected false-positive rate
+     */
+    static double falsePositiveRate(final double bitsPerRecord, final int k) {
+        final double lambda = 64 / bitsPerRecord;
+        double p = Math.exp(-lambda);
+        double rate = 0;
+        for (int i = 0; i < lambda + 20 * Math.sqrt(lambda) + 20; i++) {
+            if (i > 0) {
+                p *= lambda / i;
+            }
+            rate += p * Math.pow(1 - Math.pow(63.0 / 64, (double) i * k), k);
+        }
+        return rate;
+    }
+
+    @Override
+    boolean addFingerprint(final long h1, final long h2) {
+        final long word = (h1 >>> 1) % words.length();
+
+        final long mask = mask(h2, hashes);
+
+        while (true) {
+            final long w = words.getVolatile(word);
+            if ((w & mask) == mask) {
+                return false;
+            }
+            if (words.compareAndSet(word, w, w | mask)) {
+                count.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long count() {
+        return count.get();
+    }
+
+    @Override
+    public long bytes() {
+        return words.length() * 8;
+    }
+
+    @Override
+    public void close() {
+        words.free();
+    }
+}
@@ -0,0 +1,37 @@
+package cltool4j;
+
+import java.io.File;
+
+import cltool4j.args4j.Option;
+
+/**
+ * Builds a {@link SideInput} from TSV input (key, tab, value), for use by other tools (see
+ * <code>-side-input</code> in {@link LinewiseCommandlineTool}). A one-time step, run when the dictionary
+ * changes, rather than in every job which uses it:
+ *
+ * <pre>
+ * java cltool4j.BuildSideInput -f users.side users.tsv.gz
+ * </pre>
+ *
+ * @author Aaron Dunlop
+ */
+public class BuildSideInput extends BaseCommandlineTool {
+
+    @Option(name = "-f", metaVar = "file", required = true, usage = "Side input file to build")
+    protected File sideInputFile;
+
+    @Option(name = "-bloom-fpr", metaVar = "rate", usage = "False-positive rate of a Bloom filter for absent keys (0 = none)")
+    protected double bloomFalsePositiveRate = 0;
+
+    public static void main(final String[] args) {
+        run(args);
+    }
+
+    @Override
+    protected void run() throws Exception {
+        final SideInput.Builder builder = new SideInput.Builder(sideInputFile, bloomFalsePositiveRate);
+        builder.addAll(System.in);
+        builder.close();
+        globalLogger.fine("Wrote " + sideInputFile + " (" + sideInputFile.length() + " bytes)");
+    }
+}
@@ -0,0 +1,80 @@
+package cltool4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches byte buffers for delimiters (generally newlines). Scans 8 bytes at a time using 'SIMD within a
+ * register' (SWAR) bit manipulation over 64-bit words, which the JIT compiles into a handful of ALU
+ * operations per word, compared with a compare-and-branch per byte in a scalar loop.
+ *
+ * Words are read with {@link ByteBuffer#getLong(int)}, which Java 9 and later JVMs compile into a single
+ * (unaligned) load. Earlier JVMs assemble each word a byte at a time, which is slower than a scalar loop, so
+ * there we fall back to the scalar loop.
+ *
+ * @author Aaron Dunlop
+ */
+public final class ByteScanner {
+
+    private final static long ONES = 0x0101010101010101L;
+    private final static long LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+    /** True if we can scan a word at a time (efficiently) */
+    public final static boolean SWAR_SUPPORTED = !System.getProperty("java.specification.version").startsWith("1.");
+
+    private ByteScanner() {
+    }
+
+    /**
+     * Returns the index of the first occurrence of the specified byte in a buffer range.
+     *
+     * @param b Byte to search for
+     * @param buffer
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @return Index of the first occurrence of <code>b</code>, or -1 if not found.
+     */
+    public static int indexOf(final byte b, final byte[] buffer, final int from, final int to) {
+        if (SWAR_SUPPORTED) {
+            return swarIndexOf(b, buffer, from, to);
+        }
+        return scalarIndexOf(b, buffer, from, to);
+    }
+
+    /**
+     * Scalar (byte-at-a-time) implementation of {@link #indexOf(byte, byte[], int, int)}
+     */
+    static int scalarIndexOf(final byte b, final byte[] buffer, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Word-at-a-time implementation of {@link #indexOf(byte, byte[], int, int)}
+     */
+    static int swarIndexOf(final byte b, final byte[] buffer, final int from, final int to) {
+        final ByteBuffer words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        final long pattern = ONES * (b & 0xff);
+        int i = from;
+        for (; i <= to - 8; i += 8) {
+            // XOR zeroes the matching bytes; then set the high bit of each zero byte (and only the zero bytes)
+            final long x = words.getLong(i) ^ pattern;
+            final long matches = ~(((x & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | x | LOW_SEVEN_BITS);
+            if (matches != 0) {
+                return i + Long.numberOfTrailingZeros(matches) / 8;
+            }
+        }
+
+        // Scan any remaining bytes individually
+        for (; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,311 @@
+package cltool4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the frequencies of items (queries, URLs, etc.) in a fixed amount of memory, and tracks the most
+ * frequent ('heavy hitters') - a count-min sketch (Cormode and Muthukrishnan, 2005), with a bounded set of
+ * top-K candidates.
+ *
+ * A frequency estimate is never less than the true frequency, and exceeds it by more than
+ * <code>epsilon * total</code> with probability at most <code>delta</code>. An item enters the top-K candidates
+ * when its estimate exceeds that of the least frequent candidate, so any item whose frequency exceeds that of
+ * the k-th most frequent item (plus the estimation error) is reported.
+ *
+ * Sketches are not thread-safe. Each thread should update its own (see {@link ThreadLocalLinewiseClTool});
+ * since sketches are {@link Mergeable}, the thread-local sketches are combined at the end of input. Sketches
+ * may also be serialized (see {@link #write(DataOutput)}), to combine the results of sharded runs.
+ *
+ * @author Aaron Dunlop
+ */
+public class CountMinSketch implements Mergeable<CountMinSketch> {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int width, depth, k;
+    private final long[] table;
+    private long total;
+
+    /** Top-K candidates and their estimated counts */
+    private final HashMap<String, Long> candidates = new HashMap<String, Long>();
+
+    /** The smallest estimate among the candidates (valid when the candidate set is full) */
+    private long minCandidate;
+
+    /**
+     * @param epsilon Estimation error, as a fraction of the total count
+     * @param delta Probability of exceeding the estimation error
+     * @param k Number of heavy hitters to track (0 for none)
+     */
+    public CountMinSketch(final double epsilon, final double delta, final int k) {
+        this((int) Math.ceil(Math.E / epsilon), (int) Math.ceil(Math.log(1 / delta)), k);
+    }
+
+    /**
+     * @param width Counters per row
+     * @param depth Rows (independent hash functions)
+     * @param k Number of heavy hitters to track (0 for none)
+     */
+    public CountMinSketch(final int width, final int depth, final int k) {
+        if (width < 1 || depth < 1 || k < 0 || (long) width * depth > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid sketch dimensions: " + width + " x " + depth);
+        }
+        this.width = width;
+        this.depth = depth;
+        this.k = k;
+        this.table = new long[width * depth];
+    }
+
+    /**
+     * Adds occurrences of an item. Allocates only if the item is (or becomes) a heavy-hitter candidate.
+     *
+     * @param buf Item bytes (UTF-8)
+     * @param off
+     * @param len
+     * @param count Number of occurrences
+     */
+    public void add(final byte[] buf, final int off, final int len, final long count) {
+        final long estimate = increment(SymbolTable.hash(buf, off, len), count);
+        if (k > 0 && (candidates.size() < k || estimate > minCandidate)) {
+            updateCandidate(new String(buf, off, len, UTF8), estimate);
+        }
+    }
+
+    /**
+     * Adds occurrences of an item
+     *
+     * @param item
+     * @param count Number of occurrences
+     */
+    public void add(final CharSequence item, final long count) {
+        final String s = item.toString();
+        final byte[] bytes = s.getBytes(UTF8);
+        final long estimate = increment(SymbolTable.hash(bytes, 0, bytes.length), count);
+        if (k > 0 && (candidates.size() < k || estimate > minCandidate)) {
+            updateCandidate(s, estimate);
+        }
+    }
+
+    /**
+     * Adds a single occurrence of an item
+     *
+     * @param item
+     */
+    public void add(final CharSequence item) {
+        add(item, 1);
+    }
+
+    /**
+     * @param buf Item bytes (UTF-8)
+     * @param off
+     * @param len
+     * @return Estimated number of occurrences of the item
+     */
+    public long estimate(final byte[] buf, final int off, final int len) {
+        return estimate(SymbolTable.hash(buf, off, len));
+    }
+
+    /**
+     * @param item
+     * @return Estimated number of occurrences of the item
+     */
+    public long estimate(final CharSequence item) {
+        final byte[] bytes = item.toString().getBytes(UTF8);
+        return estimate(SymbolTable.hash(bytes, 0, bytes.length));
+    }
+
+    /**
+     * @return Total occurrences of all items
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Row i uses the hash function h1 + i * h2 (Kirsch and Mitzenmacher, 2006)
+     */
+    private int column(final long hash, final int row) {
+        final int h = (int) hash + row * (int) (hash >>> 32);
+        return (h & 0x7fffffff) % width;
+    }
+
+    private long increment(final long hash, final long count) {
+        total += count;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            final int i = row * width + column(hash, row);
+            table[i] += count;
+            estimate = Math.min(estimate, table[i]);
+        }
+        return estimate;
+    }
+
+    private long estimate(final long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, table[row * width + column(hash, row)]);
+        }
+        return estimate;
+    }
+
+    private void updateCandidate(final String item, final long estimate) {
+        final Long previous = candidates.put(item, estimate);
+        if (previous != null) {
+            if (candidates.size() == k && previous.longValue() == minCandidate) {
+                updateMinCandidate();
+            }
+            return;
+        }
+        if (candidates.size() > k) {
+            // Evict the least frequent candidate
+            String min = null;
+            long minEstimate = Long.MAX_VALUE;
+            for (final Map.Entry<String, Long> e : candidates.entrySet()) {
+                if (e.getValue() < minEstimate) {
+                    min = e.getKey();
+                    minEstimate = e.getValue();
+                }
+            }
+            candidates.remove(min);
+        }
+        if (candidates.size() == k) {
+            updateMinCandidate();
+        }
+    }
+
+    private void updateMinCandidate() {
+        minCandidate = Long.MAX_VALUE;
+        for (final Long c : candidates.values()) {
+            minCandidate = Math.min(minCandidate, c);
+        }
+    }
+
+    /**
+     * @return Up to k of the most frequent items and their estimated counts, most frequent first
+     */
+    public List<Item> topK() {
+        final ArrayList<Item> items = new ArrayList<Item>(candidates.size());
+        for (final Map.Entry<String, Long> e : candidates.entrySet()) {
+            // Candidates' estimates may have grown since they were last updated (through hash collisions)
+            items.add(new Item(e.getKey(), estimate(e.getKey())));
+        }
+        Collections.sort(items);
+        return items;
+    }
+
+    /**
+     * Combines another sketch into this one. The result is the sketch of all items added to either.
+     *
+     * @throws IllegalArgumentException if the sketches' dimensions differ
+     */
+    @Override
+    public void merge(final CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Cannot merge sketches of dimensions " + width + " x " + depth
+                    + " and " + other.width + " x " + other.depth);
+        }
+        for (int i = 0; i < table.length; i++) {
+            table[i] += other.table[i];
+        }
+        total += other.total;
+
+        // Re-rank the union of both candidate sets by their merged estimates
+        final ArrayList<String> union = new ArrayList<String>(candidates.keySet());
+        for (final String item : other.candidates.keySet()) {
+            if (!candidates.containsKey(item)) {
+                union.add(item);
+            }
+        }
+        candidates.clear();
+        for (final String item : union) {
+            final long estimate = estimate(item);
+            if (candidates.size() < k || estimate > minCandidate) {
+                updateCandidate(item, estimate);
+            }
+        }
+    }
+
+    /**
+     * Serializes the sketch
+     *
+     * @param out
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(depth);
+        out.writeInt(k);
+        out.writeLong(total);
+        for (final long c : table) {
+            out.writeLong(c);
+        }
+        out.writeInt(candidates.size());
+        for (final Map.Entry<String, Long> e : candidates.entrySet()) {
+            final byte[] bytes = e.getKey().getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeLong(e.getValue());
+        }
+    }
+
+    /**
+     * Reads a sketch written with {@link #write(DataOutput)}
+     *
+     * @param in
+     * @return The sketch
+     * @throws IOException if an I/O error occurs
+     */
+    public static CountMinSketch read(final DataInput in) throws IOException {
+        final CountMinSketch sketch = new CountMinSketch(in.readInt(), in.readInt(), in.readInt());
+        sketch.total = in.readLong();
+        for (int i = 0; i < sketch.table.length; i++) {
+            sketch.table[i] = in.readLong();
+        }
+        final int candidates = in.readInt();
+        for (int i = 0; i < candidates; i++) {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            sketch.updateCandidate(new String(bytes, UTF8), in.readLong());
+        }
+        return sketch;
+    }
+
+    /**
+     * A heavy hitter and its estimated count
+     */
+    public static class Item implements Comparable<Item> {
+        private final String item;
+        private final long count;
+
+        public Item(final String item, final long count) {
+            this.item = item;
+            this.count = count;
+        }
+
+        public String item() {
+            return item;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        @Override
+        public int compareTo(final Item o) {
+            return count != o.count ? (count > o.count ? -1 : 1) : item.compareTo(o.item);
+        }
+
+        @Override
+        public String toString() {
+            return item + '\t' + count;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package cltool4j;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.FutureTask;
+
+import cltool4j.args4j.Option;
+
+/**
+ * Processes RFC 4180 CSV (or TSV) input record-by-record (possibly using multiple threads). Quoted fields may
+ * span multiple lines. Input is parsed in large chunks in parallel (see {@link CsvRecordSource}), and records
+ * are processed by the same ordered execution engine as {@link LinewiseCommandlineTool}, so output is written
+ * in input order. Subclasses must implement a {@link java.util.concurrent.Callable} task to process each
+ * record.
+ *
+ * @author Aaron Dunlop
+ */
+@Threadable
+public abstract class CsvCommandlineTool extends BaseCommandlineTool
+{
+    @Option(name = "-fs", metaVar = "char", usage = "Input field separator (default = ','). Accepts escapes such as \\t")
+    protected String fieldSeparator;
+
+    /** Size of the input chunks parsed in parallel */
+    protected int chunkSize = CsvRecordSource.DEFAULT_CHUNK_SIZE;
+
+    @Override
+    public final void run() throws Exception
+    {
+        final CsvRecordSource source = new CsvRecordSource(System.in, fieldSeparator(), Charset.defaultCharset(),
+            maxThreads, chunkSize);
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(maxThreads, maxThreads
+            * LinewiseCommandlineTool.QUEUED_LINES_PER_THREAD, output());
+
+        for (String[] record = source.next(); record != null; record = source.next())
+        {
+            executor.execute(recordTask(record));
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @return The input field separator
+     */
+    protected byte fieldSeparator()
+    {
+        return fieldSeparator != null ? LineSplitter.parseDelimiter(fieldSeparator) : (byte) ',';
+    }
+
+    /**
+     * @param fields The fields of an input record, with quotes removed
+     * @return a {@link FutureTask} which will process an input record and return a String as output.
+     */
+    protected abstract FutureTask<String> recordTask(String[] fields);
+}
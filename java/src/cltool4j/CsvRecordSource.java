@@ -0,0 +1,360 @@
+package cltool4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reads RFC 4180 CSV (or TSV, or any other single-byte separator) records from a stream, parsing large
+ * chunks of input in parallel. Quoted fields may contain separators, newlines, and escaped quotes (
+ * <code>""</code>).
+ *
+ * Newline splitting alone can't find record boundaries, since a newline may be inside a quoted field. The
+ * quote state at any point is determined by the parity of the quotes preceding it, so a chunk can't be parsed
+ * in isolation. Instead, each chunk is parsed <em>speculatively</em>, assuming that it begins outside a quoted
+ * field (by far the common case): a worker thread finds the first record boundary under that assumption and
+ * parses all complete records following it, while also counting the quotes in the chunk. Chunks are then
+ * resolved in order: the partial record carried over from the previous chunk (which begins at a known record
+ * boundary) determines the true quote state at the start of the chunk. If the speculation was correct, the
+ * carried-over record is completed and the chunk's records are used as-is; if not, the chunk is re-parsed
+ * sequentially.
+ *
+ * A quote anywhere in a field toggles the quote state (so a stray quote in an unquoted field begins a quoted
+ * section, rather than being treated as a literal character). Blank lines are skipped, and a '\r' preceding a
+ * record terminator is stripped.
+ *
+ * @author Aaron Dunlop
+ */
+public class CsvRecordSource {
+
+    public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final InputStream is;
+    private final byte separator;
+    private final Charset charset;
+    private final int chunkSize;
+    private final int maxChunksInFlight;
+    private final ExecutorService executor;
+
+    /** Chunks being parsed, in input order */
+    private final LinkedList<Future<Chunk>> pendingChunks = new LinkedList<Future<Chunk>>();
+
+    /** Resolved records, in order */
+    private final LinkedList<String[]> records = new LinkedList<String[]>();
+
+    /** Bytes of a partial record carried over from previous chunks */
+    private final ByteArrayOutputStream carry = new ByteArrayOutputStream();
+
+    /** Parity of the quotes in {@link #carry} (true if odd) */
+    private boolean carryInQuote;
+
+    private boolean eof;
+
+    /**
+     * @param is Input
+     * @param separator Field separator
+     * @param charset Character set used to decode fields
+     * @param threads Parser threads (if 1, chunks will be parsed by the calling thread)
+     * @param chunkSize Size of the chunks parsed in parallel
+     */
+    public CsvRecordSource(final InputStream is, final byte separator, final Charset charset, final int threads,
+            final int chunkSize) {
+        this.is = is;
+        this.separator = separator;
+        this.charset = charset;
+        this.chunkSize = chunkSize;
+        this.maxChunksInFlight = threads * 2;
+        if (threads > 1) {
+            this.executor = BaseCommandlineTool.newDaemonPool(threads, "CsvRecordSource");
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @param is Input
+     * @param separator Field separator
+     * @param threads Parser threads
+     */
+    public CsvRecordSource(final InputStream is, final byte separator, final int threads) {
+        this(is, separator, Charset.defaultCharset(), threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @return The next record, or null at the end of input
+     * @throws IOException if an I/O error occurs
+     */
+    public String[] next() throws IOException {
+        while (records.isEmpty()) {
+            if (eof && pendingChunks.isEmpty()) {
+                if (carry.size() > 0) {
+                    // Final record, without a terminator
+                    final byte[] buf = carry.toByteArray();
+                    carry.reset();
+                    parseRecords(buf, 0, buf.length, true, records);
+                    continue;
+                }
+                if (executor != null) {
+                    executor.shutdown();
+                }
+                return null;
+            }
+
+            // Start parsing more chunks
+            while (!eof && pendingChunks.size() < maxChunksInFlight) {
+                final byte[] buf = readChunk();
+                if (buf == null) {
+                    eof = true;
+                    break;
+                }
+                final FutureTask<Chunk> task = new FutureTask<Chunk>(new Callable<Chunk>() {
+                    @Override
+                    public Chunk call() {
+                        return new Chunk(buf);
+                    }
+                });
+                if (executor != null) {
+                    executor.execute(task);
+                } else {
+                    task.run();
+                }
+                pendingChunks.add(task);
+            }
+
+            if (!pendingChunks.isEmpty()) {
+                try {
+                    resolve(pendingChunks.removeFirst().get());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (final ExecutionException e) {
+                    throw new IOException(e.getCause().toString());
+                }
+            }
+        }
+        return records.removeFirst();
+    }
+
+    /**
+     * Reads a chunk (the final chunk may be smaller)
+     *
+     * @return chunk, or null at end-of-input
+     */
+    private byte[] readChunk() throws IOException {
+        final byte[] buf = new byte[chunkSize];
+        int offset = 0;
+        while (offset < buf.length) {
+            final int n = is.read(buf, offset, buf.length - offset);
+            if (n < 0) {
+                break;
+            }
+            offset += n;
+        }
+        if (offset == 0) {
+            return null;
+        }
+        if (offset < buf.length) {
+            final byte[] tmp = new byte[offset];
+            System.arraycopy(buf, 0, tmp, 0, offset);
+            return tmp;
+        }
+        return buf;
+    }
+
+    /**
+     * Resolves a speculatively-parsed chunk, given the partial record carried over from previous chunks
+     */
+    private void resolve(final Chunk chunk) {
+        final byte[] buf = chunk.buf;
+
+        if (chunk.firstBoundary < 0) {
+            // No record boundary in this chunk (under any assumption we can verify); carry it all forward
+            carry.write(buf, 0, buf.length);
+            carryInQuote ^= chunk.oddQuotes;
+            return;
+        }
+
+        if (!carryInQuote) {
+            // The speculation was correct. Complete the carried-over record, and use the chunk's records
+            carry.write(buf, 0, chunk.firstBoundary);
+            final byte[] head = carry.toByteArray();
+            parseRecords(head, 0, head.length, true, records);
+            records.addAll(chunk.records);
+            carry.reset();
+            carry.write(buf, chunk.end, buf.length - chunk.end);
+            carryInQuote = oddQuotes(buf, chunk.end, buf.length);
+            return;
+        }
+
+        // Mis-speculation: we began the chunk inside a quoted field. Re-parse sequentially, beginning from the
+        // start of the carried-over record
+        carry.write(buf, 0, buf.length);
+        final byte[] data = carry.toByteArray();
+        final int end = parseRecords(data, 0, data.length, false, records);
+        carry.reset();
+        carry.write(data, end, data.length - end);
+        carryInQuote = oddQuotes(data, end, data.length);
+    }
+
+    /**
+     * Parses complete records from a buffer range, beginning at a record boundary.
+     *
+     * @param buf
+     * @param from Start of range (must be at a record boundary)
+     * @param to End of range (exclusive)
+     * @param endOfRecord True if the range ends at a record boundary (or at the end of input), even if it does not
+     *            end with a record terminator
+     * @param output Parsed records
+     * @return The index following the last complete record parsed
+     */
+    int parseRecords(final byte[] buf, final int from, final int to, final boolean endOfRecord,
+            final List<String[]> output) {
+        final ArrayList<String> fields = new ArrayList<String>();
+        boolean inQuote = false, quotedField = false;
+        int fieldStart = from, recordEnd = from;
+
+        for (int i = from; i < to; i++) {
+            final byte b = buf[i];
+            if (b == '"') {
+                inQuote = !inQuote;
+                quotedField = true;
+            } else if (!inQuote) {
+                if (b == separator) {
+                    fields.add(field(buf, fieldStart, i, quotedField));
+                    fieldStart = i + 1;
+                    quotedField = false;
+                } else if (b == '\n') {
+                    final int fieldEnd = (i > fieldStart && buf[i - 1] == '\r') ? i - 1 : i;
+                    // Skip blank lines
+                    if (!fields.isEmpty() || fieldEnd > fieldStart || quotedField) {
+                        fields.add(field(buf, fieldStart, fieldEnd, quotedField));
+                        output.add(fields.toArray(new String[fields.size()]));
+                    }
+                    fields.clear();
+                    fieldStart = i + 1;
+                    quotedField = false;
+                    recordEnd = i + 1;
+                }
+            }
+        }
+
+        if (endOfRecord && recordEnd < to) {
+            final int fieldEnd = (buf[to - 1] == '\r' && !inQuote) ? to - 1 : to;
+            if (!fields.isEmpty() || fieldEnd > fieldStart || quotedField) {
+                fields.add(field(buf, fieldStart, fieldEnd, quotedField));
+                output.add(fields.toArray(new String[fields.size()]));
+            }
+            recordEnd = to;
+        }
+        return recordEnd;
+    }
+
+    /**
+     * Decodes a field, removing quotes and unescaping doubled quotes within quoted sections
+     */
+    private String field(final byte[] buf, final int start, final int end, final boolean quoted) {
+        if (!quoted) {
+            return new String(buf, start, end - start, charset);
+        }
+
+        final byte[] tmp = new byte[end - start];
+        int length = 0;
+        boolean inQuote = false;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '"') {
+                if (inQuote && i + 1 < end && buf[i + 1] == '"') {
+                    // Escaped quote
+                    tmp[length++] = '"';
+                    i++;
+                } else {
+                    inQuote = !inQuote;
+                }
+            } else {
+                tmp[length++] = buf[i];
+            }
+        }
+        return new String(tmp, 0, length, charset);
+    }
+
+    private static boolean oddQuotes(final byte[] buf, final int from, final int to) {
+        boolean odd = false;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '"') {
+                odd = !odd;
+            }
+        }
+        return odd;
+    }
+
+    /**
+     * Formats a record as CSV, quoting fields as necessary
+     *
+     * @param fields
+     * @param separator
+     * @return CSV-formatted record (without a terminator)
+     */
+    public static String format(final String[] fields, final char separator) {
+        final StringBuilder sb = new StringBuilder(fields.length * 16);
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(separator);
+            }
+            final String field = fields[i];
+            if (field.indexOf('"') >= 0 || field.indexOf(separator) >= 0 || field.indexOf('\n') >= 0
+                    || field.indexOf('\r') >= 0) {
+                sb.append('"');
+                sb.append(field.replace("\"", "\"\""));
+                sb.append('"');
+            } else {
+                sb.append(field);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A chunk of input, speculatively parsed assuming it begins outside a quoted field
+     */
+    private class Chunk {
+        private final byte[] buf;
+
+        /** True if the chunk contains an odd number of quotes */
+        private final boolean oddQuotes;
+
+        /** The index following the first record terminator, or -1 if none */
+        private final int firstBoundary;
+
+        /** Complete records following the first record terminator */
+        private final ArrayList<String[]> records = new ArrayList<String[]>();
+
+        /** The index following the last complete record */
+        private final int end;
+
+        public Chunk(final byte[] buf) {
+            this.buf = buf;
+            this.oddQuotes = oddQuotes(buf, 0, buf.length);
+
+            int boundary = -1;
+            boolean inQuote = false;
+            for (int i = 0; i < buf.length; i++) {
+                if (buf[i] == '"') {
+                    inQuote = !inQuote;
+                } else if (buf[i] == '\n' && !inQuote) {
+                    boundary = i + 1;
+                    break;
+                }
+            }
+            this.firstBoundary = boundary;
+            this.end = boundary >= 0 ? parseRecords(buf, boundary, buf.length, false, records) : -1;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package cltool4j;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies the first occurrence of each distinct record, replacing <code>sort -u</code> (and the full sort it
+ * implies) when deduplicating large inputs or outputs. Records are reduced to 128-bit fingerprints, which are
+ * stored outside the Java heap, so even very large filters add nothing to garbage-collection work.
+ *
+ * Two implementations are available:
+ * <ul>
+ * <li>{@link #exact(long, File)}: Stores complete fingerprints in a lock-free open-addressing table. When the
+ * table exceeds its memory budget, its fingerprints are sorted and spilled to disk, and subsequent lookups
+ * consult the spilled runs as well. 'Exact' within the (negligible) probability of a 128-bit fingerprint
+ * collision.</li>
+ * <li>{@link #approximate(long, double)}: A Bloom filter, sized for a target false-positive rate (the
+ * probability that a distinct record is reported as a duplicate, and dropped). Requires much less memory
+ * than the exact filter, but never spills, so the rate holds only up to the expected number of records.</li>
+ * </ul>
+ *
+ * Both implementations are thread-safe. Concurrent additions of the same record report exactly one of them
+ * as distinct.
+ *
+ * @author Aaron Dunlop
+ */
+public abstract class DistinctFilter {
+
+    private final static long C1 = 0x87c37b91114253d5L;
+    private final static long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * @param memoryBudget Memory (bytes, allocated outside the Java heap) for the in-memory table
+     * @param tmpDir Directory for spilled fingerprints (null for the system default)
+     * @return An exact filter
+     */
+    public static DistinctFilter exact(final long memoryBudget, final File tmpDir) {
+        return new ExactDistinctFilter(memoryBudget, tmpDir);
+    }
+
+    /**
+     * @param expectedRecords The expected number of distinct records
+     * @param falsePositiveRate Target false-positive rate
+     * @return An approximate filter
+     */
+    public static DistinctFilter approximate(final long expectedRecords, final double falsePositiveRate) {
+        return new BloomDistinctFilter(expectedRecords, falsePositiveRate);
+    }
+
+    /**
+     * Adds a record to the filter
+     *
+     * @param buf
+     * @param off
+     * @param len
+     * @return True if the record has not been seen before
+     * @throws IOException if spilling to disk fails
+     */
+    public boolean add(final byte[] buf, final int off, final int len) throws IOException {
+        // MurmurHash3 (x64, 128-bit variant)
+        long h1 = 0, h2 = 0;
+        final int blocks = len >> 4;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(buf, off + (i << 4));
+            long k2 = getLong(buf, off + (i << 4) + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = off + (blocks << 4);
+        long k1 = 0, k2 = 0;
+        for (int i = len & 15; i > 8; i--) {
+            k2 = (k2 << 8) | (buf[tail + i - 1] & 0xff);
+        }
+        for (int i = Math.min(len & 15, 8); i > 0; i--) {
+            k1 = (k1 << 8) | (buf[tail + i - 1] & 0xff);
+        }
+        if ((len & 15) > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if ((len & 15) > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = mix(h1);
+        h2 = mix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        return addFingerprint(h1, h2);
+    }
+
+    /**
+     * Adds a record to the filter (encoded in the default charset, so a record added as a String matches the
+     * same record added as bytes).
+     *
+     * @param record
+     * @return True if the record has not been seen before
+     * @throws IOException if spilling to disk fails
+     */
+    public boolean add(final String record) throws IOException {
+        final byte[] bytes = record.getBytes();
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Adds a record fingerprint to the filter
+     *
+     * @return True if the fingerprint has not been seen before
+     */
+    abstract boolean addFingerprint(long h1, long h2) throws IOException;
+
+    /**
+     * @return The number of distinct records seen (approximate, for an approximate filter)
+     */
+    public abstract long count();
+
+    /**
+     * @return Memory allocated for the filter's in-memory table (bytes)
+     */
+    public abstract long bytes();
+
+    /**
+     * Releases the filter's memory and deletes any temporary files. The filter must not be used afterward.
+     */
+    public abstract void close();
+
+    /**
+     * MurmurHash3 finalization mix, also useful to derive additional hash bits
+     */
+    static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Reads a little-endian long
+     */
+    private static long getLong(final byte[] buf, final int i) {
+        return (buf[i] & 0xffL) | (buf[i + 1] & 0xffL) << 8 | (buf[i + 2] & 0xffL) << 16
+                | (buf[i + 3] & 0xffL) << 24 | (buf[i + 4] & 0xffL) << 32 | (buf[i + 5] & 0xffL) << 40
+                | (buf[i + 6] & 0xffL) << 48 | (buf[i + 7] & 0xffL) << 56;
+    }
+}
@@ -0,0 +1,53 @@
+package cltool4j;
+
+import java.io.IOException;
+
+/**
+ * Passes only the first occurrence of each distinct record to an underlying {@link RecordOutput} (see
+ * {@link DistinctFilter}). Output written directly (rather than as records) is passed through unfiltered.
+ *
+ * @author Aaron Dunlop
+ */
+class DistinctOutput extends RecordOutput {
+
+    private final RecordOutput output;
+    private final DistinctFilter filter;
+
+    /**
+     * @param output Destination for distinct records
+     * @param filter
+     */
+    public DistinctOutput(final RecordOutput output, final DistinctFilter filter) {
+        this.output = output;
+        this.filter = filter;
+    }
+
+    @Override
+    public void writeRecord(final String record) throws IOException {
+        if (filter.add(record)) {
+            output.writeRecord(record);
+        }
+    }
+
+    @Override
+    public void writeRecord(final byte[] buf, final int off, final int len) throws IOException {
+        if (filter.add(buf, off, len)) {
+            output.writeRecord(buf, off, len);
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        output.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
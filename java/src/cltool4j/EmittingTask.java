@@ -0,0 +1,131 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A task which emits zero or more output records as it runs, rather than returning a single (possibly huge)
+ * String. Useful for tools which expand a single input into many output records (tokenizers, n-gram
+ * generators, etc.). Usage (within {@link LinewiseCommandlineTool#lineTask(String)}):
+ *
+ * <pre>
+ * return new EmittingTask() {
+ *     protected void run(final Emitter emitter) throws Exception {
+ *         for (final String token : line.split(" ")) {
+ *             emitter.emit(token);
+ *         }
+ *     }
+ * };
+ * </pre>
+ *
+ * Output order is preserved across tasks: records emitted by a task are buffered until all preceding tasks
+ * have been output. Once a task reaches the head of the output order, its buffered records are written, and
+ * subsequent records are written directly as they are emitted. The buffer is bounded; a task which fills its
+ * buffer before reaching the head of the output order blocks until it does so. Tasks are started in order, so
+ * the head task is always running (or complete), and cannot itself be blocked.
+ *
+ * Unlike the return value of an ordinary task, emitted records are output even if empty.
+ *
+ * @author Aaron Dunlop
+ */
+public abstract class EmittingTask extends FutureTask<String> {
+
+    /** Default bound on the output buffered by a task awaiting its turn to output */
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final int bufferSize;
+
+    /** Encoded records awaiting output */
+    private final ArrayList<byte[]> buffer = new ArrayList<byte[]>();
+    private int bufferedBytes;
+
+    /** Set once all preceding tasks have been output */
+    private RecordOutput output;
+
+    public EmittingTask() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize Bound on the output buffered while awaiting the task's turn to output
+     */
+    public EmittingTask(final int bufferSize) {
+        this(bufferSize, new Body());
+    }
+
+    private EmittingTask(final int bufferSize, final Body body) {
+        super(body);
+        this.bufferSize = bufferSize;
+        body.task = this;
+    }
+
+    /**
+     * Processes the task's input, emitting output records to the supplied {@link Emitter}
+     *
+     * @param emitter
+     * @throws Exception if processing fails
+     */
+    protected abstract void run(Emitter emitter) throws Exception;
+
+    /**
+     * Called (by the output thread) when all preceding tasks have been output. Writes any buffered records, and
+     * allows the task to write subsequent records directly.
+     *
+     * @param recordOutput
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void beginOutput(final RecordOutput recordOutput) throws IOException {
+        for (final byte[] record : buffer) {
+            recordOutput.writeRecord(record, 0, record.length);
+        }
+        buffer.clear();
+        bufferedBytes = 0;
+        this.output = recordOutput;
+        notifyAll();
+    }
+
+    private synchronized void emit(final byte[] record) throws InterruptedException, IOException {
+        if (output != null) {
+            output.writeRecord(record, 0, record.length);
+            return;
+        }
+
+        buffer.add(record);
+        bufferedBytes += record.length;
+        while (output == null && bufferedBytes >= bufferSize) {
+            wait();
+        }
+    }
+
+    /**
+     * Receives output records from an {@link EmittingTask}
+     */
+    public final class Emitter {
+
+        private Emitter() {
+        }
+
+        /**
+         * Emits an output record
+         *
+         * @param record
+         * @throws InterruptedException if interrupted while waiting for preceding tasks to be output
+         * @throws IOException if an I/O error occurs
+         */
+        public void emit(final CharSequence record) throws InterruptedException, IOException {
+            EmittingTask.this.emit(record.toString().getBytes());
+        }
+    }
+
+    private static class Body implements Callable<String> {
+        private EmittingTask task;
+
+        @Override
+        public String call() throws Exception {
+            task.run(task.new Emitter());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package cltool4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An exact {@link DistinctFilter}. Fingerprints are stored in an off-heap open-addressing table (linear
+ * probing, 2 words per slot). Lookups and insertions are lock-free: an insertion claims an empty slot by
+ * compare-and-set of the fingerprint's first word, and then publishes the second; a concurrent reader which
+ * finds a claimed slot waits (briefly) for the second word before comparing.
+ *
+ * When the table reaches its maximum load, its fingerprints are sorted in place and spilled to a run file, and
+ * the table is cleared. Runs are memory-mapped and searched by binary search (narrowed by a sparse in-heap
+ * index), and merged as they accumulate (each run is at least twice the size of its successor), so a lookup
+ * consults O(log(n / capacity)) runs. Spilling and merging exclude other operations (via a read-write lock
+ * which is otherwise only acquired for reading).
+ *
+ * @author Aaron Dunlop
+ */
+final class ExactDistinctFilter extends DistinctFilter {
+
+    private final static double MAX_LOAD = 0.7;
+
+    private final static int INSERTED = 0, PRESENT = 1, FULL = 2;
+
+    private final OffHeapLongArray table;
+    private final long mask;
+    private final long maxEntries;
+    private final AtomicLong entries = new AtomicLong();
+    private final File tmpDir;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ArrayList<FingerprintRun> runs = new ArrayList<FingerprintRun>();
+    private long spilledEntries;
+
+    /**
+     * @param memoryBudget Memory (bytes) for the in-memory table
+     * @param tmpDir Directory for spilled fingerprints (null for the system default)
+     */
+    public ExactDistinctFilter(final long memoryBudget, final File tmpDir) {
+        // The largest power-of-2 slot count within the budget
+        final long slots = Long.highestOneBit(Math.max(memoryBudget / 16, 1024));
+        this.table = new OffHeapLongArray(slots * 2);
+        this.mask = slots - 1;
+        this.maxEntries = (long) (slots * MAX_LOAD);
+        this.tmpDir = tmpDir;
+    }
+
+    @Override
+    boolean addFingerprint(final long h1, final long h2) throws IOException {
+        // Zero denotes an empty slot
+        final long hi = h1 != 0 ? h1 : 1;
+        final long lo = h2 != 0 ? h2 : 1;
+
+        while (true) {
+            lock.readLock().lock();
+            try {
+                final int result = insert(hi, lo);
+                if (result != FULL) {
+                    return result == INSERTED;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            spill();
+        }
+    }
+
+    private int insert(final long hi, final long lo) {
+        boolean searchedRuns = false;
+        long slot = lo & mask;
+        for (long probes = 0; probes <= mask; probes++) {
+            final long i = slot * 2;
+            long h = table.getVolatile(i);
+
+            if (h == 0) {
+                // Not in the table; before inserting, check the spilled runs
+                if (!searchedRuns) {
+                    for (final FingerprintRun run : runs) {
+                        if (run.contains(hi, lo)) {
+                            return PRESENT;
+                        }
+                    }
+                    searchedRuns = true;
+                }
+                if (entries.get() >= maxEntries) {
+                    return FULL;
+                }
+                if (table.compareAndSet(i, 0, hi)) {
+                    table.setVolatile(i + 1, lo);
+                    entries.incrementAndGet();
+                    return INSERTED;
+                }
+                // Another thread claimed the slot; check whether it inserted the same fingerprint
+                h = table.getVolatile(i);
+            }
+
+            if (h == hi) {
+                long l;
+                while ((l = table.getVolatile(i + 1)) == 0) {
+                    Thread.yield();
+                }
+                if (l == lo) {
+                    return PRESENT;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return FULL;
+    }
+
+    /**
+     * Sorts the table's fingerprints and writes them to a new run, merging runs as necessary
+     */
+    private void spill() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (entries.get() < maxEntries) {
+                // Another thread spilled while we waited for the lock
+                return;
+            }
+
+            // Compact the fingerprints to the beginning of the table, and sort them in place
+            long n = 0;
+            for (long slot = 0; slot <= mask; slot++) {
+                final long hi = table.get(slot * 2);
+                if (hi != 0) {
+                    final long lo = table.get(slot * 2 + 1);
+                    table.set(slot * 2, 0);
+                    table.set(slot * 2 + 1, 0);
+                    table.set(n * 2, hi);
+                    table.set(n * 2 + 1, lo);
+                    n++;
+                }
+            }
+            sort(0, n);
+
+            FingerprintRun run = FingerprintRun.write(table, n, tmpDir);
+            table.clear();
+            spilledEntries += entries.getAndSet(0);
+
+            // Merge runs until each is at least twice the size of its successor
+            while (!runs.isEmpty() && runs.get(runs.size() - 1).count <= run.count * 2) {
+                run = FingerprintRun.merge(runs.remove(runs.size() - 1), run, tmpDir);
+            }
+            runs.add(run);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sorts fingerprints [from, to) in place (quicksort, recursing into the smaller partition)
+     */
+    private void sort(long from, long to) {
+        while (to - from > 16) {
+            final long mid = from + (to - from) / 2;
+            final long pivotHi = table.get(mid * 2), pivotLo = table.get(mid * 2 + 1);
+            long i = from, j = to - 1;
+            while (i <= j) {
+                while (compare(table.get(i * 2), table.get(i * 2 + 1), pivotHi, pivotLo) < 0) {
+                    i++;
+                }
+                while (compare(table.get(j * 2), table.get(j * 2 + 1), pivotHi, pivotLo) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (j + 1 - from < to - i) {
+                sort(from, j + 1);
+                from = i;
+            } else {
+                sort(i, to);
+                to = j + 1;
+            }
+        }
+
+        // Insertion sort for small ranges
+        for (long i = from + 1; i < to; i++) {
+            for (long j = i; j > from && compare(table.get(j * 2), table.get(j * 2 + 1), table.get(j * 2 - 2),
+                    table.get(j * 2 - 1)) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private void swap(final long i, final long j) {
+        final long hi = table.get(i * 2), lo = table.get(i * 2 + 1);
+        table.set(i * 2, table.get(j * 2));
+        table.set(i * 2 + 1, table.get(j * 2 + 1));
+        table.set(j * 2, hi);
+        table.set(j * 2 + 1, lo);
+    }
+
+    private static int compare(final long hi1, final long lo1, final long hi2, final long lo2) {
+        if (hi1 != hi2) {
+            return hi1 < hi2 ? -1 : 1;
+        }
+        return lo1 < lo2 ? -1 : (lo1 > lo2 ? 1 : 0);
+    }
+
+    @Override
+    public long count() {
+        lock.readLock().lock();
+        try {
+            return spilledEntries + entries.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long bytes() {
+        return table.length() * 8;
+    }
+
+    /**
+     * @return The number of runs currently spilled to disk
+     */
+    int runs() {
+        lock.readLock().lock();
+        try {
+            return runs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            table.free();
+            for (final FingerprintRun run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A sorted run of fingerprints, memory-mapped for lookup. Mapped in segments, since a single mapping is
+     * limited to 2 GB.
+     */
+    private static class FingerprintRun {
+        private final static int SEGMENT_BITS = 26;
+        private final static long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+        /** Every INDEX_INTERVAL'th fingerprint is indexed in memory */
+        private final static int INDEX_INTERVAL = 1024;
+
+        private final File file;
+        private final long count;
+        private final MappedByteBuffer[] segments;
+        private final long[] indexHi, indexLo;
+
+        private FingerprintRun(final File file, final long count) throws IOException {
+            this.file = file;
+            this.count = count;
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                this.segments = new MappedByteBuffer[(int) ((count + SEGMENT_MASK) >> SEGMENT_BITS)];
+                for (int s = 0; s < segments.length; s++) {
+                    final long start = (long) s << SEGMENT_BITS;
+                    segments[s] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start * 16,
+                            Math.min(count - start, 1L << SEGMENT_BITS) * 16);
+                }
+            } finally {
+                raf.close();
+            }
+
+            final int indexSize = (int) ((count + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+            this.indexHi = new long[indexSize];
+            this.indexLo = new long[indexSize];
+            for (int i = 0; i < indexSize; i++) {
+                indexHi[i] = hi((long) i * INDEX_INTERVAL);
+                indexLo[i] = lo((long) i * INDEX_INTERVAL);
+            }
+        }
+
+        private long hi(final long i) {
+            return segments[(int) (i >> SEGMENT_BITS)].getLong((int) (i & SEGMENT_MASK) * 16);
+        }
+
+        private long lo(final long i) {
+            return segments[(int) (i >> SEGMENT_BITS)].getLong((int) (i & SEGMENT_MASK) * 16 + 8);
+        }
+
+        public boolean contains(final long hi, final long lo) {
+            // Find the last indexed fingerprint <= the target
+            int low = 0, high = indexHi.length - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (compare(indexHi[mid], indexLo[mid], hi, lo) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (high < 0) {
+                return false;
+            }
+
+            // And search the interval following it
+            long l = (long) high * INDEX_INTERVAL, h = Math.min(l + INDEX_INTERVAL, count) - 1;
+            while (l <= h) {
+                final long mid = (l + h) >>> 1;
+                final int c = compare(hi(mid), lo(mid), hi, lo);
+                if (c < 0) {
+                    l = mid + 1;
+                } else if (c > 0) {
+                    h = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void delete() {
+            file.delete();
+        }
+
+        /**
+         * Writes the first <code>count</code> (sorted) fingerprints of a table to a new run
+         */
+        public static FingerprintRun write(final OffHeapLongArray table, final long count, final File tmpDir)
+                throws IOException {
+            final File f = File.createTempFile("distinct", ".run", tmpDir);
+            f.deleteOnExit();
+            final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+                    256 * 1024));
+            try {
+                for (long i = 0; i < count * 2; i++) {
+                    os.writeLong(table.get(i));
+                }
+            } finally {
+                os.close();
+            }
+            return new FingerprintRun(f, count);
+        }
+
+        /**
+         * Merges two runs (which are disjoint) into a new run, deleting the originals
+         */
+        public static FingerprintRun merge(final FingerprintRun r1, final FingerprintRun r2, final File tmpDir)
+                throws IOException {
+            final File f = File.createTempFile("distinct", ".run", tmpDir);
+            f.deleteOnExit();
+            final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+                    256 * 1024));
+            try {
+                long i1 = 0, i2 = 0;
+                while (i1 < r1.count || i2 < r2.count) {
+                    final FingerprintRun r;
+                    final long i;
+                    if (i2 == r2.count
+                            || (i1 < r1.count && compare(r1.hi(i1), r1.lo(i1), r2.hi(i2), r2.lo(i2)) < 0)) {
+                        r = r1;
+                        i = i1++;
+                    } else {
+                        r = r2;
+                        i = i2++;
+                    }
+                    os.writeLong(r.hi(i));
+                    os.writeLong(r.lo(i));
+                }
+            } finally {
+                os.close();
+            }
+            r1.delete();
+            r2.delete();
+            return new FingerprintRun(f, r1.count + r2.count);
+        }
+    }
+}
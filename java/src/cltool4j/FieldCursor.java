@@ -0,0 +1,368 @@
+package cltool4j;
+
+/**
+ * Iterates over the delimited fields of a line, without allocating a String (or an array) per field. Numeric
+ * fields can be parsed directly from the underlying {@link CharSequence}. Intended as a replacement for the
+ * common <code>line.split("\t")</code> / {@link Integer#parseInt(String)} idiom in line-processing tasks.
+ *
+ * A cursor is mutable and not thread-safe, but can be reused indefinitely via {@link #reset(CharSequence)};
+ * {@link LinewiseCommandlineTool#fields(CharSequence)} provides a per-thread instance. Usage:
+ *
+ * <pre>
+ * final FieldCursor fields = fields(line);
+ * while (fields.next()) {
+ *     total += fields.parseLong();
+ * }
+ * </pre>
+ *
+ * @author Aaron Dunlop
+ */
+public final class FieldCursor {
+
+    /** Exact powers of 10 representable as doubles */
+    private final static double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private CharSequence line;
+    private char delimiter;
+
+    /** Start of the current field */
+    private int start;
+
+    /** End of the current field (exclusive) */
+    private int end;
+
+    /** Index of the current field (-1 before the first call to {@link #next()}) */
+    private int index;
+
+    /**
+     * @param delimiter Field delimiter
+     */
+    public FieldCursor(final char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Creates a tab-delimited cursor
+     */
+    public FieldCursor() {
+        this('\t');
+    }
+
+    /**
+     * Resets the cursor to the beginning of a new line. The cursor is positioned before the first field.
+     *
+     * @param newLine
+     * @return this cursor
+     */
+    public FieldCursor reset(final CharSequence newLine) {
+        this.line = newLine;
+        this.start = 0;
+        this.end = -1;
+        this.index = -1;
+        return this;
+    }
+
+    /**
+     * Resets the cursor to the beginning of a new line, using a new delimiter.
+     *
+     * @param newLine
+     * @param newDelimiter
+     * @return this cursor
+     */
+    public FieldCursor reset(final CharSequence newLine, final char newDelimiter) {
+        this.delimiter = newDelimiter;
+        return reset(newLine);
+    }
+
+    /**
+     * Advances to the next field
+     *
+     * @return False if there are no more fields
+     */
+    public boolean next() {
+        final int length = line.length();
+        if (end >= length) {
+            return false;
+        }
+        start = end + 1;
+        int i = start;
+        while (i < length && line.charAt(i) != delimiter) {
+            i++;
+        }
+        end = i;
+        index++;
+        return true;
+    }
+
+    /**
+     * Advances by the specified number of fields (<code>skip(1)</code> is equivalent to {@link #next()})
+     *
+     * @param fields
+     * @return False if the line contains fewer fields
+     */
+    public boolean skip(final int fields) {
+        for (int i = 0; i < fields; i++) {
+            if (!next()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Positions the cursor at the specified field (0-based). Fields preceding the current field require a
+     * rescan from the beginning of the line.
+     *
+     * @param field
+     * @return False if the line contains fewer fields
+     */
+    public boolean seek(final int field) {
+        if (field < index) {
+            reset(line);
+        }
+        return skip(field - index);
+    }
+
+    /**
+     * @return Index (0-based) of the current field
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * @return Start of the current field in the line
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * @return End of the current field in the line (exclusive)
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * @return Length of the current field
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * @return The current line
+     */
+    public CharSequence line() {
+        return line;
+    }
+
+    /**
+     * @return The current field as a {@link String} (note that this method allocates)
+     */
+    public String string() {
+        return line.subSequence(start, end).toString();
+    }
+
+    /**
+     * @param s
+     * @return True if the current field is equal to the specified sequence
+     */
+    public boolean contentEquals(final CharSequence s) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) != s.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The current field, parsed as an int
+     * @throws NumberFormatException if the field is not a valid int
+     */
+    public int parseInt() {
+        return parseInt(line, start, end);
+    }
+
+    /**
+     * @return The current field, parsed as a long
+     * @throws NumberFormatException if the field is not a valid long
+     */
+    public long parseLong() {
+        return parseLong(line, start, end);
+    }
+
+    /**
+     * @return The current field, parsed as a double
+     * @throws NumberFormatException if the field is not a valid double
+     */
+    public double parseDouble() {
+        return parseDouble(line, start, end);
+    }
+
+    /**
+     * Parses a decimal int from a range of a {@link CharSequence}, with the semantics of
+     * {@link Integer#parseInt(String)}.
+     *
+     * @param s
+     * @param from Start of the range
+     * @param to End of the range (exclusive)
+     * @return Parsed value
+     * @throws NumberFormatException if the range is not a valid int
+     */
+    public static int parseInt(final CharSequence s, final int from, final int to) {
+        final long value = parseLong(s, from, to);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw numberFormatException(s, from, to);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses a decimal long from a range of a {@link CharSequence}, with the semantics of
+     * {@link Long#parseLong(String)}.
+     *
+     * @param s
+     * @param from Start of the range
+     * @param to End of the range (exclusive)
+     * @return Parsed value
+     * @throws NumberFormatException if the range is not a valid long
+     */
+    public static long parseLong(final CharSequence s, final int from, final int to) {
+        if (from >= to) {
+            throw numberFormatException(s, from, to);
+        }
+
+        int i = from;
+        final char first = s.charAt(i);
+        final boolean negative = first == '-';
+        if (negative || first == '+') {
+            i++;
+            if (i == to) {
+                throw numberFormatException(s, from, to);
+            }
+        }
+
+        // Accumulate negatively, since |Long.MIN_VALUE| > Long.MAX_VALUE
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        final long multiplyLimit = limit / 10;
+        long value = 0;
+        for (; i < to; i++) {
+            final int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value < multiplyLimit) {
+                throw numberFormatException(s, from, to);
+            }
+            value *= 10;
+            if (value < limit + digit) {
+                throw numberFormatException(s, from, to);
+            }
+            value -= digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Parses a double from a range of a {@link CharSequence}, with the semantics of
+     * {@link Double#parseDouble(String)}. Plain decimal and scientific notation of up to 15 significant digits
+     * (the vast majority of numeric fields) are parsed exactly without allocation; other forms fall back to
+     * {@link Double#parseDouble(String)}.
+     *
+     * @param s
+     * @param from Start of the range
+     * @param to End of the range (exclusive)
+     * @return Parsed value
+     * @throws NumberFormatException if the range is not a valid double
+     */
+    public static double parseDouble(final CharSequence s, final int from, final int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean sawDigit = false, sawPoint = false;
+        for (; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                if (mantissa == 0 && c == '0') {
+                    // Leading zeros don't count towards precision
+                    if (sawPoint) {
+                        exponent--;
+                    }
+                    continue;
+                }
+                if (++digits > 15) {
+                    return slowParseDouble(s, from, to);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (sawPoint) {
+                    exponent--;
+                }
+            } else if (c == '.' && !sawPoint) {
+                sawPoint = true;
+            } else {
+                break;
+            }
+        }
+
+        if (i < to) {
+            final char c = s.charAt(i);
+            if (!sawDigit || (c != 'e' && c != 'E') || i + 1 == to) {
+                // Hex, NaN, Infinity, type suffixes, or garbage; let the JDK sort it out
+                return slowParseDouble(s, from, to);
+            }
+            final int exponentStart = i + 1;
+            final char sign = s.charAt(exponentStart);
+            final int digitsStart = (sign == '-' || sign == '+') ? exponentStart + 1 : exponentStart;
+            if (digitsStart == to || to - digitsStart > 4) {
+                return slowParseDouble(s, from, to);
+            }
+            for (int j = digitsStart; j < to; j++) {
+                if (s.charAt(j) < '0' || s.charAt(j) > '9') {
+                    return slowParseDouble(s, from, to);
+                }
+            }
+            exponent += parseInt(s, exponentStart, to);
+        } else if (!sawDigit) {
+            return slowParseDouble(s, from, to);
+        }
+
+        // The mantissa (< 10^15) is exactly representable, and so are powers of 10 up to 10^22, so a single
+        // (correctly-rounded) multiplication or division yields the correctly-rounded result
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return slowParseDouble(s, from, to);
+        }
+        return negative ? -value : value;
+    }
+
+    private static double slowParseDouble(final CharSequence s, final int from, final int to) {
+        return Double.parseDouble(s.subSequence(from, to).toString());
+    }
+
+    private static NumberFormatException numberFormatException(final CharSequence s, final int from,
+            final int to) {
+        return new NumberFormatException("For input string: \"" + s.subSequence(from, to) + "\"");
+    }
+}
@@ -0,0 +1,481 @@
+package cltool4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Aggregates values by key (counting, summing, grouping, etc.) within a fixed memory budget. Replaces the
+ * common practice of accumulating a <code>HashMap</code> in a tool and writing it out at completion, which
+ * exhausts the heap when keys are numerous (e.g., counting n-grams).
+ *
+ * Keys are hash-partitioned, and each partition is aggregated in its own hash table, guarded by its own lock,
+ * so updates may be added concurrently from any thread. When a partition exceeds its share of the memory
+ * budget, it is sorted by key and spilled to a temporary file. At completion ({@link #finish(int, Handler)},
+ * generally called from {@link BaseCommandlineTool#cleanup()}), the partitions are merged in parallel, each
+ * combining its spilled runs and in-memory table in a single streaming pass, so the merge itself also
+ * requires only a bounded amount of memory.
+ *
+ * Subclasses define the aggregation function ({@link #combine(Object, Object)}) and the serialization of
+ * values for spilling. {@link Counter} implements the most common case, summing <code>long</code> counts.
+ *
+ * @author Aaron Dunlop
+ */
+public abstract class HashAggregator<V> {
+
+    /** Maximum number of runs merged at once */
+    private final static int MERGE_FAN_IN = 64;
+
+    /** Approximate per-entry memory overhead of a hash table entry (entry object, key object, references) */
+    private final static int ENTRY_OVERHEAD = 96;
+
+    private final static int DEFAULT_PARTITIONS = 64;
+
+    private final ArrayList<Partition> partitions;
+    private final long partitionBudget;
+    private final File tmpDir;
+
+    /**
+     * @param memoryBudget Approximate total memory (bytes) to devote to in-memory aggregation
+     * @param partitions Number of partitions (bounds the concurrency of updates and of the final merge)
+     * @param tmpDir Directory for temporary files (null for the system default)
+     */
+    public HashAggregator(final long memoryBudget, final int partitions, final File tmpDir) {
+        this.partitions = new ArrayList<Partition>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            this.partitions.add(new Partition());
+        }
+        this.partitionBudget = Math.max(memoryBudget / partitions, 1024);
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * @param memoryBudget Approximate total memory (bytes) to devote to in-memory aggregation
+     */
+    public HashAggregator(final long memoryBudget) {
+        this(memoryBudget, DEFAULT_PARTITIONS, null);
+    }
+
+    /**
+     * Adds a value, combining it with any previous value for the same key. Thread-safe.
+     *
+     * @param key
+     * @param value
+     * @throws IOException if the partition cannot be spilled to disk
+     */
+    public void add(final String key, final V value) throws IOException {
+        partitions.get((key.hashCode() & 0x7fffffff) % partitions.size()).add(key, value);
+    }
+
+    /**
+     * Combines two values for the same key. <code>v1</code> was added before <code>v2</code>, which matters
+     * for aggregations which are not commutative, such as concatenation. Implementations may modify and
+     * return <code>v1</code> rather than allocating a new value.
+     *
+     * @param v1
+     * @param v2
+     * @return Combined value
+     */
+    protected abstract V combine(V v1, V v2);
+
+    /**
+     * Writes a value to a spill file
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    protected abstract void writeValue(DataOutput out, V value) throws IOException;
+
+    /**
+     * Reads a value written by {@link #writeValue(DataOutput, Object)}
+     *
+     * @param in
+     * @return Value
+     * @throws IOException
+     */
+    protected abstract V readValue(DataInput in) throws IOException;
+
+    /**
+     * Estimates the memory consumed by a value (used to decide when to spill). The default implementation
+     * returns 16 bytes, appropriate for boxed primitives; aggregators which group values into collections
+     * should override it.
+     *
+     * @param value
+     * @return Approximate size of the value in bytes
+     */
+    protected long valueBytes(final V value) {
+        return 16;
+    }
+
+    /**
+     * Merges all partitions, passing each key and its aggregated value to the handler. Partitions are merged in
+     * parallel, but calls to the handler are serialized. Keys are grouped by partition, and sorted within
+     * partitions which were spilled; callers requiring a total order should sort the output (e.g., with
+     * <code>-sort</code>). Must be called after all values have been added, and only once.
+     *
+     * @param threads Number of partitions to merge concurrently
+     * @param handler Receives aggregated values
+     * @throws IOException if a spill file cannot be read, or if the handler throws an IOException
+     * @throws InterruptedException if interrupted while waiting for the merge
+     */
+    public void finish(final int threads, final Handler<V> handler) throws IOException, InterruptedException {
+        final ExecutorService mergers = BaseCommandlineTool.newDaemonPool(threads, "HashAggregator");
+        try {
+            final ArrayList<Future<Object>> merges = new ArrayList<Future<Object>>();
+            for (final Partition partition : partitions) {
+                merges.add(mergers.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        partition.finish(handler);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Object> f : merges) {
+                f.get();
+            }
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            mergers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The number of runs spilled to disk so far
+     */
+    public int spills() {
+        int spills = 0;
+        for (final Partition partition : partitions) {
+            synchronized (partition) {
+                spills += partition.spills;
+            }
+        }
+        return spills;
+    }
+
+    /**
+     * @return The sum of the largest (approximate) memory consumed by each partition's in-memory table (bytes)
+     */
+    public long peakBytes() {
+        long bytes = 0;
+        for (final Partition partition : partitions) {
+            synchronized (partition) {
+                bytes += Math.max(partition.peakBytes, partition.bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Receives aggregated keys and values from {@link HashAggregator#finish(int, Handler)}
+     */
+    public interface Handler<V> {
+        public void handle(String key, V value) throws IOException;
+    }
+
+    private class Partition {
+        private HashMap<String, V> table = new HashMap<String, V>();
+        private long bytes, peakBytes;
+        private final ArrayList<File> runs = new ArrayList<File>();
+        private int spills;
+
+        public synchronized void add(final String key, final V value) throws IOException {
+            final V previous = table.get(key);
+            if (previous == null) {
+                table.put(key, value);
+                bytes += key.length() * 2 + ENTRY_OVERHEAD + valueBytes(value);
+            } else {
+                final long previousBytes = valueBytes(previous);
+                final V combined = combine(previous, value);
+                table.put(key, combined);
+                bytes += valueBytes(combined) - previousBytes;
+            }
+
+            if (bytes > partitionBudget) {
+                peakBytes = Math.max(peakBytes, bytes);
+                runs.add(writeRun(sortedEntries()));
+                spills++;
+                table = new HashMap<String, V>();
+                bytes = 0;
+            }
+        }
+
+        private Iterator<Entry<V>> sortedEntries() {
+            final ArrayList<Entry<V>> entries = new ArrayList<Entry<V>>(table.size());
+            for (final Map.Entry<String, V> e : table.entrySet()) {
+                entries.add(new Entry<V>(e.getKey(), e.getValue()));
+            }
+            Collections.sort(entries);
+            return entries.iterator();
+        }
+
+        public synchronized void finish(final Handler<V> handler) throws IOException {
+            if (runs.isEmpty()) {
+                for (final Map.Entry<String, V> e : table.entrySet()) {
+                    handle(handler, e.getKey(), e.getValue());
+                }
+                table = null;
+                return;
+            }
+
+            // Reduce the number of runs until we can merge them all at once
+            while (runs.size() + 1 > MERGE_FAN_IN) {
+                final ArrayList<File> merged = new ArrayList<File>();
+                for (int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+                    merged.add(writeRun(merge(runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size())), null)));
+                }
+                runs.clear();
+                runs.addAll(merged);
+            }
+
+            final Iterator<Entry<V>> inMemory = sortedEntries();
+            table = null;
+            for (final Iterator<Entry<V>> i = merge(runs, inMemory); i.hasNext();) {
+                final Entry<V> e = i.next();
+                handle(handler, e.key, e.value);
+            }
+        }
+
+        private void handle(final Handler<V> handler, final String key, final V value) throws IOException {
+            synchronized (handler) {
+                handler.handle(key, value);
+            }
+        }
+    }
+
+    /**
+     * Writes a sorted run to a temporary file
+     */
+    private File writeRun(final Iterator<Entry<V>> entries) throws IOException {
+        final File f = File.createTempFile("aggregate", ".run", tmpDir);
+        f.deleteOnExit();
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+                64 * 1024));
+        while (entries.hasNext()) {
+            final Entry<V> e = entries.next();
+            final byte[] key = e.key.getBytes("UTF-8");
+            os.writeInt(key.length);
+            os.write(key);
+            writeValue(os, e.value);
+        }
+        os.close();
+        return f;
+    }
+
+    /**
+     * Merges sorted runs (and optionally a sorted in-memory run, which follows the spilled runs in input
+     * order), combining values with equal keys in run order.
+     */
+    private Iterator<Entry<V>> merge(final List<File> runs, final Iterator<Entry<V>> inMemory)
+            throws IOException {
+
+        final List<Iterator<Entry<V>>> iterators = new ArrayList<Iterator<Entry<V>>>();
+        for (final File f : runs) {
+            iterators.add(new RunReader(f));
+        }
+        if (inMemory != null) {
+            iterators.add(inMemory);
+        }
+
+        final PriorityQueue<Head> heads = new PriorityQueue<Head>(iterators.size());
+        for (int i = 0; i < iterators.size(); i++) {
+            if (iterators.get(i).hasNext()) {
+                heads.add(new Head(iterators.get(i), i));
+            }
+        }
+
+        return new Iterator<Entry<V>>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Entry<V> next() {
+                final Entry<V> e = advance(heads.poll());
+                while (!heads.isEmpty() && heads.peek().entry.key.equals(e.key)) {
+                    e.value = combine(e.value, advance(heads.poll()).value);
+                }
+                return e;
+            }
+
+            private Entry<V> advance(final Head head) {
+                final Entry<V> e = head.entry;
+                if (head.iterator.hasNext()) {
+                    head.entry = head.iterator.next();
+                    heads.add(head);
+                }
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class Entry<V> implements Comparable<Entry<V>> {
+        private final String key;
+        private V value;
+
+        public Entry(final String key, final V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(final Entry<V> o) {
+            return key.compareTo(o.key);
+        }
+    }
+
+    private class Head implements Comparable<Head> {
+        private final Iterator<Entry<V>> iterator;
+        private final int index;
+        private Entry<V> entry;
+
+        public Head(final Iterator<Entry<V>> iterator, final int index) {
+            this.iterator = iterator;
+            this.index = index;
+            this.entry = iterator.next();
+        }
+
+        @Override
+        public int compareTo(final Head o) {
+            final int c = entry.compareTo(o.entry);
+            return c != 0 ? c : index - o.index;
+        }
+    }
+
+    /**
+     * Reads a spilled run, deleting the file when exhausted
+     */
+    private class RunReader implements Iterator<Entry<V>> {
+        private final File f;
+        private final DataInputStream is;
+        private Entry<V> next;
+
+        public RunReader(final File f) throws IOException {
+            this.f = f;
+            this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+            advance();
+        }
+
+        private void advance() {
+            try {
+                final byte[] key = new byte[is.readInt()];
+                is.readFully(key);
+                next = new Entry<V>(new String(key, "UTF-8"), readValue(is));
+            } catch (final EOFException e) {
+                next = null;
+                try {
+                    is.close();
+                } catch (final IOException ignore) {
+                }
+                f.delete();
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<V> next() {
+            final Entry<V> e = next;
+            advance();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Sums <code>long</code> counts by key
+     */
+    public static class Counter extends HashAggregator<Long> {
+
+        /**
+         * @param memoryBudget Approximate total memory (bytes) to devote to in-memory aggregation
+         */
+        public Counter(final long memoryBudget) {
+            super(memoryBudget);
+        }
+
+        /**
+         * @param memoryBudget Approximate total memory (bytes) to devote to in-memory aggregation
+         * @param partitions Number of partitions
+         * @param tmpDir Directory for temporary files (null for the system default)
+         */
+        public Counter(final long memoryBudget, final int partitions, final File tmpDir) {
+            super(memoryBudget, partitions, tmpDir);
+        }
+
+        /**
+         * Increments the count of the specified key
+         *
+         * @param key
+         * @throws IOException if the partition cannot be spilled to disk
+         */
+        public void increment(final String key) throws IOException {
+            add(key, 1L);
+        }
+
+        /**
+         * Adds to the count of the specified key
+         *
+         * @param key
+         * @param count
+         * @throws IOException if the partition cannot be spilled to disk
+         */
+        public void increment(final String key, final long count) throws IOException {
+            add(key, count);
+        }
+
+        @Override
+        protected Long combine(final Long v1, final Long v2) {
+            return v1 + v2;
+        }
+
+        @Override
+        protected void writeValue(final DataOutput out, final Long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        protected Long readValue(final DataInput in) throws IOException {
+            return in.readLong();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package cltool4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Estimates the number of distinct items (users, queries, etc.) in a fixed, small amount of memory
+ * (2<sup>precision</sup> bytes, with a relative standard error of 1.04 / sqrt(2<sup>precision</sup>)) - a
+ * HyperLogLog sketch (Flajolet et al., 2007), with linear counting for small cardinalities.
+ *
+ * Sketches are not thread-safe. Each thread should update its own (see {@link ThreadLocalLinewiseClTool});
+ * since sketches are {@link Mergeable}, the thread-local sketches are combined at the end of input. Sketches
+ * may also be serialized (see {@link #write(DataOutput)}), to combine the results of sharded runs.
+ *
+ * @author Aaron Dunlop
+ */
+public class HyperLogLog implements Mergeable<HyperLogLog> {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision Number of index bits (4-18); the sketch uses 2<sup>precision</sup> bytes
+     */
+    public HyperLogLog(final int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Invalid precision: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Creates a sketch with precision 14 (16 KB, ~0.8% standard error)
+     */
+    public HyperLogLog() {
+        this(14);
+    }
+
+    /**
+     * Adds an item
+     *
+     * @param buf Item bytes
+     * @param off
+     * @param len
+     */
+    public void add(final byte[] buf, final int off, final int len) {
+        addHash(SymbolTable.hash(buf, off, len));
+    }
+
+    /**
+     * Adds an item (encoded in UTF-8)
+     *
+     * @param item
+     */
+    public void add(final CharSequence item) {
+        final byte[] bytes = item.toString().getBytes(UTF8);
+        addHash(SymbolTable.hash(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Adds a numeric item (e.g., a user ID)
+     *
+     * @param item
+     */
+    public void add(final long item) {
+        addHash(DistinctFilter.mix(item ^ 0x9e3779b97f4a7c15L));
+    }
+
+    /**
+     * Adds an item by its (uniformly-distributed) 64-bit hash
+     *
+     * @param hash
+     */
+    public void addHash(final long hash) {
+        final int register = (int) (hash >>> (64 - precision));
+        // The sentinel bit bounds the rank by the number of hash bits remaining after the index
+        final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        if (rank > registers[register]) {
+            registers[register] = rank;
+        }
+    }
+
+    /**
+     * @return Estimated number of distinct items added
+     */
+    public long estimate() {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (final byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+
+        final double alpha = m == 16 ? 0.673 : (m == 32 ? 0.697 : (m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m)));
+        final double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return Relative standard error of the estimate
+     */
+    public double standardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    /**
+     * Combines another sketch into this one. The result is the sketch of the union of the items added to
+     * either.
+     *
+     * @throws IllegalArgumentException if the sketches' precisions differ
+     */
+    @Override
+    public void merge(final HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge sketches of precision " + precision + " and "
+                    + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * Serializes the sketch
+     *
+     * @param out
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    /**
+     * Reads a sketch written with {@link #write(DataOutput)}
+     *
+     * @param in
+     * @return The sketch
+     * @throws IOException if an I/O error occurs
+     */
+    public static HyperLogLog read(final DataInput in) throws IOException {
+        final HyperLogLog sketch = new HyperLogLog(in.readByte());
+        in.readFully(sketch.registers);
+        return sketch;
+    }
+}
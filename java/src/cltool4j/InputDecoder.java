@@ -0,0 +1,503 @@
+package cltool4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The 'reader' stage of the input pipeline. Consumes a stream of input filenames (generally from an
+ * {@link InputFileWalker}) and produces a stream of decoded {@link Input}s, in order. Compression formats are
+ * detected from magic bytes rather than filename suffixes.
+ *
+ * Zip and jar archives are treated as a set of inputs, one per (non-directory) entry, each named
+ * <code>archive!entry</code>. Archive entries are inflated concurrently by a pool of decoder threads, ahead of
+ * the consumer, so a large archive of small entries can be decoded on all cores while the tool processes
+ * earlier entries. Read-ahead is limited by both entry count and total uncompressed size; entries which are
+ * larger than that limit (or whose size is unknown) are inflated on demand by the consumer.
+ *
+ * Plain (and gzipped) files are opened lazily by the consumer, using
+ * {@link BaseCommandlineTool#fileAsInputStream(String)}.
+ *
+ * @author Aaron Dunlop
+ */
+public class InputDecoder implements Iterator<InputDecoder.Input> {
+
+    /** Separates an archive filename from an entry name */
+    public final static char ENTRY_SEPARATOR = '!';
+
+    /** Maximum total size of archive entries inflated ahead of the consumer */
+    private final static long DEFAULT_READ_AHEAD_BYTES = 64 * 1024 * 1024;
+
+    private final BaseCommandlineTool tool;
+    private final Iterator<String> filenames;
+    private final ExecutorService executor;
+    private final int maxReadAheadEntries;
+    private final long maxReadAheadBytes;
+
+    /** Inputs opened (or being inflated), in order */
+    private final LinkedList<PendingInput> pending = new LinkedList<PendingInput>();
+    private long readAheadBytes;
+
+    /** The archive currently being expanded (if any) */
+    private Archive currentArchive;
+    private Enumeration<? extends ZipEntry> currentEntries;
+
+    /**
+     * @param tool The tool reading input (used to open plain files)
+     * @param filenames Input filenames
+     * @param threads Decoder threads
+     */
+    public InputDecoder(final BaseCommandlineTool tool, final Iterator<String> filenames, final int threads) {
+        this(tool, filenames, threads, DEFAULT_READ_AHEAD_BYTES);
+    }
+
+    /**
+     * @param tool The tool reading input (used to open plain files)
+     * @param filenames Input filenames
+     * @param threads Decoder threads
+     * @param maxReadAheadBytes Maximum total size of archive entries inflated ahead of the consumer
+     */
+    public InputDecoder(final BaseCommandlineTool tool, final Iterator<String> filenames, final int threads,
+            final long maxReadAheadBytes) {
+        this.tool = tool;
+        this.filenames = filenames;
+        this.maxReadAheadEntries = Math.max(threads, 1) * 4;
+        this.maxReadAheadBytes = maxReadAheadBytes;
+        this.executor = BaseCommandlineTool.newDaemonPool(threads, "InputDecoder");
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            fill();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (pending.isEmpty()) {
+            executor.shutdown();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Input next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final PendingInput p = pending.removeFirst();
+        readAheadBytes -= p.size;
+        try {
+            return p.future.get();
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Queues inputs (and begins inflating archive entries) up to the read-ahead limits
+     */
+    private void fill() throws IOException {
+        while (pending.size() < maxReadAheadEntries) {
+
+            if (currentEntries != null) {
+                if (!currentEntries.hasMoreElements()) {
+                    currentArchive.release();
+                    currentArchive = null;
+                    currentEntries = null;
+                    continue;
+                }
+
+                final ZipEntry entry = currentEntries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final String name = currentArchive.name + ENTRY_SEPARATOR + entry.getName();
+                final Archive archive = currentArchive;
+                final long size = entry.getSize();
+
+                if (size >= 0 && size <= maxReadAheadBytes) {
+                    if (readAheadBytes + size > maxReadAheadBytes && !pending.isEmpty()) {
+                        // We'll have to wait until the consumer catches up
+                        currentEntries = new PushbackEnumeration(entry, currentEntries);
+                        return;
+                    }
+                    // Inflate the entry in the background
+                    archive.acquire();
+                    final FutureTask<Input> task = new FutureTask<Input>(new Callable<Input>() {
+                        @Override
+                        public Input call() throws Exception {
+                            try {
+                                final byte[] buf = new byte[(int) size];
+                                final InputStream is = archive.zipFile.getInputStream(entry);
+                                int offset = 0;
+                                while (offset < buf.length) {
+                                    final int n = is.read(buf, offset, buf.length - offset);
+                                    if (n < 0) {
+                                        break;
+                                    }
+                                    offset += n;
+                                }
+                                is.close();
+                                return new Input(name, decode(new ByteArrayInputStream(buf, 0, offset)));
+                            } finally {
+                                archive.release();
+                            }
+                        }
+                    });
+                    pending.add(new PendingInput(task, size));
+                    readAheadBytes += size;
+                    executor.execute(task);
+
+                } else {
+                    // Too large (or of unknown size); the consumer will inflate it
+                    archive.acquire();
+                    pending.add(new PendingInput(new CompletedFuture(new Input(name, new LazyInputStream() {
+                        @Override
+                        protected InputStream open() throws IOException {
+                            return decode(archive.zipFile.getInputStream(entry));
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            archive.release();
+                        }
+                    })), 0));
+                }
+                continue;
+            }
+
+            if (!filenames.hasNext()) {
+                return;
+            }
+
+            final String filename = filenames.next();
+            final File f = new File(filename);
+            if (f.isFile() && isZipArchive(f)) {
+                currentArchive = new Archive(filename, new ZipFile(f));
+                currentEntries = currentArchive.zipFile.entries();
+            } else {
+                // Open plain files on demand
+                pending.add(new PendingInput(new CompletedFuture(new Input(filename, new LazyInputStream() {
+                    @Override
+                    protected InputStream open() throws IOException {
+                        return tool.fileAsInputStream(filename);
+                    }
+                })), 0));
+            }
+        }
+    }
+
+    /**
+     * Opens the specified file (or archive entry, specified as <code>archive!entry</code>), decompressing
+     * as appropriate. A zip archive opened directly is treated as the concatenation of all its entries.
+     *
+     * @param filename
+     * @return {@link InputStream}
+     * @throws IOException
+     */
+    public static InputStream open(final String filename) throws IOException {
+        final int separator = filename.indexOf(ENTRY_SEPARATOR);
+        if (separator > 0 && !new File(filename).exists()) {
+            final File archiveFile = new File(filename.substring(0, separator));
+            if (archiveFile.isFile()) {
+                final ZipFile archive = new ZipFile(archiveFile);
+                final ZipEntry entry = archive.getEntry(filename.substring(separator + 1));
+                if (entry == null) {
+                    archive.close();
+                    throw new IOException("Unable to find archive entry: " + filename);
+                }
+                return new FilterInputStream(decode(archive.getInputStream(entry))) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        archive.close();
+                    }
+                };
+            }
+        }
+
+        final InputStream is = decode(new FileInputStream(filename));
+        if (is.markSupported() && isZipArchive(is)) {
+            return new ConcatenatedZipInputStream(is);
+        }
+        return is;
+    }
+
+    /**
+     * Wraps an {@link InputStream}, decompressing GZIP'd content (detected from the GZIP magic bytes).
+     *
+     * @param is
+     * @return Decoded stream (supporting {@link InputStream#mark(int)})
+     * @throws IOException
+     */
+    public static InputStream decode(final InputStream is) throws IOException {
+        final InputStream bis = is.markSupported() ? is : new BufferedInputStream(is, 65536);
+        bis.mark(2);
+        final int b0 = bis.read();
+        final int b1 = bis.read();
+        bis.reset();
+
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(bis, 65536), 65536);
+        }
+        return bis;
+    }
+
+    /**
+     * @param f
+     * @return True if the specified file begins with the zip 'local file header' magic bytes
+     * @throws IOException
+     */
+    public static boolean isZipArchive(final File f) throws IOException {
+        final InputStream is = new BufferedInputStream(new FileInputStream(f), 4);
+        try {
+            return isZipArchive(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static boolean isZipArchive(final InputStream is) throws IOException {
+        is.mark(4);
+        final boolean zip = is.read() == 'P' && is.read() == 'K' && is.read() == 3 && is.read() == 4;
+        is.reset();
+        return zip;
+    }
+
+    /**
+     * A single decoded input (a file or an archive entry)
+     */
+    public static class Input {
+        public final String name;
+        public final InputStream stream;
+
+        public Input(final String name, final InputStream stream) {
+            this.name = name;
+            this.stream = stream;
+        }
+    }
+
+    private static class PendingInput {
+        private final Future<Input> future;
+        private final long size;
+
+        public PendingInput(final Future<Input> future, final long size) {
+            this.future = future;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An open archive, closed when all its entries have been enumerated and consumed
+     */
+    private static class Archive {
+        private final String name;
+        private final ZipFile zipFile;
+
+        /** One reference for the enumeration, plus one for each entry not yet consumed */
+        private int references = 1;
+
+        public Archive(final String name, final ZipFile zipFile) {
+            this.name = name;
+            this.zipFile = zipFile;
+        }
+
+        public synchronized void acquire() {
+            references++;
+        }
+
+        public synchronized void release() throws IOException {
+            if (--references == 0) {
+                zipFile.close();
+            }
+        }
+    }
+
+    /**
+     * A {@link Future} whose value is already known
+     */
+    private static class CompletedFuture implements Future<Input> {
+        private final Input input;
+
+        public CompletedFuture(final Input input) {
+            this.input = input;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public Input get() throws InterruptedException, ExecutionException {
+            return input;
+        }
+
+        @Override
+        public Input get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException {
+            return get();
+        }
+    }
+
+    /**
+     * Defers opening the underlying stream until the first read
+     */
+    private abstract static class LazyInputStream extends InputStream {
+        private InputStream is;
+
+        protected abstract InputStream open() throws IOException;
+
+        private InputStream stream() throws IOException {
+            if (is == null) {
+                is = open();
+            }
+            return is;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return stream().read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return stream().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return is == null ? 0 : is.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a single 'pushed back' entry, followed by the remainder of an enumeration
+     */
+    private static class PushbackEnumeration implements Enumeration<ZipEntry> {
+        private ZipEntry first;
+        private final Enumeration<? extends ZipEntry> rest;
+
+        public PushbackEnumeration(final ZipEntry first, final Enumeration<? extends ZipEntry> rest) {
+            this.first = first;
+            this.rest = rest;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return first != null || rest.hasMoreElements();
+        }
+
+        @Override
+        public ZipEntry nextElement() {
+            if (first != null) {
+                final ZipEntry e = first;
+                first = null;
+                return e;
+            }
+            return rest.nextElement();
+        }
+    }
+
+    /**
+     * Reads all entries of a zip archive as a single stream
+     */
+    private static class ConcatenatedZipInputStream extends InputStream {
+        private final ZipInputStream zis;
+        private InputStream currentEntry;
+
+        public ConcatenatedZipInputStream(final InputStream is) throws IOException {
+            this.zis = new ZipInputStream(is);
+            nextEntry();
+        }
+
+        private void nextEntry() throws IOException {
+            currentEntry = null;
+            for (ZipEntry e = zis.getNextEntry(); e != null; e = zis.getNextEntry()) {
+                if (!e.isDirectory()) {
+                    // Entries may themselves be gzipped
+                    currentEntry = decode(new FilterInputStream(zis) {
+                        @Override
+                        public void close() {
+                            // Closing an entry must not close the archive
+                        }
+                    });
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (currentEntry != null) {
+                final int c = currentEntry.read();
+                if (c != -1) {
+                    return c;
+                }
+                nextEntry();
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            while (currentEntry != null) {
+                final int n = currentEntry.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                nextEntry();
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            zis.close();
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package cltool4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Expands input arguments (files, directories, and glob patterns) into a stream of input files. Directories
+ * are walked recursively, and glob patterns are expanded by the same walker (so large input sets need not
+ * pass through the shell, avoiding ARG_MAX limits and serial shell expansion). Directory listings are read by
+ * a pool of walker threads, and files are handed to the consumer as soon as the listings preceding them are
+ * complete, so processing can begin long before the walk completes.
+ *
+ * Input paths may also be read from a 'files-from' list (one path per line), which is consumed as a stream;
+ * entries in that list are expanded in the same manner as command-line arguments.
+ *
+ * Files are returned in argument order, and within each directory in sorted order (depth-first), as a serial
+ * walk would return them, regardless of the order in which the walker threads complete their listings. If
+ * 'largest-first' ordering is requested, the walk must complete before the first file is returned; files are
+ * then returned in descending order of size (ties in walk order), so that large files are not left until
+ * last.
+ *
+ * Glob patterns support '*' and '?' (neither of which match '/'), '**' (matching across directory levels),
+ * character classes ('[abc]', '[!abc]'), and alternation ('{a,b}'). As in most shells, wildcards do not
+ * match a leading '.' in a file or directory name. A directory matching a glob is walked recursively.
+ *
+ * @author Aaron Dunlop
+ */
+public class InputFileWalker implements Iterator<String> {
+
+    /** Marks the end of the argument stream */
+    private final static String END_OF_FILES = new String("");
+
+    private final String[] args;
+    private final BufferedReader filesFrom;
+    private final boolean largestFirst;
+
+    private final ExecutorService executor;
+
+    /** Expanded arguments, in argument order - plain file paths and {@link Listing}s */
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+    /**
+     * The number of outstanding walk tasks, plus one for the argument producer. When this count reaches 0,
+     * the walk is complete.
+     */
+    private final AtomicInteger pendingTasks = new AtomicInteger(1);
+
+    /** Iterators over the listings currently being returned, innermost last */
+    private final ArrayDeque<Iterator<Object>> listings = new ArrayDeque<Iterator<Object>>();
+
+    /** Files in descending order of size, if largest-first ordering was requested (populated on first use) */
+    private Iterator<String> sizedFiles;
+
+    private String next;
+    private boolean endOfFiles;
+
+    /**
+     * @param args Files, directories, and glob patterns
+     * @param filesFrom A list of input paths, one per line (optional; may be null)
+     * @param threads The number of threads to use when walking directories
+     * @param largestFirst Return files in descending order of size (requires completing the walk before
+     *            returning the first file)
+     */
+    public InputFileWalker(final String[] args, final BufferedReader filesFrom, final int threads,
+            final boolean largestFirst) {
+        this.args = args;
+        this.filesFrom = filesFrom;
+        this.largestFirst = largestFirst;
+        this.executor = BaseCommandlineTool.newDaemonPool(threads, "InputFileWalker");
+    }
+
+    /**
+     * Begins expanding arguments and walking directories
+     */
+    public void start() {
+        final Thread producer = new Thread("InputFileWalker") {
+            @Override
+            public void run() {
+                try {
+                    for (final String arg : args) {
+                        expand(arg);
+                    }
+
+                    if (filesFrom != null) {
+                        for (String path = filesFrom.readLine(); path != null; path = filesFrom.readLine()) {
+                            if (path.length() > 0) {
+                                expand(path);
+                            }
+                        }
+                        filesFrom.close();
+                    }
+                } catch (final IOException e) {
+                    BaseCommandlineTool.globalLogger.severe("Error reading input file list: "
+                            + e.getMessage());
+                } finally {
+                    taskComplete();
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Expands a single argument - either a file (returned as-is), a directory (walked recursively), or a glob
+     * pattern.
+     *
+     * @param path
+     */
+    private void expand(final String path) {
+        if (isGlob(path)) {
+            // Walk from the deepest directory which does not include any wildcards
+            int baseEnd = path.length();
+            for (int i = 0; i < path.length(); i++) {
+                if ("*?[{".indexOf(path.charAt(i)) >= 0) {
+                    baseEnd = i;
+                    break;
+                }
+            }
+            baseEnd = path.lastIndexOf('/', baseEnd) + 1;
+            final String prefix = path.substring(0, baseEnd);
+
+            // Without '**', the pattern limits the depth of the walk
+            final String remainder = path.substring(baseEnd);
+            int maxDepth = Integer.MAX_VALUE;
+            if (!remainder.contains("**")) {
+                maxDepth = 0;
+                for (int i = 0; i < remainder.length(); i++) {
+                    if (remainder.charAt(i) == '/') {
+                        maxDepth++;
+                    }
+                }
+            }
+
+            final File dir = new File(prefix.length() == 0 ? "." : prefix);
+            queue.add(submit(dir, prefix, globToRegex(path), maxDepth));
+
+        } else if (new File(path).isDirectory()) {
+            queue.add(submit(new File(path), path.endsWith("/") ? path : path + '/', null, Integer.MAX_VALUE));
+        } else {
+            // Return plain files as-is (even if they don't exist; that error will be reported when opening)
+            queue.add(path);
+        }
+    }
+
+    /**
+     * Submits a directory for listing
+     *
+     * @return A {@link Listing}, which will be populated when the directory has been listed
+     */
+    private Listing submit(final File dir, final String prefix, final Pattern pattern, final int remainingDepth) {
+        final Listing listing = new Listing();
+        pendingTasks.incrementAndGet();
+        executor.execute(new WalkTask(listing, dir, prefix, pattern, remainingDepth));
+        return listing;
+    }
+
+    private void taskComplete() {
+        if (pendingTasks.decrementAndGet() == 0) {
+            // The walk is complete
+            queue.add(END_OF_FILES);
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !endOfFiles) {
+            try {
+                if (largestFirst) {
+                    if (sizedFiles == null) {
+                        sortBySize();
+                    }
+                    next = sizedFiles.hasNext() ? sizedFiles.next() : null;
+                } else {
+                    next = nextInWalkOrder();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            endOfFiles = (next == null);
+        }
+        return next != null;
+    }
+
+    /**
+     * Returns the next file in walk order, waiting for directory listings as necessary
+     *
+     * @return The next file, or null at the end of the walk
+     * @throws InterruptedException if interrupted while waiting for a listing
+     */
+    private String nextInWalkOrder() throws InterruptedException {
+        while (true) {
+            final Object entry;
+            if (listings.isEmpty()) {
+                entry = queue.take();
+                if (entry == END_OF_FILES) {
+                    return null;
+                }
+            } else if (listings.getLast().hasNext()) {
+                entry = listings.getLast().next();
+            } else {
+                listings.removeLast();
+                continue;
+            }
+
+            if (entry instanceof Listing) {
+                listings.addLast(((Listing) entry).await().iterator());
+            } else {
+                return (String) entry;
+            }
+        }
+    }
+
+    /**
+     * Completes the walk and sorts all files by size
+     *
+     * @throws InterruptedException if interrupted while waiting for a listing
+     */
+    private void sortBySize() throws InterruptedException {
+        final ArrayList<SizedFile> files = new ArrayList<SizedFile>();
+        for (String path = nextInWalkOrder(); path != null; path = nextInWalkOrder()) {
+            files.add(new SizedFile(path, new File(path).length()));
+        }
+        // A stable sort, so files of equal size remain in walk order
+        Collections.sort(files);
+
+        final ArrayList<String> paths = new ArrayList<String>(files.size());
+        for (final SizedFile f : files) {
+            paths.add(f.path);
+        }
+        sizedFiles = paths.iterator();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final String path = next;
+        next = null;
+        return path;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @param path
+     * @return True if the specified path includes glob wildcards
+     */
+    public static boolean isGlob(final String path) {
+        for (int i = 0; i < path.length(); i++) {
+            switch (path.charAt(i)) {
+            case '*':
+            case '?':
+            case '[':
+            case '{':
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Translates a glob pattern into an equivalent regular expression
+     *
+     * @param glob
+     * @return Compiled regular expression
+     */
+    static Pattern globToRegex(final String glob) {
+        final StringBuilder sb = new StringBuilder(glob.length() * 2);
+        boolean inAlternation = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            final boolean startOfName = (i == 0 || glob.charAt(i - 1) == '/');
+
+            switch (c) {
+            case '*':
+                if (startOfName) {
+                    sb.append("(?!\\.)");
+                }
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    // '**/' matches zero or more directory levels
+                    if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                        sb.append("(?:[^/]*/)*");
+                        i += 2;
+                    } else {
+                        sb.append(".*");
+                        i++;
+                    }
+                } else {
+                    sb.append("[^/]*");
+                }
+                break;
+
+            case '?':
+                sb.append(startOfName ? "[^/.]" : "[^/]");
+                break;
+
+            case '[':
+                final int end = glob.indexOf(']', i + 2);
+                if (end < 0) {
+                    sb.append("\\[");
+                    break;
+                }
+                sb.append('[');
+                int j = i + 1;
+                if (glob.charAt(j) == '!' || glob.charAt(j) == '^') {
+                    sb.append('^');
+                    j++;
+                }
+                for (; j < end; j++) {
+                    final char cc = glob.charAt(j);
+                    if (cc == '\\' || cc == '[' || cc == '&') {
+                        sb.append('\\');
+                    }
+                    sb.append(cc);
+                }
+                sb.append(']');
+                i = end;
+                break;
+
+            case '{':
+                sb.append("(?:");
+                inAlternation = true;
+                break;
+
+            case '}':
+                if (inAlternation) {
+                    sb.append(')');
+                    inAlternation = false;
+                } else {
+                    sb.append("\\}");
+                }
+                break;
+
+            case ',':
+                sb.append(inAlternation ? "|" : ",");
+                break;
+
+            default:
+                if ("\\.^$+()|".indexOf(c) >= 0) {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     * The contents of a directory, in sorted order - matching file paths, and {@link Listing}s of
+     * subdirectories. Populated by a {@link WalkTask}.
+     */
+    private static class Listing {
+        private List<Object> entries;
+
+        public synchronized void complete(final List<Object> e) {
+            this.entries = e;
+            notifyAll();
+        }
+
+        public synchronized List<Object> await() throws InterruptedException {
+            while (entries == null) {
+                wait();
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Lists a single directory, recording matching files and submitting subdirectories for walking
+     */
+    private class WalkTask implements Runnable {
+        private final Listing listing;
+        private final File dir;
+        private final String prefix;
+        private final Pattern pattern;
+        private final int remainingDepth;
+
+        /**
+         * @param listing Populated with the directory's contents
+         * @param dir Directory to list
+         * @param prefix Path prefix for entries in this directory (as it should be returned to the consumer)
+         * @param pattern Glob pattern (null when walking a directory named explicitly)
+         * @param remainingDepth The maximum depth to descend from this directory
+         */
+        public WalkTask(final Listing listing, final File dir, final String prefix, final Pattern pattern,
+                final int remainingDepth) {
+            this.listing = listing;
+            this.dir = dir;
+            this.prefix = prefix;
+            this.pattern = pattern;
+            this.remainingDepth = remainingDepth;
+        }
+
+        @Override
+        public void run() {
+            final ArrayList<Object> entries = new ArrayList<Object>();
+            try {
+                final String[] children = dir.list();
+                if (children == null) {
+                    BaseCommandlineTool.globalLogger.warning("Unable to read directory: " + dir);
+                    return;
+                }
+                Arrays.sort(children);
+
+                for (final String child : children) {
+                    final String path = prefix + child;
+                    final File f = new File(dir, child);
+
+                    if (pattern == null || pattern.matcher(path).matches()) {
+                        if (f.isDirectory()) {
+                            entries.add(submit(f, path + '/', null, Integer.MAX_VALUE));
+                        } else {
+                            entries.add(path);
+                        }
+                    } else if (remainingDepth > 0 && f.isDirectory()) {
+                        entries.add(submit(f, path + '/', pattern, remainingDepth - 1));
+                    }
+                }
+            } finally {
+                // Always complete the listing (even if empty), so the consumer does not wait indefinitely
+                listing.complete(entries);
+                taskComplete();
+            }
+        }
+    }
+
+    private static class SizedFile implements Comparable<SizedFile> {
+        private final String path;
+        private final long size;
+
+        public SizedFile(final String path, final long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(final SizedFile o) {
+            // Descending order of size
+            return size > o.size ? -1 : (size < o.size ? 1 : 0);
+        }
+    }
+}
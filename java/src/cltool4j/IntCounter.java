@@ -0,0 +1,274 @@
+package cltool4j;
+
+/**
+ * A concurrent map from <code>int</code> keys (e.g., {@link SymbolTable} IDs) to <code>long</code> counts,
+ * without boxing. The <code>int</code>-keyed equivalent of {@link LongCounter} (which describes locking,
+ * merging, and iteration), using 4 bytes less per key.
+ *
+ * @author Aaron Dunlop
+ */
+public class IntCounter implements Mergeable<IntCounter> {
+
+    private final static int DEFAULT_STRIPES = 64;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    /**
+     * Creates a counter with the default number of lock stripes
+     */
+    public IntCounter() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes Number of lock stripes (rounded up to a power of 2; 1 for a counter updated by a single
+     *            thread)
+     */
+    public IntCounter(final int stripes) {
+        final int n = Integer.highestOneBit(Math.max(stripes * 2 - 1, 1));
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeShift = 64 - Integer.numberOfTrailingZeros(n);
+    }
+
+    private Stripe stripe(final long hash) {
+        return stripes.length == 1 ? stripes[0] : stripes[(int) (hash >>> stripeShift)];
+    }
+
+    /**
+     * Increments the count of a key
+     *
+     * @param key
+     * @return The new count
+     */
+    public long increment(final int key) {
+        return add(key, 1);
+    }
+
+    /**
+     * Adds to the count of a key
+     *
+     * @param key
+     * @param delta
+     * @return The new count
+     */
+    public long add(final int key, final long delta) {
+        final long hash = DistinctFilter.mix(key);
+        final Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            return stripe.add(key, hash, delta);
+        }
+    }
+
+    /**
+     * @param key
+     * @return The count of the key (0 if it has not been counted)
+     */
+    public long get(final int key) {
+        final long hash = DistinctFilter.mix(key);
+        final Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            return stripe.get(key, hash);
+        }
+    }
+
+    /**
+     * @return The number of distinct keys counted
+     */
+    public long size() {
+        long size = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The sum of all counts
+     */
+    public long total() {
+        long total = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.keys.length; i++) {
+                    total += stripe.counts[i];
+                }
+                total += stripe.zeroCount;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Copies the counter. Each stripe is copied atomically, so the copy reflects every update which completed
+     * before the snapshot began, and no partial updates.
+     *
+     * @return A copy of the counter
+     */
+    public IntCounter snapshot() {
+        final IntCounter copy = new IntCounter(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                copy.stripes[i] = stripes[i].copy();
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Adds all counts from another counter
+     */
+    @Override
+    public void merge(final IntCounter other) {
+        for (final Cursor c = other.snapshot().cursor(); c.next();) {
+            add(c.key(), c.count());
+        }
+    }
+
+    /**
+     * Returns a cursor over all keys and counts, in no particular order. Not synchronized with updates.
+     *
+     * @return A cursor, positioned before the first key
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Iterates over the keys and counts of a {@link IntCounter} without allocation:
+     *
+     * <pre>
+     * for (final IntCounter.Cursor c = counter.cursor(); c.next();) {
+     *     output(c.key() + &quot;\t&quot; + c.count());
+     * }
+     * </pre>
+     */
+    public final class Cursor {
+        private int stripe;
+        private int slot = -2;
+        private int key;
+        private long count;
+
+        private Cursor() {
+        }
+
+        /**
+         * Advances to the next key
+         *
+         * @return False if there are no more keys
+         */
+        public boolean next() {
+            for (; stripe < stripes.length; stripe++, slot = -2) {
+                final Stripe s = stripes[stripe];
+                if (slot == -2) {
+                    slot = -1;
+                    if (s.hasZero) {
+                        key = 0;
+                        count = s.zeroCount;
+                        return true;
+                    }
+                }
+                while (++slot < s.keys.length) {
+                    if (s.keys[slot] != 0) {
+                        key = s.keys[slot];
+                        count = s.counts[slot];
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public int key() {
+            return key;
+        }
+
+        public long count() {
+            return count;
+        }
+    }
+
+    /**
+     * An open-addressing table (linear probing). Key 0 denotes an empty slot, so its count is stored
+     * separately.
+     */
+    private final static class Stripe {
+        private final static double MAX_LOAD = 0.6;
+
+        private int[] keys = new int[16];
+        private long[] counts = new long[16];
+        private int size;
+        private boolean hasZero;
+        private long zeroCount;
+
+        public long add(final int key, final long hash, final long delta) {
+            if (key == 0) {
+                if (!hasZero) {
+                    hasZero = true;
+                    size++;
+                }
+                return zeroCount += delta;
+            }
+            final int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return counts[i] += delta;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            counts[i] = delta;
+            if (++size > keys.length * MAX_LOAD) {
+                rehash();
+            }
+            return delta;
+        }
+
+        public long get(final int key, final long hash) {
+            if (key == 0) {
+                return zeroCount;
+            }
+            final int mask = keys.length - 1;
+            for (int i = (int) hash & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return counts[i];
+                }
+            }
+            return 0;
+        }
+
+        private void rehash() {
+            final int[] oldKeys = keys;
+            final long[] oldCounts = counts;
+            keys = new int[oldKeys.length * 2];
+            counts = new long[oldKeys.length * 2];
+            final int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != 0) {
+                    int i = (int) DistinctFilter.mix(oldKeys[j]) & mask;
+                    while (keys[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    counts[i] = oldCounts[j];
+                }
+            }
+        }
+
+        public Stripe copy() {
+            final Stripe copy = new Stripe();
+            copy.keys = keys.clone();
+            copy.counts = counts.clone();
+            copy.size = size;
+            copy.hasZero = hasZero;
+            copy.zeroCount = zeroCount;
+            return copy;
+        }
+    }
+}
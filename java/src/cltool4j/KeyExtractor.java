@@ -0,0 +1,15 @@
+package cltool4j;
+
+/**
+ * Extracts a key from an output record (e.g., for partitioning or sorting output by key).
+ *
+ * @author Aaron Dunlop
+ */
+public interface KeyExtractor {
+
+    /**
+     * @param record
+     * @return The record's key
+     */
+    public CharSequence key(String record);
+}
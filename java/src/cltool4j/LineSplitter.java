@@ -0,0 +1,391 @@
+package cltool4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a byte stream into lines, without the intermediate character buffering of
+ * {@link java.io.BufferedReader#readLine()}. Lines are terminated by '\n' (a preceding '\r' is stripped, but
+ * unlike {@link java.io.BufferedReader}, a bare '\r' is not treated as a line terminator), or by a custom
+ * single-byte delimiter (e.g. '\0'). Delimiters are located with {@link ByteScanner}, which scans a word at a
+ * time.
+ *
+ * Memory consumption is bounded by a configurable maximum line length. Lines exceeding that length are
+ * reported as 'oversized', and their content is available only as a stream (see {@link #lineStream()}), so
+ * even a pathologically long line (e.g. a minified JSON dump) can be processed (or set aside) without
+ * materializing it in memory.
+ *
+ * Buffers are never reused; when a buffer is exhausted, a new one is allocated (and any partial line copied
+ * into it). A line's bytes therefore remain valid after the splitter moves on to subsequent lines.
+ *
+ * @author Aaron Dunlop
+ */
+public class LineSplitter {
+
+    private final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream is;
+    private final int maxLineLength;
+    private final Charset charset;
+    private final byte delimiter;
+
+    /** True if a '\r' preceding the delimiter should be stripped (i.e., when splitting on '\n') */
+    private final boolean stripCarriageReturn;
+
+    private byte[] buf = new byte[0];
+
+    /** Start of the current line */
+    private int lineStart;
+
+    /** End of the current line (exclusive of the terminator) */
+    private int lineEnd;
+
+    /** Start of unread data */
+    private int position;
+
+    /** End of valid data in {@link #buf} */
+    private int limit;
+
+    private boolean eof;
+    private boolean oversized;
+
+    /** Stream over the content of the current oversized line */
+    private LineStream lineStream;
+
+    /**
+     * @param is Input
+     * @param maxLineLength Maximum length (in bytes) of a line which will be buffered in memory. Longer lines
+     *            will be reported as 'oversized'. 0 denotes no limit.
+     * @param charset Character set used to decode lines
+     */
+    public LineSplitter(final InputStream is, final int maxLineLength, final Charset charset) {
+        this(is, maxLineLength, charset, (byte) '\n');
+    }
+
+    /**
+     * @param is Input
+     * @param maxLineLength Maximum length (in bytes) of a line which will be buffered in memory. Longer lines
+     *            will be reported as 'oversized'. 0 denotes no limit.
+     * @param charset Character set used to decode lines
+     * @param delimiter Line (record) delimiter
+     */
+    public LineSplitter(final InputStream is, final int maxLineLength, final Charset charset,
+            final byte delimiter) {
+        this.is = is;
+        this.maxLineLength = maxLineLength > 0 ? maxLineLength : Integer.MAX_VALUE - 8;
+        this.charset = charset;
+        this.delimiter = delimiter;
+        this.stripCarriageReturn = (delimiter == '\n');
+    }
+
+    /**
+     * @param is Input
+     */
+    public LineSplitter(final InputStream is) {
+        this(is, 0, Charset.defaultCharset());
+    }
+
+    /**
+     * Advances to the next line.
+     *
+     * @return False if the end of input has been reached
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean next() throws IOException {
+        if (oversized) {
+            // Discard any remaining content of the previous line
+            lineStream.skipToEnd();
+            lineStream = null;
+            oversized = false;
+        }
+
+        int scanFrom = position;
+        while (true) {
+            final int newline = ByteScanner.indexOf(delimiter, buf, scanFrom, limit);
+            if (newline >= 0) {
+                lineStart = position;
+                lineEnd = (stripCarriageReturn && newline > position && buf[newline - 1] == '\r') ? newline - 1
+                        : newline;
+                position = newline + 1;
+                if (lineEnd - lineStart > maxLineLength) {
+                    // Already buffered, but report it as oversized, for consistency
+                    oversized = true;
+                    lineStream = new LineStream(true);
+                }
+                return true;
+            }
+
+            if (limit - position >= maxLineLength) {
+                // Oversized line
+                lineStart = position;
+                lineEnd = limit;
+                position = limit;
+                oversized = true;
+                lineStream = new LineStream(false);
+                return true;
+            }
+
+            if (eof) {
+                if (position == limit) {
+                    return false;
+                }
+                // Final line, without a terminator
+                lineStart = position;
+                lineEnd = limit;
+                if (stripCarriageReturn && buf[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                position = limit;
+                return true;
+            }
+
+            // fill() may move the unread data to a new buffer, so track the scan position relative to it
+            final int scanned = limit - position;
+            fill();
+            scanFrom = position + scanned;
+        }
+    }
+
+    /**
+     * Reads more data, moving the unread portion of the current buffer into a new buffer if necessary
+     */
+    private void fill() throws IOException {
+        if (limit == buf.length) {
+            final int remaining = limit - position;
+            final int size = Math.max(DEFAULT_BUFFER_SIZE,
+                    (int) Math.min(remaining * 2L, (long) maxLineLength + 1));
+            final byte[] newBuf = new byte[size];
+            System.arraycopy(buf, position, newBuf, 0, remaining);
+            buf = newBuf;
+            position = 0;
+            limit = remaining;
+        }
+
+        final int n = is.read(buf, limit, Math.min(buf.length - limit, maxLineLength - (limit - position)));
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    /**
+     * @return True if the current line exceeds the maximum line length. Oversized lines can only be read
+     *         using {@link #lineStream()}.
+     */
+    public boolean oversized() {
+        return oversized;
+    }
+
+    /**
+     * @return The current line, decoded to a {@link String}
+     * @throws IllegalStateException if the current line is oversized
+     */
+    public String line() {
+        if (oversized) {
+            throw new IllegalStateException("Oversized line");
+        }
+        return new String(buf, lineStart, lineEnd - lineStart, charset);
+    }
+
+    /**
+     * @return The buffer containing the current line (which remains valid after advancing to the next line)
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * @return Offset of the current line in {@link #buffer()}
+     */
+    public int start() {
+        return lineStart;
+    }
+
+    /**
+     * @return Length of the current line in bytes (excluding the line terminator)
+     */
+    public int length() {
+        return lineEnd - lineStart;
+    }
+
+    /**
+     * @return A stream over the content of the current line (excluding the line terminator). For an oversized
+     *         line, the stream reads from the underlying input, and is valid only until the next call to
+     *         {@link #next()}.
+     */
+    public InputStream lineStream() {
+        if (oversized) {
+            return lineStream;
+        }
+        return new ByteArrayInputStream(buf, lineStart, lineEnd - lineStart);
+    }
+
+    /**
+     * Copies the content of the current line (including any unread remainder of an oversized line) to the
+     * specified {@link OutputStream}, followed by the delimiter.
+     *
+     * @param os
+     * @throws IOException if an I/O error occurs
+     */
+    public void copyLine(final OutputStream os) throws IOException {
+        final InputStream line = lineStream();
+        final byte[] tmp = new byte[8192];
+        for (int n = line.read(tmp); n >= 0; n = line.read(tmp)) {
+            os.write(tmp, 0, n);
+        }
+        os.write(delimiter);
+    }
+
+    /**
+     * @return Character set used to decode lines
+     */
+    public Charset charset() {
+        return charset;
+    }
+
+    /**
+     * Parses a single-byte delimiter specified on the command-line. Accepts a single character or one of the
+     * escapes \\0, \\t, \\n, \\r, and \\\\.
+     *
+     * @param delimiter
+     * @return The delimiter as a byte in the default character set
+     * @throws IllegalArgumentException if the delimiter is not a single-byte character
+     */
+    public static byte parseDelimiter(final String delimiter) {
+        String d = delimiter;
+        if (d.length() == 2 && d.charAt(0) == '\\') {
+            final int escape = "0tnr\\".indexOf(d.charAt(1));
+            if (escape >= 0) {
+                d = String.valueOf("\0\t\n\r\\".charAt(escape));
+            }
+        }
+
+        final byte[] bytes = d.getBytes(Charset.defaultCharset());
+        if (bytes.length != 1) {
+            throw new IllegalArgumentException("Delimiter must be a single-byte character: " + delimiter);
+        }
+        return bytes[0];
+    }
+
+    /**
+     * Streams an oversized line, first from the buffered prefix, and then directly from the underlying input
+     * (without buffering), until the end of the line.
+     */
+    private class LineStream extends InputStream {
+        /** Unread portion of the buffered prefix */
+        private int bufferedStart = lineStart;
+        private int bufferedEnd = lineEnd;
+
+        private boolean endOfLine;
+
+        /**
+         * @param complete True if the entire line is already buffered
+         */
+        public LineStream(final boolean complete) {
+            this.endOfLine = complete;
+            if (!complete && stripCarriageReturn && buf[bufferedEnd - 1] == '\r') {
+                // Treat a trailing '\r' as unread, since it may precede the line terminator
+                bufferedEnd--;
+                position--;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (bufferedStart < bufferedEnd) {
+                final int n = Math.min(len, bufferedEnd - bufferedStart);
+                System.arraycopy(buf, bufferedStart, b, off, n);
+                bufferedStart += n;
+                return n;
+            }
+
+            if (endOfLine) {
+                return -1;
+            }
+
+            // Return data from the underlying stream up to the newline, stripping a '\r' preceding it. We
+            // hold back a '\r' at the end of the buffer until we know whether it terminates the line.
+            while (true) {
+                if (limit - position <= 1 && !eof) {
+                    refill();
+                    continue;
+                }
+                if (position == limit) {
+                    endOfLine = true;
+                    return -1;
+                }
+
+                final int scanEnd = Math.min(limit, position + len + 1);
+                final int newline = ByteScanner.indexOf(delimiter, buf, position, scanEnd);
+                int end;
+                if (newline >= 0) {
+                    end = (stripCarriageReturn && newline > position && buf[newline - 1] == '\r') ? newline - 1
+                            : newline;
+                } else {
+                    end = Math.min(scanEnd, position + len);
+                    if (stripCarriageReturn && end == limit && buf[end - 1] == '\r') {
+                        end--;
+                        if (eof) {
+                            // A final '\r' at the end of input
+                            endOfLine = true;
+                            position = limit;
+                        } else if (end == position) {
+                            continue;
+                        }
+                    }
+                }
+
+                final int n = end - position;
+                System.arraycopy(buf, position, b, off, n);
+                if (newline >= 0) {
+                    position = newline + 1;
+                    endOfLine = true;
+                } else if (!endOfLine) {
+                    position = end;
+                }
+                return n > 0 ? n : -1;
+            }
+        }
+
+        /**
+         * Reads more data into a new buffer (we never overwrite a buffer which might contain earlier lines),
+         * preserving any unread bytes.
+         */
+        private void refill() throws IOException {
+            final int remaining = limit - position;
+            final byte[] newBuf = new byte[DEFAULT_BUFFER_SIZE];
+            System.arraycopy(buf, position, newBuf, 0, remaining);
+            buf = newBuf;
+            position = 0;
+            limit = remaining;
+            final int n = is.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+
+        /**
+         * Discards the remainder of the line
+         */
+        void skipToEnd() throws IOException {
+            final byte[] tmp = new byte[8192];
+            while (read(tmp, 0, tmp.length) >= 0) {
+            }
+        }
+    }
+}
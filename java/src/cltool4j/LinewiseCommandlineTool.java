@@ -1,18 +1,25 @@
 package cltool4j;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
+
+import cltool4j.args4j.CmdLineException;
+import cltool4j.args4j.CmdLineParser;
+import cltool4j.args4j.Option;
 
 /**
  * Processes input (from files or STDIN) line-by-line (possibly using multiple threads). Subclasses
- * must implement a {@link Callable} task to do the processing.
+ * must implement a {@link java.util.concurrent.Callable} task to do the processing.
  *
  * @author Aaron Dunlop
  * @since Nov 5, 2008
@@ -22,105 +29,476 @@ import java.util.concurrent.LinkedBlockingQueue;
 @Threadable
 public abstract class LinewiseCommandlineTool extends BaseCommandlineTool
 {
+    @Option(name = "-max-line", metaVar = "bytes", usage = "Maximum line length. Longer lines are streamed to the tool if supported, or quarantined (0 = unlimited)")
+    protected int maxLineLength = 0;
+
+    @Option(name = "-quarantine", metaVar = "file", usage = "Write lines longer than -max-line to file")
+    protected File quarantineFile;
+
+    @Option(name = "-rs", metaVar = "char", usage = "Input record separator (default = newline). Accepts escapes such as \\0 and \\t")
+    protected String recordSeparator;
+
+    @Option(name = "-partitions", metaVar = "count", usage = "Hash-partition -output by key into count files")
+    protected int partitions = 0;
+
+    @Option(name = "-key", metaVar = "field", usage = "Output key field (tab-delimited, 1-based) for -partitions and -sort")
+    protected int keyField = 1;
+
+    @Option(name = "-sort", usage = "Sort output by key")
+    protected boolean sortOutput = false;
+
+    @Option(name = "-sort-numeric", usage = "Sort output by numeric key")
+    protected boolean sortNumeric = false;
+
+    @Option(name = "-sort-buffer", metaVar = "bytes", usage = "Memory for -sort (spills to disk beyond it; default = share of -memory)")
+    protected long sortBuffer = 0;
+
+    @Option(name = "-distinct", metaVar = "stage", usage = "Drop duplicate input lines (before processing) or duplicate output records")
+    protected DistinctStage distinct;
+
+    @Option(name = "-distinct-fpr", metaVar = "rate", usage = "Approximate -distinct, with the specified false-positive rate (0 = exact)")
+    protected double distinctFalsePositiveRate = 0;
+
+    @Option(name = "-distinct-records", metaVar = "count", usage = "Expected distinct records (sizes approximate -distinct)")
+    protected long distinctRecords = 100000000;
+
+    @Option(name = "-distinct-buffer", metaVar = "bytes", usage = "Off-heap memory for exact -distinct (spills to disk beyond it; default = share of -memory)")
+    protected long distinctBuffer = 0;
+
+    @Option(name = "-warm-up-lines", metaVar = "count", usage = "Process the first count lines (discarding their output) before processing input. Mergeable thread-local results are discarded; tasks must not have other side effects")
+    protected int warmUpLines = 0;
+
+    @Option(name = "-side-input", metaVar = "file", usage = "Memory-mapped key/value side input, built with BuildSideInput (see sideInput())")
+    protected File sideInputFile;
+
+    /**
+     * The maximum number of lines queued for processing (or awaiting output) per thread. Bounds the memory
+     * consumed by input read ahead of the worker threads (and by results waiting for earlier lines to
+     * complete).
+     */
+    protected final static int QUEUED_LINES_PER_THREAD = 1024;
+
     // A simple marker denoting the end of input lines.
-    protected final static FutureTask<String> END_OF_INPUT_MARKER = new FutureTask<String>(new Callable<String>()
+    protected final static FutureTask<String> END_OF_INPUT_MARKER = OrderedTaskExecutor.END_OF_INPUT_MARKER;
+
+    /** Per-thread field cursors (see {@link #fields(CharSequence)}) */
+    private final static ThreadLocal<FieldCursor> fieldCursors = new ThreadLocal<FieldCursor>()
     {
         @Override
-        public String call() throws Exception
+        protected FieldCursor initialValue()
         {
-            return null;
+            return new FieldCursor();
         }
-    });
+    };
+
+    private OutputStream quarantine;
+    private int oversizedLines;
+
+    private SideInput sideInput;
 
     @Override
     public final void run() throws Exception
     {
-        final BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        if (sideInputFile != null)
+        {
+            sideInput = SideInput.open(sideInputFile);
+        }
+        beginInput();
 
-        if (maxThreads == 1)
+        final LineSplitter splitter = new LineSplitter(System.in, maxLineLength, Charset.defaultCharset(),
+            recordSeparator != null ? LineSplitter.parseDelimiter(recordSeparator) : (byte) '\n');
+        if (quarantineFile != null)
         {
-            // Single-threaded version is simple...
-            for (String line = br.readLine(); line != null; line = br.readLine())
+            quarantine = new BufferedOutputStream(new FileOutputStream(quarantineFile));
+        }
+
+        RecordOutput recordOutput = output();
+        SortingOutput sortingOutput = null;
+        if (sortOutput || sortNumeric)
+        {
+            sortingOutput = new SortingOutput(recordOutput, keyExtractor(), keyComparator(), sortBuffer > 0
+                ? sortBuffer : memoryBudget().share(MemoryBudget.SORT), maxThreads, null);
+            recordOutput = sortingOutput;
+        }
+
+        final DistinctFilter distinctFilter = distinct != null ? (distinctFalsePositiveRate > 0 ? DistinctFilter
+            .approximate(distinctRecords, distinctFalsePositiveRate) : DistinctFilter.exact(distinctBuffer > 0
+            ? distinctBuffer : memoryBudget().share(MemoryBudget.DISTINCT), null)) : null;
+        if (distinct == DistinctStage.output)
+        {
+            recordOutput = new DistinctOutput(recordOutput, distinctFilter);
+        }
+
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(maxThreads, maxThreads
+            * QUEUED_LINES_PER_THREAD, recordOutput);
+
+        beforeDispatch(executor);
+
+        // Optionally process a sample of input (discarding the output) before processing it for real
+        final ArrayList<SampleLine> sample = new ArrayList<SampleLine>();
+        boolean more = splitter.next();
+        if (warmUpLines > 0)
+        {
+            for (; more && !splitter.oversized() && sample.size() < warmUpLines; more = splitter.next())
             {
-                final FutureTask<String> lineTask = lineTask(line);
-                lineTask.run();
-                final String result = lineTask.get();
-                if (result.length() > 0)
-                {
-                    System.out.println(result);
-                }
+                sample.add(new SampleLine(splitter.line(), splitter.buffer(), splitter.start(), splitter
+                    .length()));
             }
-            br.close();
+            warmUp(executor, sample);
         }
-        else
+        for (final SampleLine l : sample)
         {
-            // For the multi-threaded version, we need to create a separate thread which will
-            // collect the output and spit it out in-order
-            final BlockingQueue<FutureTask<String>> outputQueue = new LinkedBlockingQueue<FutureTask<String>>();
-            final OutputThread outputThread = new OutputThread(outputQueue);
-            outputThread.start();
-
-            final ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+            dispatch(executor, distinctFilter, l.line, l.buf, l.start, l.length);
+        }
 
-            for (String line = br.readLine(); line != null; line = br.readLine())
+        for (; more; more = splitter.next())
+        {
+            if (splitter.oversized())
             {
-                final FutureTask<String> futureTask = lineTask(line);
-                outputQueue.add(futureTask);
-                executor.execute(futureTask);
+                // Oversized lines are consumed directly from the input stream, so they must be
+                // processed here, before we read any further (and are never deduplicated by '-distinct input')
+                final FutureTask<String> lineTask = oversizedLine(splitter);
+                if (lineTask != null)
+                {
+                    executor.executeInline(lineTask);
+                }
+                continue;
             }
-            br.close();
+            dispatch(executor, distinctFilter, null, splitter.buffer(), splitter.start(), splitter.length());
+        }
+        executor.shutdown();
+        endOfInput();
+
+        if (sortingOutput != null)
+        {
+            sortingOutput.finish();
+            memoryBudget().reportUsage(MemoryBudget.SORT, sortingOutput.peakBytes());
+        }
+        if (distinctFilter != null)
+        {
+            globalLogger.fine("Distinct " + distinct + " records: " + distinctFilter.count());
+            memoryBudget().reportUsage(MemoryBudget.DISTINCT, distinctFilter.bytes());
+            distinctFilter.close();
+        }
 
-            // Enqueue a marker
-            outputQueue.add(END_OF_INPUT_MARKER);
+        if (quarantine != null)
+        {
+            quarantine.close();
+        }
+        if (oversizedLines > 0)
+        {
+            globalLogger.warning(oversizedLines + " line(s) exceeded " + maxLineLength + " bytes and were "
+                + (quarantine != null ? "written to " + quarantineFile : "skipped"));
+        }
+    }
 
-            // The output thread will exit when it comes to the termination marker
-            outputThread.join();
-            executor.shutdown();
+    /**
+     * Dispatches a line to a worker thread
+     *
+     * @param line The line (or null to decode it from the buffer)
+     */
+    private void dispatch(final OrderedTaskExecutor executor, final DistinctFilter distinctFilter, String line,
+        final byte[] buf, final int start, final int length) throws Exception
+    {
+        if (distinct == DistinctStage.input && !distinctFilter.add(buf, start, length))
+        {
+            return;
+        }
+        if (line == null)
+        {
+            line = new String(buf, start, length, Charset.defaultCharset());
         }
+        // Pass along the line's bytes, so a task which returns its input unchanged can be output without
+        // re-encoding. The splitter never reuses buffers, so the bytes remain valid until output.
+        executor.execute(lineTask(line), line, buf, start, length);
     }
 
     /**
-     * @return a {@link FutureTask} which will process an input line and return a String as output.
+     * Processes a sample of input lines, discarding their output, so the JIT compiler (and any lazily
+     * initialized state) is warmed up before input is processed for real (see <code>-warm-up-lines</code>).
      */
-    protected abstract FutureTask<String> lineTask(String line);
+    private void warmUp(final OrderedTaskExecutor executor, final List<SampleLine> sample) throws Exception
+    {
+        final long start = System.currentTimeMillis();
+        final ArrayList<FutureTask<String>> tasks = new ArrayList<FutureTask<String>>();
+        for (final SampleLine l : sample)
+        {
+            tasks.add(lineTask(l.line));
+        }
+        executor.executeAndDiscard(tasks);
+        afterWarmUp(executor);
+        globalLogger.fine("Warmed up with " + sample.size() + " lines in " + (System.currentTimeMillis() - start)
+            + " ms");
+    }
+
+    /**
+     * Called once the worker threads have been created, before any input is dispatched to them. A framework
+     * hook for subclasses such as {@link ThreadLocalLinewiseClTool}.
+     */
+    void beforeDispatch(final OrderedTaskExecutor executor) throws Exception
+    {
+    }
 
-    private static class OutputThread extends Thread
+    /**
+     * Called once the warm-up sample has been processed (see <code>-warm-up-lines</code>), before it is
+     * dispatched again as input. A framework hook for subclasses such as {@link ThreadLocalLinewiseClTool}.
+     */
+    void afterWarmUp(final OrderedTaskExecutor executor) throws Exception
+    {
+    }
+
+    /**
+     * Called once, after {@link #setup(CmdLineParser)} and before any input is read. A framework hook for
+     * subclasses such as {@link SharedModelLinewiseClTool}.
+     */
+    void beginInput() throws Exception
     {
+    }
 
-        private final BlockingQueue<FutureTask<String>> queue;
+    /**
+     * Called when all input lines have been processed (and their output written), before
+     * {@link #cleanup()}. A framework hook for subclasses such as {@link ThreadLocalLinewiseClTool}.
+     */
+    void endOfInput() throws Exception
+    {
+    }
 
-        public OutputThread(final BlockingQueue<FutureTask<String>> queue)
+    /**
+     * Registers <code>-sort</code> and exact <code>-distinct</code> for shares of the memory budget, unless
+     * their sizes are specified explicitly. Sorting is weighted more heavily, since its in-heap representation
+     * is less compact than the off-heap fingerprint table.
+     */
+    @Override
+    void planMemory(final MemoryBudget budget)
+    {
+        if ((sortOutput || sortNumeric) && sortBuffer == 0)
+        {
+            budget.register(MemoryBudget.SORT, 2);
+        }
+        if (distinct != null && distinctFalsePositiveRate == 0 && distinctBuffer == 0)
         {
-            this.queue = queue;
+            budget.register(MemoryBudget.DISTINCT, 1);
         }
+    }
 
-        @Override
-        public void run()
+    /**
+     * @return Heap which in-memory buffers may occupy: the shares of <code>-memory</code> (except the off-heap
+     *         <code>-distinct</code> table), and any <code>-sort-buffer</code> specified explicitly
+     */
+    long bufferHeap()
+    {
+        long bytes = memoryBudget().sharesExcept(MemoryBudget.DISTINCT);
+        if ((sortOutput || sortNumeric) && sortBuffer > 0)
         {
-            while (true)
+            bytes += sortBuffer;
+        }
+        return bytes;
+    }
+
+    @Override
+    void validateOptions(final CmdLineParser parser) throws CmdLineException
+    {
+        if (partitions > 0 && outputFile == null)
+        {
+            throw new CmdLineException(parser, "-partitions requires -output");
+        }
+        if (partitions > 0 && (shardLines > 0 || shardBytes > 0))
+        {
+            throw new CmdLineException(parser, "-partitions cannot be combined with -shard-lines or -shard-bytes");
+        }
+        if (keyField < 1)
+        {
+            throw new CmdLineException(parser, "Invalid key field: " + keyField);
+        }
+        if (distinctFalsePositiveRate < 0 || distinctFalsePositiveRate >= 1)
+        {
+            throw new CmdLineException(parser, "Invalid false-positive rate: " + distinctFalsePositiveRate);
+        }
+        if (sideInputFile != null && !sideInputFile.exists())
+        {
+            throw new CmdLineException(parser, "Unable to find file: " + sideInputFile);
+        }
+        if (sortBuffer < 0 || distinctBuffer < 0)
+        {
+            throw new CmdLineException(parser, "Invalid buffer size: " + Math.min(sortBuffer, distinctBuffer));
+        }
+    }
+
+    @Override
+    protected RecordOutput createOutput(final File f, final int writerThreads) throws IOException
+    {
+        if (partitions > 0)
+        {
+            return new PartitionedOutput(f, partitions, keyExtractor(), gzipShards, writerThreads);
+        }
+        return super.createOutput(f, writerThreads);
+    }
+
+    private KeyExtractor keyExtractor()
+    {
+        return new KeyExtractor()
+        {
+            @Override
+            public CharSequence key(final String record)
             {
-                try
-                {
-                    final FutureTask<String> task = queue.take();
-                    if (task == END_OF_INPUT_MARKER)
-                    {
-                        return;
-                    }
-                    final String output = task.get();
-                    if (output.length() > 0)
-                    {
-                        System.out.println(output);
-                    }
-                    System.out.flush();
-                }
-                catch (final InterruptedException ignore)
-                {}
-                catch (final ExecutionException e)
-                {
-                    e.printStackTrace();
-                    return;
-                }
+                return outputKey(record);
             }
+        };
+    }
+
+    /**
+     * Returns the comparator used to sort output keys (see <code>-sort</code>). The default implementation
+     * compares keys lexicographically, or numerically if <code>-sort-numeric</code> is specified. Tools may
+     * override this method (and {@link #outputKey(String)}) to implement other orderings, such as multi-field
+     * keys.
+     *
+     * @return Key comparator
+     */
+    protected Comparator<CharSequence> keyComparator()
+    {
+        return sortNumeric ? SortingOutput.NUMERIC : SortingOutput.LEXICOGRAPHIC;
+    }
+
+    /**
+     * Returns the key of an output record, used to partition or sort output (see <code>-partitions</code> and
+     * <code>-sort</code>). The default implementation returns the tab-delimited field specified by
+     * <code>-key</code> (or an empty key if the record has fewer fields). Tools with other output formats may
+     * override this method.
+     *
+     * @param record Output record
+     * @return The record's key
+     */
+    protected CharSequence outputKey(final String record)
+    {
+        // Note: we don't use the per-thread field cursor, since an EmittingTask may write output (and thus
+        // call this method) while it is itself using the cursor
+        int start = 0;
+        for (int i = 1; i < keyField; i++)
+        {
+            start = record.indexOf('\t', start) + 1;
+            if (start == 0)
+            {
+                return "";
+            }
+        }
+        final int end = record.indexOf('\t', start);
+        return record.subSequence(start, end >= 0 ? end : record.length());
+    }
+
+    /**
+     * Handles an oversized line, either by streaming it to {@link #longLineTask(Reader)} or by writing it
+     * to the quarantine file.
+     */
+    private FutureTask<String> oversizedLine(final LineSplitter splitter) throws IOException
+    {
+        final FutureTask<String> task = longLineTask(new InputStreamReader(splitter.lineStream(),
+            splitter.charset()));
+        if (task != null)
+        {
+            return task;
+        }
+
+        oversizedLines++;
+        if (quarantine != null)
+        {
+            splitter.copyLine(quarantine);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a {@link FutureTask} which will process a line longer than the maximum line length (see
+     * <code>-max-line</code>). The line is not materialized in memory; instead, its content is available as
+     * a stream, which can be consumed in segments of any size. Long-line tasks are executed on the input
+     * thread (since they read directly from the input stream), but their output is ordered with respect to
+     * other lines.
+     *
+     * The default implementation returns null, in which case the line is written to the quarantine file (if
+     * specified with <code>-quarantine</code>) or skipped. Tools which can process a record incrementally
+     * should override this method.
+     *
+     * @param line The content of the line. Valid only until the returned task completes.
+     * @return a {@link FutureTask} which will process the long line and return a String as output, or null
+     *         if the tool does not support streaming long lines.
+     */
+    protected FutureTask<String> longLineTask(final Reader line)
+    {
+        return null;
+    }
+
+    /**
+     * Returns the side input specified with <code>-side-input</code>, shared by all threads. Available once
+     * input processing begins (including in {@link SharedModelLinewiseClTool#loadModel()}).
+     *
+     * @return The side input, or null if none was specified
+     */
+    protected final SideInput sideInput()
+    {
+        return sideInput;
+    }
+
+    /**
+     * Returns the calling thread's {@link FieldCursor}, reset to the beginning of a tab-delimited line. The
+     * cursor is reused by subsequent calls on the same thread, so it should not be retained beyond the
+     * processing of a single line.
+     *
+     * @param line
+     * @return A per-thread field cursor
+     */
+    protected static FieldCursor fields(final CharSequence line)
+    {
+        return fieldCursors.get().reset(line, '\t');
+    }
+
+    /**
+     * Returns the calling thread's {@link FieldCursor}, reset to the beginning of a line.
+     *
+     * @param line
+     * @param delimiter Field delimiter
+     * @return A per-thread field cursor
+     */
+    protected static FieldCursor fields(final CharSequence line, final char delimiter)
+    {
+        return fieldCursors.get().reset(line, delimiter);
+    }
+
+    /**
+     * Returns a {@link FutureTask} which will process an input line and return a String as output. A task
+     * which returns the input line itself (the same String instance, as is typical of filters) will have the
+     * original input bytes copied directly to the output, without re-encoding.
+     *
+     * @param line Input line
+     * @return a {@link FutureTask} which will process an input line and return a String as output.
+     */
+    protected abstract FutureTask<String> lineTask(String line);
+
+    /**
+     * A line read ahead of processing (see <code>-warm-up-lines</code>)
+     */
+    private static class SampleLine
+    {
+        private final String line;
+        private final byte[] buf;
+        private final int start;
+        private final int length;
+
+        public SampleLine(final String line, final byte[] buf, final int start, final int length)
+        {
+            this.line = line;
+            this.buf = buf;
+            this.start = start;
+            this.length = length;
         }
     }
+
+    /**
+     * Deduplication stages (see <code>-distinct</code>)
+     */
+    public static enum DistinctStage
+    {
+        /** Drop duplicate input lines before dispatching them to tasks */
+        input,
+        /** Drop duplicate output records (in output order, so the first occurrence is retained) */
+        output;
+    }
 }
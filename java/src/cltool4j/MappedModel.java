@@ -0,0 +1,353 @@
+package cltool4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only binary model file, memory-mapped outside the Java heap. Since the mapping is backed by the page
+ * cache, all processes on a host which map the same file share a single copy of the model, and 'loading' a
+ * multi-GB model is nearly instantaneous (pages are read on first access, or not at all if another process
+ * has already read them), compared with deserializing it into each process's heap.
+ *
+ * A model file contains one or more named sections of flat binary data (arrays of weights, hash tables,
+ * etc.), written with {@link Writer} and accessed by offset from a {@link Section}. All values are
+ * big-endian (as written by {@link java.io.DataOutput}). Reads are thread-safe, so a single instance can be
+ * shared by all worker threads (see {@link SharedModelLinewiseClTool}).
+ *
+ * Typical usage:
+ *
+ * <pre>
+ * protected Model loadModel() throws Exception {
+ *     final MappedModel.Section weights = MappedModel.open(modelFile).section(&quot;weights&quot;);
+ *     return new Model(weights);
+ * }
+ * </pre>
+ *
+ * @author Aaron Dunlop
+ */
+public final class MappedModel {
+
+    private final static long MAGIC = 0x636c746f6f6c4d4dL; // "cltoolMM"
+    private final static int VERSION = 1;
+
+    /** Size of each mapped segment (a single mapping is limited to 2 GB) */
+    private final static int DEFAULT_SEGMENT_BITS = 30;
+
+    /**
+     * Segments overlap by this many bytes, so any primitive value can be read from a single segment, regardless
+     * of alignment.
+     */
+    private final static int SEGMENT_OVERLAP = 8;
+
+    private final File file;
+    private final long length;
+    private final int segmentBits;
+    private final long segmentMask;
+    private final MappedByteBuffer[] segments;
+    private final Map<String, Section> sections = new LinkedHashMap<String, Section>();
+
+    private MappedModel(final File file, final int segmentBits) throws IOException {
+        this.file = file;
+        this.segmentBits = segmentBits;
+        this.segmentMask = (1L << segmentBits) - 1;
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            this.length = raf.length();
+            final FileChannel channel = raf.getChannel();
+            this.segments = new MappedByteBuffer[(int) ((length + segmentMask) >> segmentBits)];
+            for (int s = 0; s < segments.length; s++) {
+                final long start = (long) s << segmentBits;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(length - start, (1L << segmentBits) + SEGMENT_OVERLAP));
+            }
+        } finally {
+            // The mappings remain valid after the file is closed
+            raf.close();
+        }
+
+        // Trailer: directory offset, magic
+        if (length < 24 || getLong(0) != MAGIC || getLong(length - 8) != MAGIC) {
+            throw new IOException("Not a model file: " + file);
+        }
+        long offset = getLong(length - 16);
+        if (getInt(offset) != VERSION) {
+            throw new IOException("Unsupported model version " + getInt(offset) + ": " + file);
+        }
+        final int count = getInt(offset + 4);
+        offset += 8;
+        for (int i = 0; i < count; i++) {
+            final byte[] name = new byte[getInt(offset)];
+            get(offset + 4, name, 0, name.length);
+            offset += 4 + name.length;
+            final Section section = new Section(getLong(offset), getLong(offset + 8));
+            offset += 16;
+            sections.put(new String(name, "UTF-8"), section);
+        }
+    }
+
+    /**
+     * Maps a model file
+     *
+     * @param file
+     * @return The mapped model
+     * @throws IOException if the file cannot be mapped, or is not a model file
+     */
+    public static MappedModel open(final File file) throws IOException {
+        return new MappedModel(file, DEFAULT_SEGMENT_BITS);
+    }
+
+    /**
+     * Maps a model file with the specified segment size (for unit testing)
+     */
+    static MappedModel open(final File file, final int segmentBits) throws IOException {
+        return new MappedModel(file, segmentBits);
+    }
+
+    /**
+     * @param name
+     * @return The named section
+     * @throws IllegalArgumentException if the model does not contain the section
+     */
+    public Section section(final String name) {
+        final Section section = sections.get(name);
+        if (section == null) {
+            throw new IllegalArgumentException("No section '" + name + "' in " + file);
+        }
+        return section;
+    }
+
+    /**
+     * @return The names of all sections, in the order written
+     */
+    public Set<String> sections() {
+        return Collections.unmodifiableSet(sections.keySet());
+    }
+
+    /**
+     * Reads the entire model into the page cache (e.g., to avoid page faults while processing input). Unnecessary
+     * if another process has already done so.
+     */
+    public void load() {
+        for (final MappedByteBuffer segment : segments) {
+            segment.load();
+        }
+    }
+
+    private MappedByteBuffer segment(final long offset) {
+        return segments[(int) (offset >> segmentBits)];
+    }
+
+    private int index(final long offset) {
+        return (int) (offset & segmentMask);
+    }
+
+    private int getInt(final long offset) {
+        return segment(offset).getInt(index(offset));
+    }
+
+    private long getLong(final long offset) {
+        return segment(offset).getLong(index(offset));
+    }
+
+    private void get(long offset, final byte[] dst, int off, int len) {
+        while (len > 0) {
+            // Position a duplicate, since the segment itself is shared by other threads
+            final ByteBuffer segment = segment(offset).duplicate();
+            final int index = index(offset);
+            final int n = (int) Math.min(len, (1L << segmentBits) - index);
+            segment.position(index);
+            segment.get(dst, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * A named section of a model. Offsets are relative to the beginning of the section.
+     */
+    public final class Section {
+        private final long start;
+        private final long length;
+
+        private Section(final long start, final long length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * @return Section length (bytes)
+         */
+        public long length() {
+            return length;
+        }
+
+        private long offset(final long offset, final int size) {
+            if (offset < 0 || offset + size > length) {
+                throw new IndexOutOfBoundsException("Offset " + offset + " (section length " + length + ")");
+            }
+            return start + offset;
+        }
+
+        public byte getByte(final long offset) {
+            final long o = offset(offset, 1);
+            return segment(o).get(index(o));
+        }
+
+        public short getShort(final long offset) {
+            final long o = offset(offset, 2);
+            return segment(o).getShort(index(o));
+        }
+
+        public int getInt(final long offset) {
+            final long o = offset(offset, 4);
+            return segment(o).getInt(index(o));
+        }
+
+        public long getLong(final long offset) {
+            final long o = offset(offset, 8);
+            return segment(o).getLong(index(o));
+        }
+
+        public float getFloat(final long offset) {
+            final long o = offset(offset, 4);
+            return segment(o).getFloat(index(o));
+        }
+
+        public double getDouble(final long offset) {
+            final long o = offset(offset, 8);
+            return segment(o).getDouble(index(o));
+        }
+
+        /**
+         * Copies bytes from the section
+         *
+         * @param offset Offset within the section
+         * @param dst Destination array
+         * @param off Offset within <code>dst</code>
+         * @param len Number of bytes
+         */
+        public void get(final long offset, final byte[] dst, final int off, final int len) {
+            MappedModel.this.get(offset(offset, len), dst, off, len);
+        }
+    }
+
+    /**
+     * Writes a model file. Each section's data is written to the stream returned by
+     * {@link #beginSection(String)}, and ends when the next section begins (or the writer is closed). Sections
+     * are aligned on 8-byte boundaries.
+     */
+    public static class Writer {
+        private final CountingOutputStream counter;
+        private final DataOutputStream os;
+        private final Map<String, long[]> sections = new LinkedHashMap<String, long[]>();
+        private long[] current;
+
+        /**
+         * @param file Model file
+         * @throws IOException if the file cannot be created
+         */
+        public Writer(final File file) throws IOException {
+            this.counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    256 * 1024));
+            this.os = new DataOutputStream(counter);
+            os.writeLong(MAGIC);
+        }
+
+        /**
+         * Begins a new section
+         *
+         * @param name Section name (must be unique within the model)
+         * @return A stream to which the section's data should be written
+         * @throws IOException if an I/O error occurs
+         */
+        public DataOutputStream beginSection(final String name) throws IOException {
+            if (sections.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate section: " + name);
+            }
+            endSection();
+            current = new long[] { counter.count, 0 };
+            sections.put(name, current);
+            return os;
+        }
+
+        private void endSection() throws IOException {
+            os.flush();
+            if (current != null) {
+                current[1] = counter.count - current[0];
+                current = null;
+            }
+            // Pad to an 8-byte boundary
+            while (counter.count % 8 != 0) {
+                os.write(0);
+            }
+        }
+
+        /**
+         * Ends the last section, and writes the section directory
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        public void close() throws IOException {
+            endSection();
+            os.flush();
+            final long directory = counter.count;
+            os.writeInt(VERSION);
+            os.writeInt(sections.size());
+            for (final Map.Entry<String, long[]> e : sections.entrySet()) {
+                final byte[] name = e.getKey().getBytes("UTF-8");
+                os.writeInt(name.length);
+                os.write(name);
+                os.writeLong(e.getValue()[0]);
+                os.writeLong(e.getValue()[1]);
+            }
+            os.writeLong(directory);
+            os.writeLong(MAGIC);
+            os.close();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream os;
+        private long count;
+
+        public CountingOutputStream(final OutputStream os) {
+            this.os = os;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            os.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            os.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+        }
+    }
+}
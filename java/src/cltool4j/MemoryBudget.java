@@ -0,0 +1,165 @@
+package cltool4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single memory budget (see <code>-memory</code>), divided among the subsystems which buffer data in memory
+ * (output sorting, deduplication, aggregation, etc.). Replaces a separate size option per subsystem, each
+ * defaulting to a guess made without knowledge of the others.
+ *
+ * Each active subsystem registers a weight before any shares are allocated, and receives a share of the total
+ * in proportion to its weight. The framework registers its own subsystems before
+ * {@link BaseCommandlineTool#setup(cltool4j.args4j.CmdLineParser)}; tools may register their own in
+ * <code>setup()</code>:
+ *
+ * <pre>
+ * protected void setup(final CmdLineParser parser) {
+ *     memoryBudget().register(MemoryBudget.AGGREGATION, 2);
+ *     counter = new HashAggregator.Counter(memoryBudget().share(MemoryBudget.AGGREGATION));
+ * }
+ * </pre>
+ *
+ * Subsystems report the memory they actually used (see {@link #reportUsage(String, long)}), and the allocation
+ * and usage of each is logged at completion, for tuning the budget.
+ *
+ * @author Aaron Dunlop
+ */
+public class MemoryBudget {
+
+    /** In-memory runs of sorted output (see {@link SortingOutput}) */
+    public final static String SORT = "sort";
+
+    /** Deduplication table (see {@link DistinctFilter}) */
+    public final static String DISTINCT = "distinct";
+
+    /** Aggregation tables (see {@link HashAggregator}) */
+    public final static String AGGREGATION = "aggregation";
+
+    private final long total;
+    private final Map<String, Double> weights = new LinkedHashMap<String, Double>();
+    private final Map<String, Long> used = new LinkedHashMap<String, Long>();
+    private double totalWeight;
+
+    /** Set when the first share is allocated; subsequent registrations would invalidate earlier shares */
+    private boolean allocated;
+
+    /**
+     * @param total Total budget (bytes)
+     */
+    public MemoryBudget(final long total) {
+        if (total <= 0) {
+            throw new IllegalArgumentException("Invalid memory budget: " + total);
+        }
+        this.total = total;
+    }
+
+    /**
+     * @return Total budget (bytes)
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Registers a subsystem which will request a share of the budget
+     *
+     * @param subsystem
+     * @param weight Relative size of the subsystem's share
+     * @throws IllegalStateException if shares have already been allocated
+     */
+    public synchronized void register(final String subsystem, final double weight) {
+        if (allocated) {
+            throw new IllegalStateException("Memory budget already allocated; cannot register " + subsystem);
+        }
+        if (weight <= 0 || weights.containsKey(subsystem)) {
+            throw new IllegalArgumentException("Invalid registration: " + subsystem + " (weight " + weight + ")");
+        }
+        weights.put(subsystem, weight);
+        totalWeight += weight;
+    }
+
+    /**
+     * @param subsystem
+     * @return True if the subsystem has been registered
+     */
+    public synchronized boolean registered(final String subsystem) {
+        return weights.containsKey(subsystem);
+    }
+
+    /**
+     * Returns a subsystem's share of the budget. Once any share has been allocated, no further subsystems may
+     * be registered.
+     *
+     * @param subsystem A registered subsystem
+     * @return The subsystem's share of the budget (bytes)
+     * @throws IllegalArgumentException if the subsystem was not registered
+     */
+    public synchronized long share(final String subsystem) {
+        final Double weight = weights.get(subsystem);
+        if (weight == null) {
+            throw new IllegalArgumentException("Unregistered subsystem: " + subsystem);
+        }
+        allocated = true;
+        return (long) (total * (weight / totalWeight));
+    }
+
+    /**
+     * @param excluded Subsystems to exclude (e.g., those which allocate off-heap)
+     * @return The total of the shares of all registered subsystems except those excluded (bytes)
+     */
+    public synchronized long sharesExcept(final String... excluded) {
+        double weight = totalWeight;
+        for (final String subsystem : excluded) {
+            if (weights.containsKey(subsystem)) {
+                weight -= weights.get(subsystem);
+            }
+        }
+        return weight > 0 ? (long) (total * (weight / totalWeight)) : 0;
+    }
+
+    /**
+     * Records the memory used by a subsystem. Subsystems may report repeatedly; the largest value is retained.
+     * Subsystems sized by other options (and not registered) may also report their usage.
+     *
+     * @param subsystem
+     * @param bytes Memory used (bytes)
+     */
+    public synchronized void reportUsage(final String subsystem, final long bytes) {
+        final Long previous = used.get(subsystem);
+        if (previous == null || bytes > previous.longValue()) {
+            used.put(subsystem, bytes);
+        }
+    }
+
+    /**
+     * @param subsystem
+     * @return The largest usage reported by the subsystem (bytes), or 0 if none was reported
+     */
+    public synchronized long used(final String subsystem) {
+        final Long bytes = used.get(subsystem);
+        return bytes != null ? bytes.longValue() : 0;
+    }
+
+    /**
+     * @return True if no subsystems have registered or reported usage
+     */
+    public synchronized boolean isEmpty() {
+        return weights.isEmpty() && used.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder(String.format("Memory budget %d MB", total >> 20));
+        for (final String subsystem : weights.keySet()) {
+            sb.append(String.format("; %s: share %d MB, used %d MB", subsystem,
+                    (long) (total * (weights.get(subsystem) / totalWeight)) >> 20, used(subsystem) >> 20));
+        }
+        for (final String subsystem : used.keySet()) {
+            if (!weights.containsKey(subsystem)) {
+                sb.append(String.format("; %s: used %d MB", subsystem, used(subsystem) >> 20));
+            }
+        }
+        return sb.toString();
+    }
+}
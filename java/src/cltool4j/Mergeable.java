@@ -0,0 +1,19 @@
+package cltool4j;
+
+/**
+ * A partial result which can be combined with other partial results of the same type (e.g., per-thread totals
+ * or histograms). See {@link ThreadLocalLinewiseClTool}, which merges thread-local instances implementing this
+ * interface when input is complete.
+ *
+ * @author Aaron Dunlop
+ */
+public interface Mergeable<T> {
+
+    /**
+     * Merges another partial result into this one. The other instance is discarded afterward, so
+     * implementations may take ownership of its contents rather than copying them.
+     *
+     * @param other
+     */
+    public void merge(T other);
+}
@@ -0,0 +1,121 @@
+package cltool4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A fixed-length array of <code>long</code>s allocated outside the Java heap (so large tables add nothing to
+ * garbage-collection work), supporting volatile and compare-and-set access for lock-free concurrent
+ * structures. Memory is zeroed on allocation.
+ *
+ * Elements are stored in segments of direct {@link LongBuffer}s (as in {@link SymbolTable}), so the array is
+ * not limited to 2^31 elements. Volatile and compare-and-set access synchronize on one of a set of striped
+ * locks, which are rarely contended. Direct buffers count against the JVM's direct memory limit
+ * (<code>-XX:MaxDirectMemorySize</code>, by default equal to the maximum heap size).
+ *
+ * @author Aaron Dunlop
+ */
+final class OffHeapLongArray {
+
+    /** 2^27 elements (1 GB) per segment */
+    private final static int SEGMENT_BITS = 27;
+    private final static long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final static int LOCK_STRIPES = 1024;
+
+    private final long length;
+    private LongBuffer[] segments;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * @param length Number of elements
+     */
+    public OffHeapLongArray(final long length) {
+        this.length = length;
+        this.segments = new LongBuffer[(int) ((length + SEGMENT_MASK) >> SEGMENT_BITS)];
+        for (int s = 0; s < segments.length; s++) {
+            final long elements = Math.min(length - ((long) s << SEGMENT_BITS), 1L << SEGMENT_BITS);
+            segments[s] = ByteBuffer.allocateDirect((int) (elements * 8)).order(ByteOrder.nativeOrder())
+                    .asLongBuffer();
+        }
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long get(final long i) {
+        return segment(i).get((int) (i & SEGMENT_MASK));
+    }
+
+    public void set(final long i, final long value) {
+        segment(i).put((int) (i & SEGMENT_MASK), value);
+    }
+
+    public long getVolatile(final long i) {
+        final LongBuffer segment = segment(i);
+        synchronized (lock(i)) {
+            return segment.get((int) (i & SEGMENT_MASK));
+        }
+    }
+
+    public void setVolatile(final long i, final long value) {
+        final LongBuffer segment = segment(i);
+        synchronized (lock(i)) {
+            segment.put((int) (i & SEGMENT_MASK), value);
+        }
+    }
+
+    public boolean compareAndSet(final long i, final long expect, final long update) {
+        final LongBuffer segment = segment(i);
+        final int index = (int) (i & SEGMENT_MASK);
+        synchronized (lock(i)) {
+            if (segment.get(index) != expect) {
+                return false;
+            }
+            segment.put(index, update);
+            return true;
+        }
+    }
+
+    /**
+     * Zeroes all elements
+     */
+    public void clear() {
+        final long[] zeros = new long[8192];
+        for (long start = 0; start < length; start += 1L << SEGMENT_BITS) {
+            final LongBuffer segment = segment(start).duplicate();
+            segment.clear();
+            while (segment.remaining() > 0) {
+                segment.put(zeros, 0, Math.min(zeros.length, segment.remaining()));
+            }
+        }
+    }
+
+    /**
+     * Releases the array's segments; their memory is reclaimed when the buffers are garbage-collected. The
+     * array must not be accessed afterward (any access throws {@link IllegalStateException}).
+     */
+    public synchronized void free() {
+        segments = null;
+    }
+
+    private LongBuffer segment(final long i) {
+        if (i < 0 || i >= length) {
+            throw new ArrayIndexOutOfBoundsException(Long.toString(i));
+        }
+        final LongBuffer[] s = segments;
+        if (s == null) {
+            throw new IllegalStateException("Array has been freed");
+        }
+        return s[(int) (i >> SEGMENT_BITS)];
+    }
+
+    private Object lock(final long i) {
+        return locks[(int) (i & (LOCK_STRIPES - 1))];
+    }
+}
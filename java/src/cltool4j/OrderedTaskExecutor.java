@@ -0,0 +1,331 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The parallel, ordered execution engine shared by {@link LinewiseCommandlineTool} and
+ * {@link CsvCommandlineTool}. Executes {@link FutureTask}s on a pool of worker threads, and writes their
+ * results to a {@link RecordOutput} (generally STDOUT) in the order the tasks were submitted (empty results
+ * are suppressed). With a single thread, tasks are executed inline by the submitting thread.
+ *
+ * The number of queued tasks is bounded, so the submitting thread blocks rather than reading arbitrarily far
+ * ahead of the workers (or of a slow task holding up the output of its successors).
+ *
+ * Tasks may optionally be submitted with the encoded bytes of the input they process. If such a task returns
+ * the <em>same</em> String instance it was given as input (as is typical of filters), those bytes are written
+ * directly to the output, rather than re-encoding the result.
+ *
+ * {@link EmittingTask}s may write any number of output records, which are buffered (up to a bound) until all
+ * preceding tasks have been output.
+ *
+ * @author Aaron Dunlop
+ */
+public class OrderedTaskExecutor {
+
+    // A simple marker denoting the end of input
+    final static FutureTask<String> END_OF_INPUT_MARKER = new FutureTask<String>(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+            return null;
+        }
+    });
+
+    /** Discards all output */
+    private final static RecordOutput DISCARD = new RecordOutput() {
+        @Override
+        public void writeRecord(final String record) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private final int threads;
+    private final RecordOutput output;
+    private final BlockingQueue<QueuedTask> outputQueue;
+    private final ExecutorService executor;
+    private final OutputThread outputThread;
+
+    /** Set by the output thread if a task fails, or its output cannot be written */
+    private volatile boolean failed;
+
+    /**
+     * @param threads Worker threads
+     * @param maxQueuedTasks The maximum number of tasks queued (executing or awaiting output)
+     * @param output Destination for task results
+     */
+    public OrderedTaskExecutor(final int threads, final int maxQueuedTasks, final RecordOutput output) {
+        this.threads = threads;
+        this.output = output;
+        if (threads > 1) {
+            this.outputQueue = new LinkedBlockingQueue<QueuedTask>(maxQueuedTasks);
+            this.executor = Executors.newFixedThreadPool(threads);
+            // A separate thread collects the output and spits it out in-order
+            this.outputThread = new OutputThread();
+            outputThread.start();
+        } else {
+            this.outputQueue = null;
+            this.executor = null;
+            this.outputThread = null;
+        }
+    }
+
+    /**
+     * Writes task results to STDOUT
+     *
+     * @param threads Worker threads
+     * @param maxQueuedTasks The maximum number of tasks queued (executing or awaiting output)
+     */
+    public OrderedTaskExecutor(final int threads, final int maxQueuedTasks) {
+        this(threads, maxQueuedTasks, RecordOutput.forStream(System.out));
+    }
+
+    /**
+     * Executes a task, and queues its result for output
+     *
+     * @param task
+     * @throws InterruptedException if interrupted while waiting for queue space
+     * @throws ExecutionException if the task fails (when executing single-threaded)
+     * @throws IOException if an output error occurs (when executing single-threaded)
+     */
+    public void execute(final FutureTask<String> task) throws InterruptedException, ExecutionException,
+            IOException {
+        execute(new QueuedTask(task, null, null, 0, 0));
+    }
+
+    /**
+     * Executes a task, and queues its result for output. If the task returns <code>input</code> itself
+     * (compared by identity), the specified bytes are output in its place.
+     *
+     * @param task
+     * @param input Input String passed to the task
+     * @param buf Buffer containing the encoded input (must not be modified until the task's output is written)
+     * @param start Start of the encoded input in <code>buf</code>
+     * @param length Length of the encoded input
+     * @throws InterruptedException if interrupted while waiting for queue space
+     * @throws ExecutionException if the task fails (when executing single-threaded)
+     * @throws IOException if an output error occurs (when executing single-threaded)
+     */
+    public void execute(final FutureTask<String> task, final String input, final byte[] buf, final int start,
+            final int length) throws InterruptedException, ExecutionException, IOException {
+        execute(new QueuedTask(task, input, buf, start, length));
+    }
+
+    private void execute(final QueuedTask queuedTask) throws InterruptedException, ExecutionException,
+            IOException {
+        if (threads == 1) {
+            if (queuedTask.task instanceof EmittingTask) {
+                // Inline execution is always in order, so emitted records can be written directly
+                ((EmittingTask) queuedTask.task).beginOutput(output);
+            }
+            queuedTask.task.run();
+            queuedTask.output();
+            return;
+        }
+        outputQueue.put(queuedTask);
+        executor.execute(queuedTask.task);
+    }
+
+    /**
+     * Queues a task for output, and executes it on the calling thread (e.g., a task which must consume input
+     * before the submitting thread reads any further).
+     *
+     * @param task
+     * @throws InterruptedException if interrupted while waiting for queue space
+     * @throws ExecutionException if the task fails (when executing single-threaded)
+     * @throws IOException if an output error occurs (when executing single-threaded)
+     */
+    public void executeInline(final FutureTask<String> task) throws InterruptedException, ExecutionException,
+            IOException {
+        final QueuedTask queuedTask = new QueuedTask(task, null, null, 0, 0);
+        if (threads == 1) {
+            execute(queuedTask);
+            return;
+        }
+        // Queue the task before running it, so an EmittingTask can reach the head of the output order
+        outputQueue.put(queuedTask);
+        task.run();
+    }
+
+    /**
+     * Executes tasks on the worker threads and waits for them to complete, discarding their results (e.g., to
+     * warm up the JIT compiler before processing input). Must be called before any tasks are queued for output.
+     *
+     * @param tasks
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if a task fails
+     * @throws IOException never (the output is discarded)
+     */
+    public void executeAndDiscard(final List<FutureTask<String>> tasks) throws InterruptedException,
+            ExecutionException, IOException {
+        for (final FutureTask<String> task : tasks) {
+            if (task instanceof EmittingTask) {
+                ((EmittingTask) task).beginOutput(DISCARD);
+            }
+            if (threads == 1) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+        }
+        for (final FutureTask<String> task : tasks) {
+            task.get();
+        }
+    }
+
+    /**
+     * Runs a task once on each worker thread, concurrently (e.g., to initialize thread-local state before
+     * processing input). With a single thread, runs the task on the calling thread.
+     *
+     * @param task
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if the task fails
+     */
+    public void runOnEachThread(final Runnable task) throws InterruptedException, ExecutionException {
+        if (threads == 1) {
+            task.run();
+            return;
+        }
+
+        // Each task waits for all the others to start, so each occupies a different thread
+        final CountDownLatch started = new CountDownLatch(threads);
+        final ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws InterruptedException {
+                    started.countDown();
+                    started.await();
+                    task.run();
+                    return null;
+                }
+            }));
+        }
+        for (final Future<?> f : futures) {
+            f.get();
+        }
+    }
+
+    /**
+     * Waits for all queued tasks to complete and their output to be written, and shuts down the worker
+     * threads. Does not close the {@link RecordOutput}.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException if an output error occurs
+     */
+    public void shutdown() throws InterruptedException, IOException {
+        if (threads == 1) {
+            output.flush();
+            return;
+        }
+        // Enqueue a marker. The output thread will exit when it comes to the termination marker
+        outputQueue.put(new QueuedTask(END_OF_INPUT_MARKER, null, null, 0, 0));
+        outputThread.join();
+        if (failed) {
+            executor.shutdownNow();
+        } else {
+            executor.shutdown();
+        }
+        output.flush();
+    }
+
+    /**
+     * @return The executor used by worker threads (null if executing single-threaded)
+     */
+    ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * A task, and (optionally) the encoded form of its input
+     */
+    private class QueuedTask {
+        private final FutureTask<String> task;
+        private final String input;
+        private final byte[] buf;
+        private final int start;
+        private final int length;
+
+        public QueuedTask(final FutureTask<String> task, final String input, final byte[] buf, final int start,
+                final int length) {
+            this.task = task;
+            this.input = input;
+            this.buf = buf;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * Cancels the task (if it has not started), and discards any output it emits, so it cannot block waiting
+         * for its turn to output
+         */
+        void discard() throws IOException {
+            task.cancel(false);
+            if (task instanceof EmittingTask) {
+                ((EmittingTask) task).beginOutput(DISCARD);
+            }
+        }
+
+        /**
+         * Waits for the task to complete, and writes its result
+         */
+        void output() throws InterruptedException, ExecutionException, IOException {
+            if (task instanceof EmittingTask) {
+                ((EmittingTask) task).beginOutput(output);
+            }
+            final String result = task.get();
+            if (result == null || result.length() == 0) {
+                return;
+            }
+            if (result == input && buf != null) {
+                // Passthrough; write the original bytes
+                output.writeRecord(buf, start, length);
+            } else {
+                output.writeRecord(result);
+            }
+        }
+    }
+
+    private class OutputThread extends Thread {
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    final QueuedTask task = outputQueue.take();
+                    if (task.task == END_OF_INPUT_MARKER) {
+                        return;
+                    }
+                    if (failed) {
+                        // Keep draining the queue, so the input thread doesn't block (nor do any tasks waiting
+                        // to emit output)
+                        task.discard();
+                        continue;
+                    }
+                    task.output();
+                    // Flush after each task, so interactive output isn't delayed
+                    output.flush();
+                } catch (final InterruptedException ignore) {
+                } catch (final ExecutionException e) {
+                    e.printStackTrace();
+                    failed = true;
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                    failed = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package cltool4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hash-partitions output records by key into a fixed number of files, named <code>&lt;base&gt;.p00000</code>,
+ * <code>&lt;base&gt;.p00001</code>, etc. (with a <code>.gz</code> suffix if compressed). A record with key
+ * <code>k</code> is written to partition <code>(k.hashCode() &amp; 0x7fffffff) % partitions</code> (using
+ * {@link String#hashCode()}, so downstream consumers can compute the same partitioning). Records are written to
+ * each partition in the order they are received, so each partition preserves input order.
+ *
+ * Each partition is written by its own {@link BatchedFileWriter}, drawn from a shared pool of writer threads.
+ * Output written directly (rather than as records) is written to the first partition.
+ *
+ * This class is thread-safe, since it may also stand in for STDOUT.
+ *
+ * @author Aaron Dunlop
+ */
+public class PartitionedOutput extends RecordOutput {
+
+    private final static int BATCH_SIZE = 64 * 1024;
+
+    private final KeyExtractor keyExtractor;
+    private final ExecutorService writers;
+    private final BatchedFileWriter[] partitions;
+    private boolean closed;
+
+    /**
+     * @param base Base filename (partitions are named by appending suffixes)
+     * @param partitions Number of partitions
+     * @param keyExtractor Extracts the partitioning key from each record
+     * @param gzip Compress partitions
+     * @param writerThreads Number of concurrent writers
+     */
+    public PartitionedOutput(final File base, final int partitions, final KeyExtractor keyExtractor,
+            final boolean gzip, final int writerThreads) {
+        this.keyExtractor = keyExtractor;
+        this.writers = BaseCommandlineTool.newDaemonPool(writerThreads, "PartitionedOutput");
+        final Semaphore batchesInFlight = new Semaphore(writerThreads * 4);
+
+        this.partitions = new BatchedFileWriter[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new BatchedFileWriter(partitionFile(base, i, gzip), gzip, writers,
+                    batchesInFlight, BATCH_SIZE);
+        }
+    }
+
+    @Override
+    public synchronized void writeRecord(final String record) throws IOException {
+        final byte[] bytes = record.getBytes();
+        write(partition(keyExtractor.key(record), partitions.length), bytes, 0, bytes.length);
+    }
+
+    @Override
+    public synchronized void writeRecord(final byte[] buf, final int off, final int len) throws IOException {
+        final String record = new String(buf, off, len);
+        write(partition(keyExtractor.key(record), partitions.length), buf, off, len);
+    }
+
+    private void write(final int partition, final byte[] buf, final int off, final int len) throws IOException {
+        partitions[partition].write(buf, off, len);
+        partitions[partition].write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        partitions[0].write(b, off, len);
+    }
+
+    /**
+     * Output is written in batches, and is not guaranteed to be visible until the output is closed, so
+     * flushing has no effect.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes any remaining output, and waits for all writers to complete
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (final BatchedFileWriter partition : partitions) {
+                partition.close();
+            }
+            for (final BatchedFileWriter partition : partitions) {
+                partition.awaitCompletion();
+            }
+        } finally {
+            writers.shutdown();
+        }
+    }
+
+    /**
+     * @param key
+     * @param partitionCount
+     * @return The partition for the specified key (equivalent to
+     *         <code>(key.toString().hashCode() &amp; 0x7fffffff) % partitionCount</code>, without allocating a
+     *         String)
+     */
+    public static int partition(final CharSequence key, final int partitionCount) {
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        return (h & 0x7fffffff) % partitionCount;
+    }
+
+    /**
+     * @param base
+     * @param partition
+     * @param gzip
+     * @return The file for the specified partition
+     */
+    public static File partitionFile(final File base, final int partition, final boolean gzip) {
+        return new File(base.getPath() + String.format(".p%05d", partition) + (gzip ? ".gz" : ""));
+    }
+}
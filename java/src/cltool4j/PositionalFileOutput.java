@@ -0,0 +1,180 @@
+package cltool4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes output to a file using concurrent positional writes, rather than serializing all writes through a
+ * single stream. Output is accumulated (in order) into fixed-size batches; each batch is assigned its offset in
+ * the file from the running total of the preceding batch sizes, and is then written at that offset by one of a
+ * pool of writer threads, concurrently with other batches. The resulting file is byte-identical to the same
+ * output written sequentially.
+ *
+ * The file is extended ahead of the writers in large increments (so most writes do not change the file's size)
+ * and truncated to its actual length when closed. The number of batches in flight is bounded, limiting memory
+ * consumption if the writers fall behind.
+ *
+ * Unlike most {@link RecordOutput} implementations, this class is thread-safe, since it may also stand in for
+ * STDOUT.
+ *
+ * @author Aaron Dunlop
+ */
+public class PositionalFileOutput extends RecordOutput {
+
+    public final static int DEFAULT_BATCH_SIZE = 1024 * 1024;
+
+    /** Increment by which the file is extended ahead of the writers */
+    private final static long PREALLOCATION_INCREMENT = 64L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ExecutorService writers;
+    private final Semaphore batchesInFlight;
+    private final int batchSize;
+
+    private byte[] batch;
+    private int batchLength;
+
+    /** Offset of the current batch (the total length of all preceding batches) */
+    private long offset;
+
+    /** Current (preallocated) length of the file */
+    private long allocated;
+
+    private volatile IOException exception;
+
+    /**
+     * @param f Output file (will be overwritten)
+     * @param writerThreads Number of concurrent writers
+     * @param batchSize Batch size (bytes)
+     * @throws IOException if the file cannot be opened
+     */
+    public PositionalFileOutput(final File f, final int writerThreads, final int batchSize) throws IOException {
+        this.file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        this.channel = file.getChannel();
+        this.batchSize = batchSize;
+        this.batch = new byte[batchSize];
+        this.batchesInFlight = new Semaphore(writerThreads * 2);
+        this.writers = BaseCommandlineTool.newDaemonPool(writerThreads, "PositionalFileOutput");
+    }
+
+    /**
+     * @param f Output file (will be overwritten)
+     * @param writerThreads Number of concurrent writers
+     * @throws IOException if the file cannot be opened
+     */
+    public PositionalFileOutput(final File f, final int writerThreads) throws IOException {
+        this(f, writerThreads, DEFAULT_BATCH_SIZE);
+    }
+
+    @Override
+    public synchronized void writeRecord(final byte[] buf, final int off, final int len) throws IOException {
+        write(buf, off, len);
+        write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        int written = 0;
+        while (written < len) {
+            final int n = Math.min(len - written, batch.length - batchLength);
+            System.arraycopy(b, off + written, batch, batchLength, n);
+            batchLength += n;
+            written += n;
+            if (batchLength == batch.length) {
+                submitBatch();
+            }
+        }
+    }
+
+    /**
+     * Assigns the current batch its position in the file, and hands it off to a writer thread
+     */
+    private void submitBatch() throws IOException {
+        if (exception != null) {
+            throw exception;
+        }
+        if (batchLength == 0) {
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(batch, 0, batchLength);
+        final long position = offset;
+        offset += batchLength;
+        if (offset > allocated) {
+            allocated = offset + PREALLOCATION_INCREMENT;
+            file.setLength(allocated);
+        }
+
+        try {
+            batchesInFlight.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        writers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long p = position;
+                    while (buffer.hasRemaining()) {
+                        p += channel.write(buffer, p);
+                    }
+                } catch (final IOException e) {
+                    exception = e;
+                } finally {
+                    batchesInFlight.release();
+                }
+            }
+        });
+
+        batch = new byte[batchSize];
+        batchLength = 0;
+    }
+
+    /**
+     * Output is written in batches, and is not guaranteed to be visible until the file is closed, so
+     * flushing has no effect.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes any remaining output, waits for all writers to complete, and truncates the file to the length of
+     * the output
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        submitBatch();
+        writers.shutdown();
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        channel.truncate(offset);
+        file.close();
+    }
+
+    /**
+     * @return The total length of the output written
+     */
+    public synchronized long length() {
+        return offset + batchLength;
+    }
+}
@@ -0,0 +1,237 @@
+package cltool4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Estimates quantiles (median, 99th percentile, etc.) of a distribution of values (latencies, sizes, etc.)
+ * with bounded relative error - a logarithmically-bucketed histogram, as in DDSketch (Masson et al., 2019).
+ * Each value is counted in the bucket <code>ceil(log<sub>gamma</sub>(|value|))</code>, where
+ * <code>gamma = (1 + accuracy) / (1 - accuracy)</code>, so every quantile estimate is within
+ * <code>accuracy</code> of a true value at that rank (relative to that value). The number of buckets grows
+ * only with the logarithm of the range of values (e.g., ~1000 buckets for 1% accuracy over values from 1
+ * microsecond to 1 day), independent of the number of values.
+ *
+ * Unlike sampling-based sketches, merging is exact: the merge of two sketches is identical to the sketch of
+ * all values added to either. Sketches are not thread-safe. Each thread should update its own (see
+ * {@link ThreadLocalLinewiseClTool}); since sketches are {@link Mergeable}, the thread-local sketches are
+ * combined at the end of input. Sketches may also be serialized (see {@link #write(DataOutput)}), to combine
+ * the results of sharded runs.
+ *
+ * @author Aaron Dunlop
+ */
+public class QuantileSketch implements Mergeable<QuantileSketch> {
+
+    /** Values of smaller magnitude are counted as 0 */
+    private final static double MIN_MAGNITUDE = 1e-9;
+
+    private final double accuracy;
+    private final double logGamma;
+
+    private final IntCounter positive = new IntCounter(1);
+    private final IntCounter negative = new IntCounter(1);
+    private long zeros;
+
+    private long count;
+    private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param accuracy Relative accuracy of quantile estimates (e.g., .01 for 1%)
+     */
+    public QuantileSketch(final double accuracy) {
+        if (accuracy <= 0 || accuracy >= 1) {
+            throw new IllegalArgumentException("Invalid accuracy: " + accuracy);
+        }
+        this.accuracy = accuracy;
+        this.logGamma = Math.log((1 + accuracy) / (1 - accuracy));
+    }
+
+    /**
+     * Creates a sketch with 1% relative accuracy
+     */
+    public QuantileSketch() {
+        this(.01);
+    }
+
+    /**
+     * Adds a value
+     *
+     * @param value
+     */
+    public void add(final double value) {
+        add(value, 1);
+    }
+
+    /**
+     * Adds occurrences of a value
+     *
+     * @param value
+     * @param occurrences
+     */
+    public void add(final double value, final long occurrences) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Invalid value: " + value);
+        }
+        if (value >= MIN_MAGNITUDE) {
+            positive.add(bucket(value), occurrences);
+        } else if (value <= -MIN_MAGNITUDE) {
+            negative.add(bucket(-value), occurrences);
+        } else {
+            zeros += occurrences;
+        }
+        count += occurrences;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    private int bucket(final double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    /**
+     * @return A value within the relative accuracy of every value in the bucket
+     */
+    private double value(final int bucket) {
+        return 2 * Math.exp(bucket * logGamma) / (1 + Math.exp(logGamma));
+    }
+
+    /**
+     * @param q Quantile (0-1)
+     * @return Estimated value at the specified quantile (NaN if no values have been added)
+     */
+    public double quantile(final double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Invalid quantile: " + q);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final long rank = (long) (q * (count - 1));
+        // The extremes are known exactly
+        if (rank == 0) {
+            return min;
+        } else if (rank == count - 1) {
+            return max;
+        }
+
+        // Negative values, from the largest magnitude to the smallest
+        long seen = 0;
+        final int[] negativeBuckets = sortedBuckets(negative);
+        for (int i = negativeBuckets.length - 1; i >= 0; i--) {
+            seen += negative.get(negativeBuckets[i]);
+            if (seen > rank) {
+                return clamp(-value(negativeBuckets[i]));
+            }
+        }
+        seen += zeros;
+        if (seen > rank) {
+            return 0;
+        }
+        for (final int bucket : sortedBuckets(positive)) {
+            seen += positive.get(bucket);
+            if (seen > rank) {
+                return clamp(value(bucket));
+            }
+        }
+        return max;
+    }
+
+    private double clamp(final double value) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static int[] sortedBuckets(final IntCounter counter) {
+        final int[] buckets = new int[(int) counter.size()];
+        int i = 0;
+        for (final IntCounter.Cursor c = counter.cursor(); c.next();) {
+            buckets[i++] = c.key();
+        }
+        Arrays.sort(buckets);
+        return buckets;
+    }
+
+    /**
+     * @return Number of values added
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return Smallest value added (exact)
+     */
+    public double min() {
+        return min;
+    }
+
+    /**
+     * @return Largest value added (exact)
+     */
+    public double max() {
+        return max;
+    }
+
+    /**
+     * Combines another sketch into this one. The result is the sketch of all values added to either.
+     *
+     * @throws IllegalArgumentException if the sketches' accuracies differ
+     */
+    @Override
+    public void merge(final QuantileSketch other) {
+        if (other.accuracy != accuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches of accuracy " + accuracy + " and "
+                    + other.accuracy);
+        }
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeros += other.zeros;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Serializes the sketch
+     *
+     * @param out
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeDouble(accuracy);
+        out.writeLong(count);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeLong(zeros);
+        for (final IntCounter buckets : new IntCounter[] { positive, negative }) {
+            out.writeInt((int) buckets.size());
+            for (final IntCounter.Cursor c = buckets.cursor(); c.next();) {
+                out.writeInt(c.key());
+                out.writeLong(c.count());
+            }
+        }
+    }
+
+    /**
+     * Reads a sketch written with {@link #write(DataOutput)}
+     *
+     * @param in
+     * @return The sketch
+     * @throws IOException if an I/O error occurs
+     */
+    public static QuantileSketch read(final DataInput in) throws IOException {
+        final QuantileSketch sketch = new QuantileSketch(in.readDouble());
+        sketch.count = in.readLong();
+        sketch.min = in.readDouble();
+        sketch.max = in.readDouble();
+        sketch.zeros = in.readLong();
+        for (final IntCounter buckets : new IntCounter[] { sketch.positive, sketch.negative }) {
+            final int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                buckets.add(in.readInt(), in.readLong());
+            }
+        }
+        return sketch;
+    }
+}
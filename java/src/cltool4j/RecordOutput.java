@@ -0,0 +1,101 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Destination for the output records of a tool (generally STDOUT, but optionally a file or set of files). Each
+ * record is terminated by the platform line separator, exactly as if written with
+ * {@link PrintStream#println(String)}.
+ *
+ * A {@link RecordOutput} is also an {@link OutputStream}, so it can stand in for STDOUT (see
+ * {@link BaseCommandlineTool#output()}). Bytes written via the {@link OutputStream} methods are appended
+ * as-is, and need not consist of complete records.
+ *
+ * Implementations need not be thread-safe; callers must serialize access (as {@link OrderedTaskExecutor}
+ * does).
+ *
+ * @author Aaron Dunlop
+ */
+public abstract class RecordOutput extends OutputStream {
+
+    protected final static byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+
+    /**
+     * Writes a record, encoded in the default character set, followed by a line separator
+     *
+     * @param record
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeRecord(final String record) throws IOException {
+        final byte[] bytes = record.getBytes();
+        writeRecord(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes an encoded record, followed by a line separator
+     *
+     * @param buf
+     * @param off
+     * @param len Length of the record (excluding any line terminator)
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeRecord(final byte[] buf, final int off, final int len) throws IOException {
+        write(buf, off, len);
+        write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public abstract void write(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * @param ps
+     * @return A {@link RecordOutput} which writes to the specified {@link PrintStream}
+     */
+    public static RecordOutput forStream(final PrintStream ps) {
+        return new StreamOutput(ps);
+    }
+
+    /**
+     * Writes records to a {@link PrintStream} (generally STDOUT)
+     */
+    private static class StreamOutput extends RecordOutput {
+        private final PrintStream ps;
+
+        public StreamOutput(final PrintStream ps) {
+            this.ps = ps;
+        }
+
+        @Override
+        public void writeRecord(final String record) {
+            ps.println(record);
+        }
+
+        @Override
+        public void writeRecord(final byte[] buf, final int off, final int len) {
+            ps.write(buf, off, len);
+            ps.println();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            ps.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            ps.flush();
+        }
+
+        @Override
+        public void close() {
+            ps.close();
+        }
+    }
+}
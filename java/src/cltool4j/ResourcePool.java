@@ -0,0 +1,223 @@
+package cltool4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded pool of expensive, reusable resources (parse charts, scratch buffers, etc.), decoupling the number
+ * of such resources from the number of threads. An alternative to {@link ThreadLocal}, which creates one
+ * instance per thread that ever requests one, and never releases them.
+ *
+ * Callers check a resource out for the duration of a task, and check it back in when done:
+ *
+ * <pre>
+ * final Chart chart = pool.checkOut();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.checkIn(chart);
+ * }
+ * </pre>
+ *
+ * If no resource is idle, a new one is created, unless the pool has reached its maximum size, in which case the
+ * caller waits for a resource to be checked in. Idle resources are reused most-recently-used first, so that
+ * surplus resources remain idle and can be evicted after a timeout (evicted resources implementing
+ * {@link Closeable} are closed). Eviction is performed lazily, as resources are checked in and out. Resources
+ * implementing {@link Mergeable} hold partial results which their owner will merge, so they are never evicted.
+ *
+ * The pool records the number of checkouts, and the number and duration of waits, for tuning the maximum size.
+ *
+ * @author Aaron Dunlop
+ */
+public class ResourcePool<T> {
+
+    private final Factory<T> factory;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+
+    /** Idle resources, most-recently-used first */
+    private final ArrayDeque<Idle<T>> idle = new ArrayDeque<Idle<T>>();
+    private int size;
+
+    private long checkouts, waits, totalWaitNanos, maxWaitNanos, created, evicted;
+
+    /**
+     * @param factory Creates new resources
+     * @param maxSize Maximum number of resources (idle or checked out)
+     * @param idleTimeoutMs Idle resources are evicted after this many milliseconds (0 = never)
+     */
+    public ResourcePool(final Factory<T> factory, final int maxSize, final long idleTimeoutMs) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Invalid pool size: " + maxSize);
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = idleTimeoutMs * 1000000;
+    }
+
+    /**
+     * Checks out a resource, creating one or waiting for one to be checked in if none is idle.
+     *
+     * @return A resource, for the exclusive use of the caller until it is checked in
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T checkOut() throws InterruptedException {
+        synchronized (this) {
+            checkouts++;
+            evictIdle();
+
+            if (idle.isEmpty() && size >= maxSize) {
+                final long start = System.nanoTime();
+                while (idle.isEmpty() && size >= maxSize) {
+                    wait();
+                }
+                final long wait = System.nanoTime() - start;
+                waits++;
+                totalWaitNanos += wait;
+                maxWaitNanos = Math.max(maxWaitNanos, wait);
+            }
+
+            if (!idle.isEmpty()) {
+                return idle.removeFirst().resource;
+            }
+            // Reserve a place for a new resource, and create it outside the lock
+            size++;
+            created++;
+        }
+
+        try {
+            return factory.create();
+        } catch (final RuntimeException e) {
+            synchronized (this) {
+                size--;
+                notify();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a resource to the pool
+     *
+     * @param resource A resource obtained from {@link #checkOut()}
+     */
+    public synchronized void checkIn(final T resource) {
+        idle.addFirst(new Idle<T>(resource, System.nanoTime()));
+        evictIdle();
+        notify();
+    }
+
+    /**
+     * Evicts resources which have been idle longer than the timeout. The least-recently-used resources are at
+     * the end of the queue.
+     */
+    private void evictIdle() {
+        if (idleTimeoutNanos == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        while (!idle.isEmpty() && now - idle.peekLast().since > idleTimeoutNanos
+                && !(idle.peekLast().resource instanceof Mergeable<?>)) {
+            evict(idle.removeLast().resource);
+        }
+    }
+
+    private void evict(final T resource) {
+        size--;
+        evicted++;
+        if (resource instanceof Closeable) {
+            try {
+                ((Closeable) resource).close();
+            } catch (final IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Evicts all idle resources (except those implementing {@link Mergeable})
+     */
+    public synchronized void clear() {
+        for (final Iterator<Idle<T>> i = idle.iterator(); i.hasNext();) {
+            final T resource = i.next().resource;
+            if (!(resource instanceof Mergeable<?>)) {
+                evict(resource);
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return Number of resources currently in existence (idle or checked out)
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of resources created
+     */
+    public synchronized long created() {
+        return created;
+    }
+
+    /**
+     * @return Number of idle resources evicted
+     */
+    public synchronized long evicted() {
+        return evicted;
+    }
+
+    /**
+     * @return Total number of checkouts
+     */
+    public synchronized long checkouts() {
+        return checkouts;
+    }
+
+    /**
+     * @return Number of checkouts which waited for a resource
+     */
+    public synchronized long waits() {
+        return waits;
+    }
+
+    /**
+     * @return Total time spent waiting for resources (nanoseconds)
+     */
+    public synchronized long totalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    /**
+     * @return Longest wait for a resource (nanoseconds)
+     */
+    public synchronized long maxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "Pool size %d/%d, created %d, evicted %d; %d checkouts, %d waits (total %.1f ms, max %.1f ms)", size,
+                maxSize, created, evicted, checkouts, waits, totalWaitNanos / 1e6, maxWaitNanos / 1e6);
+    }
+
+    /**
+     * Creates resources for a {@link ResourcePool}
+     */
+    public interface Factory<T> {
+        public T create();
+    }
+
+    private static class Idle<T> {
+        private final T resource;
+        private final long since;
+
+        public Idle(final T resource, final long since) {
+            this.resource = resource;
+            this.since = since;
+        }
+    }
+}
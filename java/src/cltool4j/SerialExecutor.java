@@ -0,0 +1,62 @@
+package cltool4j;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Executes tasks one at a time, in submission order, on an underlying (shared) {@link Executor}. Many serial
+ * executors can share a small thread pool, each behaving like a dedicated single-threaded writer (e.g., one per
+ * output file), without a thread per executor.
+ *
+ * @author Aaron Dunlop
+ */
+class SerialExecutor implements Executor {
+
+    private final Executor executor;
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private Runnable active;
+
+    /**
+     * @param executor Underlying executor
+     */
+    public SerialExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable r) {
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            executor.execute(active);
+        } else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all submitted tasks have completed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (active != null) {
+            wait();
+        }
+    }
+}
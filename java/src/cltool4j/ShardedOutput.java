@@ -0,0 +1,153 @@
+package cltool4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Splits output into a series of shards, rotating to a new shard after a specified number of records and/or
+ * bytes (a record is never split across shards). Shards are named <code>&lt;base&gt;.00000</code>,
+ * <code>&lt;base&gt;.00001</code>, etc. (with a <code>.gz</code> suffix if compressed), and a manifest (
+ * <code>&lt;base&gt;.manifest</code>) lists the shard names in order, one per line, so concatenating the shards
+ * in manifest order reproduces the complete output.
+ *
+ * Each shard is written (and optionally compressed) by its own {@link BatchedFileWriter}, drawn from a shared
+ * pool of writer threads, so a completed shard can be compressed and flushed while output continues into its successor.
+ * The number of buffers in flight is bounded, limiting memory consumption if the writers fall behind.
+ *
+ * This class is thread-safe, since it may also stand in for STDOUT.
+ *
+ * @author Aaron Dunlop
+ */
+public class ShardedOutput extends RecordOutput {
+
+    private final static int BATCH_SIZE = 256 * 1024;
+
+    private final File base;
+    private final long maxRecords;
+    private final long maxBytes;
+    private final boolean gzip;
+
+    private final ExecutorService writers;
+    private final Semaphore batchesInFlight;
+    private final ArrayList<File> shards = new ArrayList<File>();
+    private final ArrayList<BatchedFileWriter> shardWriters = new ArrayList<BatchedFileWriter>();
+
+    /** The current shard */
+    private BatchedFileWriter shard;
+    private long shardRecords;
+    private boolean closed;
+
+    /**
+     * @param base Base filename (shards and the manifest are named by appending suffixes)
+     * @param maxRecords Maximum records per shard (0 for no limit)
+     * @param maxBytes Maximum (uncompressed) bytes per shard (0 for no limit). A single record longer than the
+     *            limit occupies a shard of its own.
+     * @param gzip Compress shards
+     * @param writerThreads Number of concurrent writers
+     */
+    public ShardedOutput(final File base, final long maxRecords, final long maxBytes, final boolean gzip,
+            final int writerThreads) {
+        this.base = base;
+        this.maxRecords = maxRecords > 0 ? maxRecords : Long.MAX_VALUE;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.gzip = gzip;
+        this.batchesInFlight = new Semaphore(writerThreads * 4);
+        this.writers = BaseCommandlineTool.newDaemonPool(writerThreads, "ShardedOutput");
+    }
+
+    @Override
+    public synchronized void writeRecord(final byte[] buf, final int off, final int len) throws IOException {
+        final int length = len + LINE_SEPARATOR.length;
+        if (shard == null || shardRecords >= maxRecords
+                || (shard.bytes() > 0 && shard.bytes() + length > maxBytes)) {
+            rotate();
+        }
+        shard.write(buf, off, len);
+        shard.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+        shardRecords++;
+    }
+
+    /**
+     * Appends bytes to the current shard. Output written directly (rather than as records) does not count
+     * towards the record limit, and does not cause the shard to rotate.
+     */
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        if (shard == null) {
+            rotate();
+        }
+        shard.write(b, off, len);
+    }
+
+    /**
+     * Completes the current shard (asynchronously) and begins a new one
+     */
+    private void rotate() throws IOException {
+        if (shard != null) {
+            shard.close();
+        }
+        final File f = new File(base.getPath() + String.format(".%05d", shards.size()) + (gzip ? ".gz" : ""));
+        shards.add(f);
+        shard = new BatchedFileWriter(f, gzip, writers, batchesInFlight, BATCH_SIZE);
+        shardWriters.add(shard);
+        shardRecords = 0;
+    }
+
+    /**
+     * Output is written in batches, and is not guaranteed to be visible until the output is closed, so
+     * flushing has no effect.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes any remaining output, waits for all writers to complete, and writes the manifest
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (shard == null) {
+            // Write an empty shard, so the manifest is never empty
+            rotate();
+        }
+        shard.close();
+
+        try {
+            for (final BatchedFileWriter writer : shardWriters) {
+                writer.awaitCompletion();
+            }
+        } finally {
+            writers.shutdown();
+        }
+
+        final BufferedWriter manifest = new BufferedWriter(new FileWriter(manifest()));
+        for (final File f : shards) {
+            manifest.write(f.getName());
+            manifest.write('\n');
+        }
+        manifest.close();
+    }
+
+    /**
+     * @return The manifest file
+     */
+    public File manifest() {
+        return new File(base.getPath() + ".manifest");
+    }
+
+    /**
+     * @return The shards written (or in progress), in order
+     */
+    public synchronized File[] shards() {
+        return shards.toArray(new File[shards.size()]);
+    }
+}
@@ -0,0 +1,60 @@
+package cltool4j;
+
+/**
+ * A {@link ThreadLocalLinewiseClTool} which separates a large, immutable model (e.g., a grammar or a
+ * dictionary), shared by all worker threads, from the small mutable 'scratch' state (buffers, charts, etc.)
+ * which each thread requires. The model is loaded once, before input is processed, and passed to each
+ * thread-local instance as it is created, so memory consumption remains flat as threads are added (rather
+ * than growing with a model copy per thread).
+ *
+ * The model is shared without synchronization, so it must not be modified after {@link #loadModel()}
+ * returns (or must itself be thread-safe).
+ *
+ * @param <M> Model type
+ * @param <T> Thread-local (scratch) type
+ *
+ * @author Aaron Dunlop
+ */
+public abstract class SharedModelLinewiseClTool<M, T> extends ThreadLocalLinewiseClTool<T>
+{
+    private volatile M model;
+
+    /**
+     * Loads (or builds) the shared model. Called once, after {@link #setup(cltool4j.args4j.CmdLineParser)}
+     * and before any input is processed.
+     *
+     * @return The shared model
+     * @throws Exception if the model cannot be loaded
+     */
+    protected abstract M loadModel() throws Exception;
+
+    /**
+     * Creates an instance of a thread-local data structure, which should hold only per-thread state, and
+     * refer to the shared model rather than copying it.
+     *
+     * @param sharedModel The shared (read-only) model
+     * @return An instance of a thread-local data structure.
+     */
+    protected abstract T createLocal(M sharedModel);
+
+    @Override
+    public final T createLocal()
+    {
+        return createLocal(model);
+    }
+
+    /**
+     * @return The shared model
+     */
+    protected final M model()
+    {
+        return model;
+    }
+
+    @Override
+    void beginInput() throws Exception
+    {
+        model = loadModel();
+        super.beginInput();
+    }
+}
@@ -0,0 +1,350 @@
+package cltool4j;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * A read-only key/value dictionary (e.g., for enriching records with attributes of a user, a product, or a
+ * word), stored in a memory-mapped file (see {@link MappedModel}). Replaces the common practice of loading a
+ * large TSV file into a <code>HashMap</code> in <code>setup()</code>, which can take minutes and tens of GB of
+ * heap in every process. Opening a side input is nearly instantaneous, consumes no heap, and the file's pages
+ * are shared through the page cache by all processes on a host. Lookups are thread-safe, so all worker
+ * threads share a single instance (see <code>-side-input</code> in {@link LinewiseCommandlineTool}).
+ *
+ * A side input is built once, from a TSV file (key, tab, value), with {@link BuildSideInput} (or with
+ * {@link Builder}). Records are stored in input order, and indexed by an open-addressing hash table. If a key
+ * occurs more than once, the first value is returned. An optional Bloom filter (blocked, as in
+ * {@link BloomDistinctFilter}) rejects most absent keys without touching the hash table or the records (which
+ * may not be resident in memory), which is useful when most lookups miss.
+ *
+ * Lookups from a line's bytes ({@link #find(byte[], int, int)}) allocate nothing:
+ *
+ * <pre>
+ * final long record = sideInput().find(buf, start, length);
+ * if (record &gt;= 0) {
+ *     sideInput().value(record, valueBuf, 0);
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Aaron Dunlop
+ */
+public final class SideInput {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static String DEFAULT_NAME = "side-input";
+
+    /** Each slot holds the upper bits of the key's hash (a tag), and the record's offset + 1 */
+    private final static int OFFSET_BITS = 40;
+    private final static long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final static double MAX_LOAD = 0.5;
+
+    private final MappedModel.Section records, slots, bloom;
+    private final long size, slotMask;
+    private final int bloomHashes;
+
+    private SideInput(final MappedModel model, final String name) {
+        final MappedModel.Section header = model.section(name + ".header");
+        this.size = header.getLong(0);
+        this.bloomHashes = header.getInt(8);
+        this.records = model.section(name + ".records");
+        this.slots = model.section(name + ".slots");
+        this.slotMask = slots.length() / 8 - 1;
+        this.bloom = bloomHashes > 0 ? model.section(name + ".bloom") : null;
+    }
+
+    /**
+     * Opens a side input built with {@link Builder#Builder(File, double)} (or {@link BuildSideInput})
+     *
+     * @param file
+     * @return The side input
+     * @throws IOException if the file cannot be mapped, or does not contain a side input
+     */
+    public static SideInput open(final File file) throws IOException {
+        return open(MappedModel.open(file), DEFAULT_NAME);
+    }
+
+    /**
+     * Opens a side input built into a model file with {@link Builder#Builder(MappedModel.Writer, String, double)}
+     *
+     * @param model
+     * @param name Side input name
+     * @return The side input
+     * @throws IllegalArgumentException if the model does not contain the named side input
+     */
+    public static SideInput open(final MappedModel model, final String name) {
+        return new SideInput(model, name);
+    }
+
+    /**
+     * Finds the record for a key. Thread-safe and allocation-free.
+     *
+     * @param buf Key bytes (UTF-8)
+     * @param off
+     * @param len
+     * @return The record (see {@link #value(long, byte[], int)}), or -1 if the key is not present
+     */
+    public long find(final byte[] buf, final int off, final int len) {
+        final long hash = SymbolTable.hash(buf, off, len);
+        if (bloom != null) {
+            final long mask = BloomDistinctFilter.mask(DistinctFilter.mix(hash), bloomHashes);
+            if ((bloom.getLong(((hash >>> 1) % (bloom.length() / 8)) * 8) & mask) != mask) {
+                return -1;
+            }
+        }
+
+        final long tag = hash >>> OFFSET_BITS;
+        for (long i = hash & slotMask;; i = (i + 1) & slotMask) {
+            final long slot = slots.getLong(i * 8);
+            if (slot == 0) {
+                return -1;
+            }
+            if (slot >>> OFFSET_BITS == tag) {
+                final long record = (slot & OFFSET_MASK) - 1;
+                if (keyEquals(record, buf, off, len)) {
+                    return record;
+                }
+            }
+        }
+    }
+
+    private boolean keyEquals(final long record, final byte[] buf, final int off, final int len) {
+        if (records.getInt(record) != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (records.getByte(record + 4 + i) != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key
+     * @return The value for the key, or null if the key is not present
+     */
+    public String get(final CharSequence key) {
+        final byte[] bytes = key.toString().getBytes(UTF8);
+        final long record = find(bytes, 0, bytes.length);
+        if (record < 0) {
+            return null;
+        }
+        final byte[] value = new byte[valueLength(record)];
+        value(record, value, 0);
+        return new String(value, UTF8);
+    }
+
+    /**
+     * @param key
+     * @return True if the key is present
+     */
+    public boolean containsKey(final CharSequence key) {
+        final byte[] bytes = key.toString().getBytes(UTF8);
+        return find(bytes, 0, bytes.length) >= 0;
+    }
+
+    /**
+     * @param record A record returned by {@link #find(byte[], int, int)}
+     * @return The length of the record's value (bytes)
+     */
+    public int valueLength(final long record) {
+        return records.getInt(record + 4 + records.getInt(record));
+    }
+
+    /**
+     * Copies a record's value (UTF-8)
+     *
+     * @param record A record returned by {@link #find(byte[], int, int)}
+     * @param dst Destination array, with room for {@link #valueLength(long)} bytes
+     * @param off Offset within <code>dst</code>
+     */
+    public void value(final long record, final byte[] dst, final int off) {
+        final long value = record + 4 + records.getInt(record);
+        records.get(value + 4, dst, off, records.getInt(value));
+    }
+
+    /**
+     * @return The number of records
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Builds a side input. Records are written as they are added; the hash table (and Bloom filter) are
+     * written when the builder is closed. Building requires 16 bytes of heap per record.
+     */
+    public static class Builder {
+        private final MappedModel.Writer writer;
+        private final boolean closeWriter;
+        private final String name;
+        private final double bloomFalsePositiveRate;
+        private final DataOutputStream os;
+
+        private long[] hashes = new long[1024];
+        private long[] offsets = new long[1024];
+        private int size;
+        private long offset;
+
+        /**
+         * @param file Side input file
+         * @param bloomFalsePositiveRate False-positive rate of the Bloom filter (0 for none)
+         * @throws IOException if the file cannot be created
+         */
+        public Builder(final File file, final double bloomFalsePositiveRate) throws IOException {
+            this(new MappedModel.Writer(file), DEFAULT_NAME, bloomFalsePositiveRate, true);
+        }
+
+        /**
+         * Builds a side input as a set of sections in a model file, which may also contain other sections. The
+         * caller must close the writer after closing the builder.
+         *
+         * @param writer
+         * @param name Side input name (a prefix for its section names)
+         * @param bloomFalsePositiveRate False-positive rate of the Bloom filter (0 for none)
+         * @throws IOException if an I/O error occurs
+         */
+        public Builder(final MappedModel.Writer writer, final String name, final double bloomFalsePositiveRate)
+                throws IOException {
+            this(writer, name, bloomFalsePositiveRate, false);
+        }
+
+        private Builder(final MappedModel.Writer writer, final String name, final double bloomFalsePositiveRate,
+                final boolean closeWriter) throws IOException {
+            if (bloomFalsePositiveRate < 0 || bloomFalsePositiveRate >= 1) {
+                throw new IllegalArgumentException("Invalid false-positive rate: " + bloomFalsePositiveRate);
+            }
+            this.writer = writer;
+            this.name = name;
+            this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+            this.closeWriter = closeWriter;
+            this.os = writer.beginSection(name + ".records");
+        }
+
+        /**
+         * Adds a record
+         *
+         * @param key Key bytes (UTF-8)
+         * @param keyOff
+         * @param keyLen
+         * @param value Value bytes (UTF-8)
+         * @param valueOff
+         * @param valueLen
+         * @throws IOException if an I/O error occurs
+         */
+        public void add(final byte[] key, final int keyOff, final int keyLen, final byte[] value,
+                final int valueOff, final int valueLen) throws IOException {
+            if (offset + 1 > OFFSET_MASK) {
+                throw new IllegalStateException("Side input too large");
+            }
+            if (size == hashes.length) {
+                final long[] h = new long[size * 2], o = new long[size * 2];
+                System.arraycopy(hashes, 0, h, 0, size);
+                System.arraycopy(offsets, 0, o, 0, size);
+                hashes = h;
+                offsets = o;
+            }
+            hashes[size] = SymbolTable.hash(key, keyOff, keyLen);
+            offsets[size++] = offset;
+
+            os.writeInt(keyLen);
+            os.write(key, keyOff, keyLen);
+            os.writeInt(valueLen);
+            os.write(value, valueOff, valueLen);
+            offset += keyLen + valueLen + 8;
+        }
+
+        /**
+         * Adds a record
+         *
+         * @param key
+         * @param value
+         * @throws IOException if an I/O error occurs
+         */
+        public void add(final String key, final String value) throws IOException {
+            final byte[] k = key.getBytes(UTF8), v = value.getBytes(UTF8);
+            add(k, 0, k.length, v, 0, v.length);
+        }
+
+        /**
+         * Adds all records from a TSV stream (UTF-8). The key is the first field of each line, and the value
+         * the remainder of the line (which may contain tabs); a line without a tab is a key with an empty value.
+         *
+         * @param tsv
+         * @throws IOException if an I/O error occurs
+         */
+        public void addAll(final InputStream tsv) throws IOException {
+            final BufferedReader br = new BufferedReader(new InputStreamReader(tsv, UTF8));
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                final int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    add(line, "");
+                } else {
+                    add(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+
+        /**
+         * Writes the hash table and Bloom filter
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        public void close() throws IOException {
+            final long slotCount = Long.highestOneBit(Math.max((long) (size / MAX_LOAD), 512)) * 2;
+            if (slotCount > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Side input too large: " + size + " records");
+            }
+            final long[] slots = new long[(int) slotCount];
+            final int mask = slots.length - 1;
+            for (int r = 0; r < size; r++) {
+                int i = (int) (hashes[r] & mask);
+                // Records are inserted in input order, so the first occurrence of a duplicate key is found first
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = (hashes[r] >>> OFFSET_BITS) << OFFSET_BITS | (offsets[r] + 1);
+            }
+            DataOutputStream out = writer.beginSection(name + ".slots");
+            for (final long slot : slots) {
+                out.writeLong(slot);
+            }
+
+            int bloomHashes = 0;
+            if (bloomFalsePositiveRate > 0) {
+                final double bitsPerRecord = BloomDistinctFilter.bitsPerRecord(bloomFalsePositiveRate);
+                bloomHashes = BloomDistinctFilter.hashes(bitsPerRecord, bloomFalsePositiveRate);
+                final long words = Math.max((long) Math.ceil(size * bitsPerRecord / 64), 1);
+                if (words > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Bloom filter too large: " + size + " records");
+                }
+                final long[] bloom = new long[(int) words];
+                for (int r = 0; r < size; r++) {
+                    bloom[(int) ((hashes[r] >>> 1) % words)] |= BloomDistinctFilter.mask(DistinctFilter
+                            .mix(hashes[r]), bloomHashes);
+                }
+                out = writer.beginSection(name + ".bloom");
+                for (final long word : bloom) {
+                    out.writeLong(word);
+                }
+            }
+
+            out = writer.beginSection(name + ".header");
+            out.writeLong(size);
+            out.writeInt(bloomHashes);
+
+            hashes = offsets = null;
+            if (closeWriter) {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package cltool4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorts output records by key before writing them to another {@link RecordOutput} - an external merge sort,
+ * replacing the common practice of piping tool output through <code>sort</code>.
+ *
+ * Records are accumulated into runs in memory. When a run reaches its share of the memory budget, it is
+ * sorted and spilled to a temporary file by a background thread (so several runs may be sorted concurrently,
+ * while output continues to accumulate). When all output has been received ({@link #finish()}), the final run
+ * is sorted in memory, and all runs are merged into the underlying output. If the number of spilled runs
+ * exceeds the merge fan-in, groups of runs are first merged in parallel into larger intermediate runs.
+ *
+ * The sort is stable: records with equal keys are output in the order they were received. Output written
+ * directly (rather than as records) is passed through to the underlying output immediately.
+ *
+ * @author Aaron Dunlop
+ */
+public class SortingOutput extends RecordOutput {
+
+    /** Compares keys lexicographically (by UTF-16 code unit, as {@link String#compareTo(String)}) */
+    public final static Comparator<CharSequence> LEXICOGRAPHIC = new Comparator<CharSequence>() {
+        @Override
+        public int compare(final CharSequence o1, final CharSequence o2) {
+            final int length = Math.min(o1.length(), o2.length());
+            for (int i = 0; i < length; i++) {
+                final int c = o1.charAt(i) - o2.charAt(i);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return o1.length() - o2.length();
+        }
+    };
+
+    /**
+     * Compares keys numerically. Non-numeric keys sort after all numeric keys (lexicographically among
+     * themselves).
+     */
+    public final static Comparator<CharSequence> NUMERIC = new Comparator<CharSequence>() {
+        @Override
+        public int compare(final CharSequence o1, final CharSequence o2) {
+            final double d1 = parse(o1), d2 = parse(o2);
+            if (Double.isNaN(d1) || Double.isNaN(d2)) {
+                if (Double.isNaN(d1) && Double.isNaN(d2)) {
+                    return LEXICOGRAPHIC.compare(o1, o2);
+                }
+                return Double.isNaN(d1) ? 1 : -1;
+            }
+            return d1 < d2 ? -1 : (d1 > d2 ? 1 : 0);
+        }
+
+        private double parse(final CharSequence s) {
+            try {
+                return FieldCursor.parseDouble(s, 0, s.length());
+            } catch (final NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+    };
+
+    /** Maximum number of runs merged at once */
+    private final static int MERGE_FAN_IN = 32;
+
+    /** Approximate per-record memory overhead (object headers, references, key) */
+    private final static int RECORD_OVERHEAD = 96;
+
+    private final RecordOutput output;
+    private final KeyExtractor keyExtractor;
+    private final Comparator<Entry> comparator;
+    private final long runBudget;
+    private final File tmpDir;
+
+    private final ExecutorService sorters;
+    private final Semaphore runsInFlight;
+    private final List<Future<File>> spilledRuns = new ArrayList<Future<File>>();
+
+    private ArrayList<Entry> run = new ArrayList<Entry>();
+    private long runBytes;
+
+    /** Memory consumed by runs handed off to be sorted and spilled, but not yet written */
+    private final AtomicLong spillingBytes = new AtomicLong();
+    private long peakBytes;
+
+    /** Set when the sort has been completed (see {@link #finish()}) */
+    private boolean finished;
+
+    /**
+     * @param output Destination for sorted records
+     * @param keyExtractor Extracts the sort key from each record
+     * @param keyComparator Compares keys
+     * @param memoryBudget Approximate total memory (bytes) to devote to in-memory runs
+     * @param threads Threads used to sort and spill runs and to merge intermediate runs
+     * @param tmpDir Directory for temporary files (null for the system default)
+     */
+    public SortingOutput(final RecordOutput output, final KeyExtractor keyExtractor,
+            final Comparator<CharSequence> keyComparator, final long memoryBudget, final int threads,
+            final File tmpDir) {
+        this.output = output;
+        this.keyExtractor = keyExtractor;
+        this.comparator = new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry o1, final Entry o2) {
+                return keyComparator.compare(o1.key, o2.key);
+            }
+        };
+        // One run accumulating, and up to 'threads' being sorted and spilled
+        this.runBudget = Math.max(memoryBudget / (threads + 1), 1024);
+        this.runsInFlight = new Semaphore(threads);
+        this.tmpDir = tmpDir;
+        this.sorters = BaseCommandlineTool.newDaemonPool(threads, "SortingOutput");
+    }
+
+    @Override
+    public synchronized void writeRecord(final String record) throws IOException {
+        run.add(new Entry(keyExtractor.key(record), record));
+        runBytes += record.length() * 2 + RECORD_OVERHEAD;
+        if (runBytes >= runBudget) {
+            peakBytes = Math.max(peakBytes, runBytes + spillingBytes.get());
+            spill();
+        }
+    }
+
+    @Override
+    public synchronized void writeRecord(final byte[] buf, final int off, final int len) throws IOException {
+        writeRecord(new String(buf, off, len));
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        output.write(b, off, len);
+    }
+
+    /**
+     * Hands the current run off to a background thread to be sorted and written to a temporary file
+     */
+    private void spill() throws IOException {
+        try {
+            runsInFlight.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        final ArrayList<Entry> r = run;
+        final long bytes = runBytes;
+        spillingBytes.addAndGet(bytes);
+        spilledRuns.add(sorters.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                try {
+                    Collections.sort(r, comparator);
+                    return writeRun(r.iterator());
+                } finally {
+                    spillingBytes.addAndGet(-bytes);
+                    runsInFlight.release();
+                }
+            }
+        }));
+        run = new ArrayList<Entry>();
+        runBytes = 0;
+    }
+
+    /**
+     * Sorts any remaining records and merges all runs into the underlying output (which is flushed, but not
+     * closed). Must be called after all records have been written. Subsequent calls have no effect.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        peakBytes = Math.max(peakBytes, runBytes + spillingBytes.get());
+        try {
+            Collections.sort(run, comparator);
+
+            final ArrayList<File> runFiles = new ArrayList<File>();
+            for (final Future<File> f : spilledRuns) {
+                runFiles.add(f.get());
+            }
+
+            // Reduce the number of runs in parallel, until we can merge them all at once
+            while (runFiles.size() + 1 > MERGE_FAN_IN) {
+                final ArrayList<Future<File>> merged = new ArrayList<Future<File>>();
+                for (int i = 0; i < runFiles.size(); i += MERGE_FAN_IN) {
+                    final List<File> group = new ArrayList<File>(runFiles.subList(i,
+                            Math.min(i + MERGE_FAN_IN, runFiles.size())));
+                    merged.add(sorters.submit(new Callable<File>() {
+                        @Override
+                        public File call() throws Exception {
+                            final List<Iterator<Entry>> readers = new ArrayList<Iterator<Entry>>();
+                            for (final File f : group) {
+                                readers.add(new RunReader(f));
+                            }
+                            return writeRun(merge(readers));
+                        }
+                    }));
+                }
+                runFiles.clear();
+                for (final Future<File> f : merged) {
+                    runFiles.add(f.get());
+                }
+            }
+
+            // Final merge into the output. Spilled runs precede the in-memory run in input order.
+            final List<Iterator<Entry>> readers = new ArrayList<Iterator<Entry>>();
+            for (final File f : runFiles) {
+                readers.add(new RunReader(f));
+            }
+            readers.add(run.iterator());
+            for (final Iterator<Entry> i = merge(readers); i.hasNext();) {
+                output.writeRecord(i.next().record);
+            }
+            output.flush();
+
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            sorters.shutdown();
+            run = new ArrayList<Entry>();
+        }
+    }
+
+    /**
+     * @return The largest (approximate) memory consumed by in-memory runs, including those being sorted and
+     *         spilled (bytes)
+     */
+    public synchronized long peakBytes() {
+        return peakBytes;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Completes the sort (see {@link #finish()}), if it has not already been completed, and closes the
+     * underlying output
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!finished) {
+            finish();
+        }
+        output.close();
+    }
+
+    /**
+     * Writes a sorted run to a temporary file
+     */
+    private File writeRun(final Iterator<Entry> entries) throws IOException {
+        final File f = File.createTempFile("sort", ".run", tmpDir);
+        f.deleteOnExit();
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+                256 * 1024));
+        while (entries.hasNext()) {
+            final byte[] bytes = entries.next().record.getBytes();
+            os.writeInt(bytes.length);
+            os.write(bytes);
+        }
+        os.close();
+        return f;
+    }
+
+    /**
+     * Merges sorted iterators. Ties are broken by the order of the iterators (so the merge is stable if the
+     * iterators are ordered by input).
+     */
+    private Iterator<Entry> merge(final List<Iterator<Entry>> iterators) {
+        final PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(iterators.size(), 1));
+        for (int i = 0; i < iterators.size(); i++) {
+            if (iterators.get(i).hasNext()) {
+                heads.add(new Head(iterators.get(i), i));
+            }
+        }
+
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                final Head head = heads.poll();
+                final Entry e = head.entry;
+                if (head.iterator.hasNext()) {
+                    head.entry = head.iterator.next();
+                    heads.add(head);
+                }
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class Entry {
+        private final CharSequence key;
+        private final String record;
+
+        public Entry(final CharSequence key, final String record) {
+            this.key = key;
+            this.record = record;
+        }
+    }
+
+    private class Head implements Comparable<Head> {
+        private final Iterator<Entry> iterator;
+        private final int index;
+        private Entry entry;
+
+        public Head(final Iterator<Entry> iterator, final int index) {
+            this.iterator = iterator;
+            this.index = index;
+            this.entry = iterator.next();
+        }
+
+        @Override
+        public int compareTo(final Head o) {
+            final int c = comparator.compare(entry, o.entry);
+            return c != 0 ? c : index - o.index;
+        }
+    }
+
+    /**
+     * Reads a spilled run, deleting the file when exhausted
+     */
+    private class RunReader implements Iterator<Entry> {
+        private final File f;
+        private final DataInputStream is;
+        private Entry next;
+
+        public RunReader(final File f) throws IOException {
+            this.f = f;
+            this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 256 * 1024));
+            advance();
+        }
+
+        private void advance() {
+            try {
+                final int length = is.readInt();
+                final byte[] bytes = new byte[length];
+                is.readFully(bytes);
+                final String record = new String(bytes);
+                next = new Entry(keyExtractor.key(record), record);
+            } catch (final EOFException e) {
+                next = null;
+                try {
+                    is.close();
+                } catch (final IOException ignore) {
+                }
+                f.delete();
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            final Entry e = next;
+            advance();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package cltool4j;
+
+/**
+ * Counts symbols (words, tokens, n-grams, etc.), replacing the common <code>HashMap&lt;String, Integer&gt;</code>.
+ * Symbols are interned in a {@link SymbolTable}, and counted by ID in an {@link IntCounter}, so counting a
+ * symbol already seen allocates nothing, and symbols can be counted directly from a line's bytes.
+ *
+ * Thread-local counters (see {@link ThreadLocalLinewiseClTool}) should share a single {@link SymbolTable}
+ * (e.g., the shared model of a {@link SharedModelLinewiseClTool}), so that their IDs agree and they can be
+ * merged by ID; counters with different tables are merged symbol by symbol.
+ *
+ * @author Aaron Dunlop
+ */
+public class SymbolCounter implements Mergeable<SymbolCounter> {
+
+    private final SymbolTable symbols;
+    private final IntCounter counts;
+
+    /**
+     * Creates a counter with its own symbol table
+     */
+    public SymbolCounter() {
+        this(new SymbolTable());
+    }
+
+    /**
+     * @param symbols Symbol table (which may be shared with other counters)
+     */
+    public SymbolCounter(final SymbolTable symbols) {
+        this(symbols, new IntCounter());
+    }
+
+    /**
+     * @param symbols Symbol table (which may be shared with other counters)
+     * @param counts Counts by symbol ID
+     */
+    public SymbolCounter(final SymbolTable symbols, final IntCounter counts) {
+        this.symbols = symbols;
+        this.counts = counts;
+    }
+
+    /**
+     * Increments the count of a symbol
+     *
+     * @param buf Symbol bytes (UTF-8)
+     * @param off
+     * @param len
+     * @return The new count
+     */
+    public long increment(final byte[] buf, final int off, final int len) {
+        return counts.increment(symbols.intern(buf, off, len));
+    }
+
+    /**
+     * Increments the count of a symbol
+     *
+     * @param symbol
+     * @return The new count
+     */
+    public long increment(final CharSequence symbol) {
+        return counts.increment(symbols.intern(symbol));
+    }
+
+    /**
+     * Adds to the count of a symbol
+     *
+     * @param symbol
+     * @param delta
+     * @return The new count
+     */
+    public long add(final CharSequence symbol, final long delta) {
+        return counts.add(symbols.intern(symbol), delta);
+    }
+
+    /**
+     * @param symbol
+     * @return The count of the symbol (0 if it has not been counted)
+     */
+    public long get(final CharSequence symbol) {
+        final int id = symbols.id(symbol);
+        return id >= 0 ? counts.get(id) : 0;
+    }
+
+    /**
+     * @return The symbol table
+     */
+    public SymbolTable symbols() {
+        return symbols;
+    }
+
+    /**
+     * @return Counts by symbol ID (see {@link SymbolTable#symbol(int)})
+     */
+    public IntCounter counts() {
+        return counts;
+    }
+
+    /**
+     * @return A copy of the counts (see {@link IntCounter#snapshot()}), sharing the same symbol table
+     */
+    public SymbolCounter snapshot() {
+        return new SymbolCounter(symbols, counts.snapshot());
+    }
+
+    /**
+     * Adds all counts from another counter
+     */
+    @Override
+    public void merge(final SymbolCounter other) {
+        if (other.symbols == symbols) {
+            counts.merge(other.counts);
+            return;
+        }
+        byte[] buf = new byte[256];
+        for (final IntCounter.Cursor c = other.counts.snapshot().cursor(); c.next();) {
+            final int len = other.symbols.length(c.key());
+            if (len > buf.length) {
+                buf = new byte[Math.max(len, buf.length * 2)];
+            }
+            other.symbols.get(c.key(), buf, 0);
+            counts.add(symbols.intern(buf, 0, len), c.count());
+        }
+    }
+}
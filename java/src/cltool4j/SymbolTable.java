@@ -0,0 +1,455 @@
+package cltool4j;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent table of interned symbols (words, tokens, feature names, etc.), mapping each distinct UTF-8
+ * byte sequence to a dense integer ID (0, 1, 2, ...). Replaces the common <code>HashMap&lt;String, Integer&gt;</code>
+ * vocabulary, which costs ~100 bytes of object overhead per symbol and burdens the garbage collector with
+ * tens of millions of long-lived objects. Here, symbol bytes are stored outside the Java heap, and the hash
+ * table and ID index are flat primitive arrays.
+ *
+ * Lookups ({@link #id(byte[], int, int)}, {@link #intern(byte[], int, int)} of an existing symbol) are
+ * lock-free and allocate nothing, so symbols can be looked up directly from a line's bytes (e.g., from
+ * {@link ByteScanner}) by any number of worker threads. Insertions of new symbols are serialized.
+ *
+ * A table can be saved to a model file (see {@link MappedModel}) and opened in a later run. The saved
+ * symbols are memory-mapped (and shared through the page cache by all processes on a host) rather than
+ * loaded; symbols interned after opening are added to the in-memory table, with IDs following those of the
+ * saved symbols.
+ *
+ * @author Aaron Dunlop
+ */
+public final class SymbolTable {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Symbol bytes are stored in off-heap chunks of 16 MB */
+    private final static int DEFAULT_CHUNK_BITS = 24;
+
+    /** The ID index is stored in on-heap chunks of 64k entries */
+    private final static int INDEX_CHUNK_BITS = 16;
+
+    private final static double MAX_LOAD = 0.5;
+
+    private final static long TAG_MASK = 0xffffffff00000000L;
+
+    private final static String DEFAULT_NAME = "symbols";
+
+    /** Saved symbols (null if the table was not opened from a model file) */
+    private final MappedModel.Section baseSlots, baseIndex, baseBytes;
+    private final int baseSize;
+
+    /*
+     * Symbols interned since the table was created (or opened). Each hash-table slot holds the upper 32 bits
+     * of the symbol's hash (which also determine its initial probe position), and its ID + 1 (0 denotes an
+     * empty slot). The index maps each ID to the position of its symbol in the chunked byte arena, where each
+     * symbol is stored as a 4-byte length followed by its bytes. A symbol never spans chunks.
+     */
+    private volatile AtomicLongArray slots = new AtomicLongArray(1024);
+    private volatile long[][] index = new long[0][];
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private final int chunkBits;
+    private long arenaPosition;
+
+    private volatile int size;
+
+    /**
+     * Creates an empty table
+     */
+    public SymbolTable() {
+        this(DEFAULT_CHUNK_BITS);
+    }
+
+    /**
+     * Creates a table with the specified chunk size (for unit testing)
+     */
+    SymbolTable(final int chunkBits) {
+        this.chunkBits = chunkBits;
+        this.baseSlots = null;
+        this.baseIndex = null;
+        this.baseBytes = null;
+        this.baseSize = 0;
+    }
+
+    private SymbolTable(final MappedModel model, final String name) {
+        this.chunkBits = DEFAULT_CHUNK_BITS;
+        this.baseSlots = model.section(name + ".slots");
+        this.baseIndex = model.section(name + ".index");
+        this.baseBytes = model.section(name + ".bytes");
+        this.baseSize = (int) (baseIndex.length() / 8);
+        this.size = baseSize;
+    }
+
+    /**
+     * Opens a table saved with {@link #save(File)}
+     *
+     * @param file
+     * @return The symbol table
+     * @throws IOException if the file cannot be mapped, or does not contain a symbol table
+     */
+    public static SymbolTable open(final File file) throws IOException {
+        return open(MappedModel.open(file), DEFAULT_NAME);
+    }
+
+    /**
+     * Opens a table saved to a model file with {@link #save(MappedModel.Writer, String)}
+     *
+     * @param model
+     * @param name Table name
+     * @return The symbol table
+     * @throws IllegalArgumentException if the model does not contain the named table
+     */
+    public static SymbolTable open(final MappedModel model, final String name) {
+        return new SymbolTable(model, name);
+    }
+
+    /**
+     * Returns the ID of a symbol, interning it if it is not already present. Thread-safe.
+     *
+     * @param buf Symbol bytes (UTF-8)
+     * @param off
+     * @param len
+     * @return The symbol's ID
+     */
+    public int intern(final byte[] buf, final int off, final int len) {
+        final long hash = hash(buf, off, len);
+        final int id = find(hash, buf, off, len);
+        return id >= 0 ? id : insert(hash, buf, off, len);
+    }
+
+    /**
+     * @param symbol
+     * @return The symbol's ID (interning it if it is not already present)
+     */
+    public int intern(final CharSequence symbol) {
+        final byte[] bytes = symbol.toString().getBytes(UTF8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the ID of a symbol, without interning it. Thread-safe, lock-free, and allocation-free.
+     *
+     * @param buf Symbol bytes (UTF-8)
+     * @param off
+     * @param len
+     * @return The symbol's ID, or -1 if it is not present
+     */
+    public int id(final byte[] buf, final int off, final int len) {
+        return find(hash(buf, off, len), buf, off, len);
+    }
+
+    /**
+     * @param symbol
+     * @return The symbol's ID, or -1 if it is not present
+     */
+    public int id(final CharSequence symbol) {
+        final byte[] bytes = symbol.toString().getBytes(UTF8);
+        return id(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param id
+     * @return The symbol with the specified ID
+     */
+    public String symbol(final int id) {
+        final byte[] bytes = new byte[length(id)];
+        get(id, bytes, 0);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @param id
+     * @return The length of the symbol's UTF-8 encoding (bytes)
+     */
+    public int length(final int id) {
+        if (id < baseSize) {
+            return baseBytes.getInt(baseIndex.getLong(checkId(id) * 8L));
+        }
+        final long position = position(checkId(id));
+        return chunk(position).getInt(chunkIndex(position));
+    }
+
+    /**
+     * Copies a symbol's bytes (UTF-8)
+     *
+     * @param id
+     * @param dst Destination array, with room for {@link #length(int)} bytes
+     * @param off Offset within <code>dst</code>
+     */
+    public void get(final int id, final byte[] dst, final int off) {
+        if (id < baseSize) {
+            final long position = baseIndex.getLong(checkId(id) * 8L);
+            baseBytes.get(position + 4, dst, off, baseBytes.getInt(position));
+            return;
+        }
+        final long position = position(checkId(id));
+        final ByteBuffer chunk = chunk(position).duplicate();
+        final int i = chunkIndex(position);
+        chunk.position(i + 4);
+        chunk.get(dst, off, chunk.getInt(i));
+    }
+
+    /**
+     * @return The number of symbols in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Off-heap memory allocated for symbols interned since the table was created or opened (bytes)
+     */
+    public long bytes() {
+        return (long) chunks.length << chunkBits;
+    }
+
+    private int checkId(final int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Symbol " + id + " (table size " + size + ")");
+        }
+        return id;
+    }
+
+    private int find(final long hash, final byte[] buf, final int off, final int len) {
+        if (baseSlots != null) {
+            final int id = findBase(hash, buf, off, len);
+            if (id >= 0) {
+                return id;
+            }
+        }
+
+        final AtomicLongArray s = slots;
+        final int mask = s.length() - 1;
+        final long tag = hash & TAG_MASK;
+        for (int i = (int) (hash >>> 32) & mask;; i = (i + 1) & mask) {
+            final long slot = s.get(i);
+            if (slot == 0) {
+                return -1;
+            }
+            if ((slot & TAG_MASK) == tag) {
+                final int id = (int) slot - 1;
+                final long position = position(id);
+                if (equals(chunk(position), chunkIndex(position), buf, off, len)) {
+                    return id;
+                }
+            }
+        }
+    }
+
+    private int findBase(final long hash, final byte[] buf, final int off, final int len) {
+        final long mask = baseSlots.length() / 8 - 1;
+        final long tag = hash & TAG_MASK;
+        for (long i = (hash >>> 32) & mask;; i = (i + 1) & mask) {
+            final long slot = baseSlots.getLong(i * 8);
+            if (slot == 0) {
+                return -1;
+            }
+            if ((slot & TAG_MASK) == tag) {
+                final int id = (int) slot - 1;
+                final long position = baseIndex.getLong(id * 8L);
+                if (baseBytes.getInt(position) == len) {
+                    int j = 0;
+                    while (j < len && baseBytes.getByte(position + 4 + j) == buf[off + j]) {
+                        j++;
+                    }
+                    if (j == len) {
+                        return id;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean equals(final ByteBuffer chunk, final int i, final byte[] buf, final int off,
+            final int len) {
+        if (chunk.getInt(i) != len) {
+            return false;
+        }
+        for (int j = 0; j < len; j++) {
+            if (chunk.get(i + 4 + j) != buf[off + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inserts a new symbol (unless another thread inserted it first). The symbol's bytes and index entry are
+     * written before its slot is published, so a lock-free reader which finds the slot also sees both.
+     */
+    private synchronized int insert(final long hash, final byte[] buf, final int off, final int len) {
+        final int existing = find(hash, buf, off, len);
+        if (existing >= 0) {
+            return existing;
+        }
+        if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Symbol table full");
+        }
+
+        final int id = size;
+        final int i = id - baseSize;
+        if (i + 1 > slots.length() * MAX_LOAD) {
+            slots = rehash(slots, slots.length() * 2);
+        }
+
+        long[][] ix = index;
+        if (i >> INDEX_CHUNK_BITS == ix.length) {
+            final long[][] grown = new long[ix.length + 1][];
+            System.arraycopy(ix, 0, grown, 0, ix.length);
+            grown[ix.length] = new long[1 << INDEX_CHUNK_BITS];
+            index = ix = grown;
+        }
+        ix[i >> INDEX_CHUNK_BITS][i & ((1 << INDEX_CHUNK_BITS) - 1)] = append(buf, off, len);
+
+        final AtomicLongArray s = slots;
+        final int mask = s.length() - 1;
+        int slot = (int) (hash >>> 32) & mask;
+        while (s.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        s.set(slot, (hash & TAG_MASK) | (id + 1L));
+        size = id + 1;
+        return id;
+    }
+
+    /**
+     * Copies all slots into a new table. Readers may continue to search the old table, which remains valid
+     * (if incomplete) after it is replaced.
+     */
+    private static AtomicLongArray rehash(final AtomicLongArray from, final int slots) {
+        final AtomicLongArray to = new AtomicLongArray(slots);
+        final int mask = slots - 1;
+        for (int i = 0; i < from.length(); i++) {
+            final long slot = from.get(i);
+            if (slot != 0) {
+                int j = (int) (slot >>> 32) & mask;
+                while (to.get(j) != 0) {
+                    j = (j + 1) & mask;
+                }
+                to.set(j, slot);
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Appends a symbol to the byte arena, starting a new chunk if it will not fit in the current one
+     *
+     * @return The position of the symbol
+     */
+    private long append(final byte[] buf, final int off, final int len) {
+        final long chunkSize = 1L << chunkBits;
+        if (len + 4 > chunkSize) {
+            throw new IllegalArgumentException("Symbol too long: " + len + " bytes");
+        }
+        if (arenaPosition >> chunkBits == chunks.length || (arenaPosition & (chunkSize - 1)) + len + 4 > chunkSize) {
+            arenaPosition = (long) chunks.length << chunkBits;
+            final ByteBuffer[] grown = new ByteBuffer[chunks.length + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            grown[chunks.length] = ByteBuffer.allocateDirect((int) chunkSize);
+            chunks = grown;
+        }
+
+        final long position = arenaPosition;
+        final ByteBuffer chunk = chunk(position).duplicate();
+        final int i = chunkIndex(position);
+        chunk.putInt(i, len);
+        chunk.position(i + 4);
+        chunk.put(buf, off, len);
+        arenaPosition += len + 4;
+        return position;
+    }
+
+    private long position(final int id) {
+        final int i = id - baseSize;
+        return index[i >> INDEX_CHUNK_BITS][i & ((1 << INDEX_CHUNK_BITS) - 1)];
+    }
+
+    private ByteBuffer chunk(final long position) {
+        return chunks[(int) (position >> chunkBits)];
+    }
+
+    private int chunkIndex(final long position) {
+        return (int) (position & ((1L << chunkBits) - 1));
+    }
+
+    /**
+     * 64-bit FNV-1a, with a final mix to distribute the upper bits (used for both probe position and tag).
+     * Also used to hash items added to sketches (see {@link HyperLogLog}).
+     */
+    static long hash(final byte[] buf, final int off, final int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = off; i < off + len; i++) {
+            h ^= buf[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return DistinctFilter.mix(h);
+    }
+
+    /**
+     * Saves the table (including any symbols opened from a previous save) to a new model file
+     *
+     * @param file
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(final File file) throws IOException {
+        final MappedModel.Writer writer = new MappedModel.Writer(file);
+        save(writer, DEFAULT_NAME);
+        writer.close();
+    }
+
+    /**
+     * Saves the table as a set of sections in a model file, which may also contain other sections. Symbols
+     * interned concurrently may or may not be included.
+     *
+     * @param writer
+     * @param name Table name (a prefix for the table's section names)
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(final MappedModel.Writer writer, final String name) throws IOException {
+        final int n = size;
+        final long slotCount = Long.highestOneBit(Math.max((long) (n / MAX_LOAD), 512)) * 2;
+        if (slotCount > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Symbol table too large to save: " + n);
+        }
+        final long[] hashSlots = new long[(int) slotCount];
+        final int mask = hashSlots.length - 1;
+
+        DataOutputStream os = writer.beginSection(name + ".index");
+        long position = 0;
+        for (int id = 0; id < n; id++) {
+            os.writeLong(position);
+            position += length(id) + 4;
+        }
+
+        os = writer.beginSection(name + ".bytes");
+        byte[] buf = new byte[256];
+        for (int id = 0; id < n; id++) {
+            final int len = length(id);
+            if (len > buf.length) {
+                buf = new byte[Math.max(len, buf.length * 2)];
+            }
+            get(id, buf, 0);
+            os.writeInt(len);
+            os.write(buf, 0, len);
+
+            final long hash = hash(buf, 0, len);
+            int slot = (int) (hash >>> 32) & mask;
+            while (hashSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            hashSlots[slot] = (hash & TAG_MASK) | (id + 1L);
+        }
+
+        os = writer.beginSection(name + ".slots");
+        for (final long slot : hashSlots) {
+            os.writeLong(slot);
+        }
+    }
+}
@@ -6,11 +6,21 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
 
@@ -105,12 +115,19 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         final StringBuilder sb = new StringBuilder();
         sb.append("Argument <args> is required\n");
         sb.append("\n");
-        sb.append("Usage: TestBaseCommandlineTool$WithRequiredMultivaluedArgument [-help] [-O option / file] [-v level] <args>\n");
-        sb.append(" args              : [args]\n");
-        sb.append(" -help (--help,-?) : Print detailed usage information\n");
-        sb.append(" -O option / file  : Option or option file (file in Java properties format or option as key=value)\n");
-        sb.append(" -v level          : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
-        sb.append("                     severe,-2; off,-3)   Default = info\n");
+        sb.append("Usage: TestBaseCommandlineTool$WithRequiredMultivaluedArgument [-help] [-O option / file] [-v level] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] <args>\n");
+        sb.append(" args                : [args]\n");
+        sb.append(" -help (--help,-?)   : Print detailed usage information\n");
+        sb.append(" -O option / file    : Option or option file (file in Java properties format or option as key=value)\n");
+        sb.append(" -v level            : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
+        sb.append("                       severe,-2; off,-3)   Default = info\n");
+        sb.append(" -files-from file    : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first      : Process input files in descending order of size\n");
+        sb.append(" -output file        : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count  : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes  : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards        : Compress output shards\n");
+        sb.append(" -memory bytes       : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
 
         assertEquals(sb.toString(), executeTool(tool, "", ""));
     }
@@ -135,28 +152,42 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         StringBuilder sb = new StringBuilder();
         sb.append("Argument <arg0> is required\n");
         sb.append("\n");
-        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArgumentsAndMultivaluedArgument [-help] [-O option / file] [-v level] <arg0> <arg1> <values>\n");
-        sb.append(" arg0              : arg0\n");
-        sb.append(" arg1              : arg1\n");
-        sb.append(" values            : Other required arguments\n");
-        sb.append(" -help (--help,-?) : Print detailed usage information\n");
-        sb.append(" -O option / file  : Option or option file (file in Java properties format or option as key=value)\n");
-        sb.append(" -v level          : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
-        sb.append("                     severe,-2; off,-3)   Default = info\n");
+        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArgumentsAndMultivaluedArgument [-help] [-O option / file] [-v level] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] <arg0> <arg1> <values>\n");
+        sb.append(" arg0                : arg0\n");
+        sb.append(" arg1                : arg1\n");
+        sb.append(" values              : Other required arguments\n");
+        sb.append(" -help (--help,-?)   : Print detailed usage information\n");
+        sb.append(" -O option / file    : Option or option file (file in Java properties format or option as key=value)\n");
+        sb.append(" -v level            : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
+        sb.append("                       severe,-2; off,-3)   Default = info\n");
+        sb.append(" -files-from file    : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first      : Process input files in descending order of size\n");
+        sb.append(" -output file        : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count  : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes  : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards        : Compress output shards\n");
+        sb.append(" -memory bytes       : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
         tool = new WithRequiredArgumentsAndMultivaluedArgument();
         assertEquals(sb.toString(), executeTool(tool, "", ""));
 
         sb = new StringBuilder();
         sb.append("Argument <values> is required\n");
         sb.append("\n");
-        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArgumentsAndMultivaluedArgument [-help] [-O option / file] [-v level] <arg0> <arg1> <values>\n");
-        sb.append(" arg0              : arg0\n");
-        sb.append(" arg1              : arg1\n");
-        sb.append(" values            : Other required arguments\n");
-        sb.append(" -help (--help,-?) : Print detailed usage information\n");
-        sb.append(" -O option / file  : Option or option file (file in Java properties format or option as key=value)\n");
-        sb.append(" -v level          : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
-        sb.append("                     severe,-2; off,-3)   Default = info\n");
+        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArgumentsAndMultivaluedArgument [-help] [-O option / file] [-v level] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] <arg0> <arg1> <values>\n");
+        sb.append(" arg0                : arg0\n");
+        sb.append(" arg1                : arg1\n");
+        sb.append(" values              : Other required arguments\n");
+        sb.append(" -help (--help,-?)   : Print detailed usage information\n");
+        sb.append(" -O option / file    : Option or option file (file in Java properties format or option as key=value)\n");
+        sb.append(" -v level            : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
+        sb.append("                       severe,-2; off,-3)   Default = info\n");
+        sb.append(" -files-from file    : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first      : Process input files in descending order of size\n");
+        sb.append(" -output file        : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count  : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes  : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards        : Compress output shards\n");
+        sb.append(" -memory bytes       : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
 
         tool = new WithRequiredArgumentsAndMultivaluedArgument();
         assertEquals(sb.toString(), executeTool(tool, "arg1 arg2", ""));
@@ -188,12 +219,19 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         StringBuilder sb = new StringBuilder();
         sb.append("<-badarg> is not a valid option\n");
         sb.append("\n");
-        sb.append("Usage: TestBaseCommandlineTool$Cat [-help] [-O option / file] [-v level] [-option opt] [files]\n");
-        sb.append(" -help (--help,-?) : Print detailed usage information\n");
-        sb.append(" -O option / file  : Option or option file (file in Java properties format or option as key=value)\n");
-        sb.append(" -v level          : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
-        sb.append("                     severe,-2; off,-3)   Default = info\n");
-        sb.append(" -option opt       : Integer option;   Default = 2\n");
+        sb.append("Usage: TestBaseCommandlineTool$Cat [-help] [-O option / file] [-v level] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] [-option opt] [files]\n");
+        sb.append(" -help (--help,-?)   : Print detailed usage information\n");
+        sb.append(" -O option / file    : Option or option file (file in Java properties format or option as key=value)\n");
+        sb.append(" -v level            : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
+        sb.append("                       severe,-2; off,-3)   Default = info\n");
+        sb.append(" -files-from file    : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first      : Process input files in descending order of size\n");
+        sb.append(" -output file        : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count  : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes  : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards        : Compress output shards\n");
+        sb.append(" -memory bytes       : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
+        sb.append(" -option opt         : Integer option;   Default = 2\n");
 
         assertEquals(sb.toString(), executeTool(new Cat(), "-badarg", ""));
 
@@ -201,16 +239,23 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         sb = new StringBuilder();
         sb.append("Option <-option> is required\n");
         sb.append("\n");
-        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArguments [-help] [-O option / file] [-v level] [-xt threads] <-option value> <arg0> [arg1] [values]\n");
-        sb.append(" arg0              : arg0\n");
-        sb.append(" arg1              : arg1\n");
-        sb.append(" values            : [other args]\n");
-        sb.append(" -help (--help,-?) : Print detailed usage information\n");
-        sb.append(" -O option / file  : Option or option file (file in Java properties format or option as key=value)\n");
-        sb.append(" -v level          : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
-        sb.append("                     severe,-2; off,-3)   Default = info\n");
-        sb.append(" -xt threads       : Maximum threads;   Default = 2\n");
-        sb.append(" -option value     : o\n");
+        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArguments [-help] [-O option / file] [-v level] [-xt threads] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] <-option value> <arg0> [arg1] [values]\n");
+        sb.append(" arg0                : arg0\n");
+        sb.append(" arg1                : arg1\n");
+        sb.append(" values              : [other args]\n");
+        sb.append(" -help (--help,-?)   : Print detailed usage information\n");
+        sb.append(" -O option / file    : Option or option file (file in Java properties format or option as key=value)\n");
+        sb.append(" -v level            : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
+        sb.append("                       severe,-2; off,-3)   Default = info\n");
+        sb.append(" -xt threads         : Maximum threads;   Default = 2\n");
+        sb.append(" -files-from file    : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first      : Process input files in descending order of size\n");
+        sb.append(" -output file        : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count  : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes  : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards        : Compress output shards\n");
+        sb.append(" -memory bytes       : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
+        sb.append(" -option value       : o\n");
 
         WithRequiredArguments tool = new WithRequiredArguments();
         assertEquals(sb.toString(), executeTool(tool, "argument", ""));
@@ -219,16 +264,23 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         sb = new StringBuilder();
         sb.append("Argument <arg0> is required\n");
         sb.append("\n");
-        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArguments [-help] [-O option / file] [-v level] [-xt threads] <-option value> <arg0> [arg1] [values]\n");
-        sb.append(" arg0              : arg0\n");
-        sb.append(" arg1              : arg1\n");
-        sb.append(" values            : [other args]\n");
-        sb.append(" -help (--help,-?) : Print detailed usage information\n");
-        sb.append(" -O option / file  : Option or option file (file in Java properties format or option as key=value)\n");
-        sb.append(" -v level          : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
-        sb.append("                     severe,-2; off,-3)   Default = info\n");
-        sb.append(" -xt threads       : Maximum threads;   Default = 2\n");
-        sb.append(" -option value     : o\n");
+        sb.append("Usage: TestBaseCommandlineTool$WithRequiredArguments [-help] [-O option / file] [-v level] [-xt threads] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] <-option value> <arg0> [arg1] [values]\n");
+        sb.append(" arg0                : arg0\n");
+        sb.append(" arg1                : arg1\n");
+        sb.append(" values              : [other args]\n");
+        sb.append(" -help (--help,-?)   : Print detailed usage information\n");
+        sb.append(" -O option / file    : Option or option file (file in Java properties format or option as key=value)\n");
+        sb.append(" -v level            : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
+        sb.append("                       severe,-2; off,-3)   Default = info\n");
+        sb.append(" -xt threads         : Maximum threads;   Default = 2\n");
+        sb.append(" -files-from file    : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first      : Process input files in descending order of size\n");
+        sb.append(" -output file        : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count  : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes  : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards        : Compress output shards\n");
+        sb.append(" -memory bytes       : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
+        sb.append(" -option value       : o\n");
 
         tool = new WithRequiredArguments();
         assertEquals(sb.toString(), executeTool(tool, "-option foo", ""));
@@ -238,12 +290,19 @@ public class TestBaseCommandlineTool extends ToolTestCase {
     public void testExtendedUsageOutput() throws Exception {
         // Test with an invalid option
         final StringBuilder sb = new StringBuilder();
-        sb.append("Usage: TestBaseCommandlineTool$Cat [-help] [-O option / file] [-v level] [-version] [-option opt] [-hidden] [files]\n");
+        sb.append("Usage: TestBaseCommandlineTool$Cat [-help] [-O option / file] [-v level] [-version] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] [-option opt] [-hidden] [files]\n");
         sb.append(" -help (--help,-?)    : Print detailed usage information\n");
         sb.append(" -O option / file     : Option or option file (file in Java properties format or option as key=value)\n");
         sb.append(" -v level             : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0;\n");
         sb.append("                        warning,-1; severe,-2; off,-3)   Default = info\n");
         sb.append(" -version (--version) : Print version information\n");
+        sb.append(" -files-from file     : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first       : Process input files in descending order of size\n");
+        sb.append(" -output file         : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count   : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes   : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards         : Compress output shards\n");
+        sb.append(" -memory bytes        : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
         sb.append(" -option opt          : Integer option;   Default = 2\n");
         sb.append(" -hidden              : Hidden option\n");
 
@@ -260,20 +319,27 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         final StringBuilder sb = new StringBuilder();
         sb.append("<-option> is not a valid option\n");
         sb.append("\n");
-        sb.append("Usage: TestBaseCommandlineTool$WithEnumField [-help] [-O option / file] [-v level] [enum] [files]\n");
-        sb.append(" enum              : Enum value;   Default = VeryLongOptionNameB\n");
-        sb.append("                       VeryLongOptionNameA,a\n");
-        sb.append("                       VeryLongOptionNameB,b\n");
-        sb.append("                       VeryLongOptionNameC,c\n");
-        sb.append("                       VeryLongOptionNameD,d\n");
-        sb.append("                       VeryLongOptionNameE,e\n");
-        sb.append("                       VeryLongOptionNameF,f\n");
-        sb.append("                       VeryLongOptionNameG,g\n");
-        sb.append("                       VeryLongOptionNameH,h\n");
-        sb.append(" -help (--help,-?) : Print detailed usage information\n");
-        sb.append(" -O option / file  : Option or option file (file in Java properties format or option as key=value)\n");
-        sb.append(" -v level          : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
-        sb.append("                     severe,-2; off,-3)   Default = info\n");
+        sb.append("Usage: TestBaseCommandlineTool$WithEnumField [-help] [-O option / file] [-v level] [-files-from file] [-largest-first] [-output file] [-shard-lines count] [-shard-bytes bytes] [-gzip-shards] [-memory bytes] [enum] [files]\n");
+        sb.append(" enum                : Enum value;   Default = VeryLongOptionNameB\n");
+        sb.append("                         VeryLongOptionNameA,a\n");
+        sb.append("                         VeryLongOptionNameB,b\n");
+        sb.append("                         VeryLongOptionNameC,c\n");
+        sb.append("                         VeryLongOptionNameD,d\n");
+        sb.append("                         VeryLongOptionNameE,e\n");
+        sb.append("                         VeryLongOptionNameF,f\n");
+        sb.append("                         VeryLongOptionNameG,g\n");
+        sb.append("                         VeryLongOptionNameH,h\n");
+        sb.append(" -help (--help,-?)   : Print detailed usage information\n");
+        sb.append(" -O option / file    : Option or option file (file in Java properties format or option as key=value)\n");
+        sb.append(" -v level            : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0; warning,-1;\n");
+        sb.append("                       severe,-2; off,-3)   Default = info\n");
+        sb.append(" -files-from file    : Read input paths or patterns from file, one per line ('-' for STDIN)\n");
+        sb.append(" -largest-first      : Process input files in descending order of size\n");
+        sb.append(" -output file        : Write output to file (using parallel writes)\n");
+        sb.append(" -shard-lines count  : Split -output into shards of at most count lines\n");
+        sb.append(" -shard-bytes bytes  : Split -output into shards of at most the specified size\n");
+        sb.append(" -gzip-shards        : Compress output shards\n");
+        sb.append(" -memory bytes       : Memory budget, divided among -sort, -distinct, etc. (default = 1/2 of max heap)\n");
 
         assertEquals(sb.toString(), executeTool(new WithEnumField(), "-option foo", ""));
     }
@@ -341,6 +407,134 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         assertEquals("unit-test-data/file1.txt : 1\nunit-test-data/file2.txt : 2\n", output);
     }
 
+    /**
+     * Tests expansion of directories, glob patterns, and a file list by {@link InputFileWalker}
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testInputExpansion() throws Exception {
+        final File dir = createTempDir();
+        writeFile(new File(dir, "a.txt"), "1\n");
+        writeFile(new File(dir, "b.txt"), "1\n2\n3\n");
+        writeFile(new File(dir, "c.log"), "1\n2\n");
+        writeFile(new File(dir, ".hidden.txt"), "1\n");
+        new File(dir, "sub").mkdir();
+        writeFile(new File(dir, "sub/d.txt"), "1\n2\n3\n4\n");
+        final String path = dir.getPath();
+
+        // A directory is walked recursively
+        assertEquals(path + "/.hidden.txt : 1\n" + path + "/a.txt : 1\n" + path + "/b.txt : 3\n" + path
+                + "/c.log : 2\n" + path + "/sub/d.txt : 4\n", executeTool(new FileLineCount(), path, ""));
+
+        // Glob patterns (skipping hidden files)
+        assertEquals(path + "/a.txt : 1\n" + path + "/b.txt : 3\n",
+                executeTool(new FileLineCount(), path + "/*.txt", ""));
+        assertEquals(path + "/a.txt : 1\n" + path + "/b.txt : 3\n" + path + "/sub/d.txt : 4\n",
+                executeTool(new FileLineCount(), path + "/**/*.txt", ""));
+        assertEquals(path + "/b.txt : 3\n" + path + "/c.log : 2\n",
+                executeTool(new FileLineCount(), path + "/{b,c}.*", ""));
+
+        // And a file list
+        final File fileList = new File(dir, "files");
+        writeFile(fileList, path + "/a.txt\n" + path + "/sub\n");
+        assertEquals(path + "/a.txt : 1\n" + path + "/sub/d.txt : 4\n",
+                executeTool(new FileLineCount(), "-files-from " + fileList.getPath(), ""));
+        assertEquals(path + "/a.txt : 1\n" + path + "/sub/d.txt : 4\n",
+                executeTool(new FileLineCount(), "-files-from -", path + "/a.txt\n" + path + "/sub\n"));
+
+        // Largest-first ordering
+        final FileLineCount tool = new FileLineCount();
+        executeTool(tool, "-largest-first " + path + "/*.*", "");
+        assertEquals(Arrays.asList(new String[] { path + "/b.txt", path + "/c.log", path + "/a.txt" }),
+                tool.fileOrder);
+    }
+
+    /**
+     * Tests that files are returned in sorted walk order, independent of the order in which the walker
+     * threads complete their directory listings
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWalkOrder() throws Exception {
+        final File dir = createTempDir();
+        final ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            final File sub = new File(dir, "d" + i);
+            for (int j = 0; j < 4; j++) {
+                final File subsub = new File(sub, "e" + j);
+                subsub.mkdirs();
+                for (int k = 0; k < 3; k++) {
+                    final File f = new File(subsub, "f" + k + ".txt");
+                    writeFile(f, "1\n");
+                    expected.add(f.getPath());
+                }
+            }
+            final File f = new File(sub, "g.txt");
+            writeFile(f, "1\n");
+            expected.add(f.getPath());
+        }
+
+        for (final String threads : new String[] { "1", "4" }) {
+            FileLineCount tool = new ThreadedFileLineCount();
+            executeTool(tool, "-xt " + threads + " " + dir.getPath(), "");
+            assertEquals(expected, tool.fileOrder);
+
+            tool = new ThreadedFileLineCount();
+            executeTool(tool, "-xt " + threads + " " + dir.getPath() + "/**/*.txt", "");
+            assertEquals(expected, tool.fileOrder);
+        }
+    }
+
+    /**
+     * Tests reading zip archive entries as separate inputs, and detection of gzip compression from file
+     * contents
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testArchiveInputs() throws Exception {
+        final File dir = createTempDir();
+        final File zip = new File(dir, "archive.zip");
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip));
+        zos.putNextEntry(new ZipEntry("a.txt"));
+        zos.write("1\n".getBytes());
+        zos.putNextEntry(new ZipEntry("sub/"));
+        zos.putNextEntry(new ZipEntry("sub/b.dat"));
+        zos.write(gzip("1\n2\n"));
+        zos.putNextEntry(new ZipEntry("sub/c.txt"));
+        zos.write("1\n2\n3\n".getBytes());
+        zos.close();
+        zip.deleteOnExit();
+
+        final File gz = new File(dir, "compressed.dat");
+        final FileOutputStream os = new FileOutputStream(gz);
+        os.write(gzip("1\n2\n3\n4\n"));
+        os.close();
+        gz.deleteOnExit();
+
+        final FileLineCount tool = new FileLineCount();
+        assertEquals(zip.getPath() + "!a.txt : 1\n" + zip.getPath() + "!sub/b.dat : 2\n" + zip.getPath()
+                + "!sub/c.txt : 3\n" + gz.getPath() + " : 4\n",
+                executeTool(tool, zip.getPath() + " " + gz.getPath(), ""));
+        // Entries should be presented in archive order
+        assertEquals(Arrays.asList(new String[] { zip.getPath() + "!a.txt", zip.getPath() + "!sub/b.dat",
+                zip.getPath() + "!sub/c.txt", gz.getPath() }), tool.fileOrder);
+
+        // Opening an archive directly reads all entries
+        assertEquals("1\n1\n2\n1\n2\n3\n", new FileLineCount().fileAsString(zip.getPath()));
+        assertEquals("1\n2\n3\n", new FileLineCount().fileAsString(zip.getPath() + "!sub/c.txt"));
+    }
+
+    private byte[] gzip(final String s) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(s.getBytes());
+        gos.close();
+        return bos.toByteArray();
+    }
+
     @Test
     public void testCalendarOptionHandler() throws Exception {
         final WithCalendarField tool = new WithCalendarField();
@@ -478,6 +672,37 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         }
     }
 
+    /**
+     * Counts lines in each input file, reporting files in lexical order
+     */
+    private static class FileLineCount extends BaseCommandlineTool {
+
+        private TreeMap<String, Integer> lines = new TreeMap<String, Integer>();
+        private ArrayList<String> fileOrder = new ArrayList<String>();
+
+        @Override
+        protected void beginFile(final String filename) {
+            fileOrder.add(filename);
+        }
+
+        @Override
+        public void run() throws Exception {
+            final BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                int count = lines.containsKey(currentInputFile) ? lines.get(currentInputFile) : 0;
+                lines.put(currentInputFile, count + 1);
+            }
+
+            for (String filename : lines.keySet()) {
+                System.out.println(filename + " : " + lines.get(filename));
+            }
+        }
+    }
+
+    @Threadable
+    private static class ThreadedFileLineCount extends FileLineCount {
+    }
+
     private static class WithMultivaluedOption extends BaseCommandlineTool {
         @Option(name = "-i", multiValued = true, separator = ",", usage = "[args]", metaVar = "args")
         private int[] intOpts = { 1 };
@@ -0,0 +1,119 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ByteScanner} and {@link LineSplitter}. The {@link #main(String[])} method benchmarks
+ * word-at-a-time scanning against a scalar loop.
+ *
+ * @author Aaron Dunlop
+ */
+public class TestByteScanner {
+
+    /**
+     * Compares word-at-a-time and scalar scans at every alignment and range length
+     */
+    @Test
+    public void testIndexOf() {
+        final Random r = new Random(1);
+        final byte[] buf = new byte[64];
+        for (int trial = 0; trial < 100; trial++) {
+            for (int i = 0; i < buf.length; i++) {
+                // Include negative bytes, to check sign handling
+                buf[i] = (byte) (r.nextInt(8) - 4);
+            }
+            for (int from = 0; from < buf.length; from++) {
+                for (int to = from; to <= buf.length; to++) {
+                    for (byte b = -4; b < 4; b++) {
+                        assertEquals(ByteScanner.scalarIndexOf(b, buf, from, to),
+                                ByteScanner.swarIndexOf(b, buf, from, to));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        assertSplit("a|bc||d|", "a\nbc\n\nd\n", '\n');
+        assertSplit("a|bc||d|", "a\r\nbc\n\r\nd", '\n');
+        assertSplit("a\r|b|", "a\r\0b\0", '\0');
+        assertSplit("", "", '\n');
+
+        // Many lines, spanning multiple buffers
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            input.append("line ").append(i).append('\n');
+            expected.append("line ").append(i).append('|');
+        }
+        assertSplit(expected.toString(), input.toString(), '\n');
+    }
+
+    private void assertSplit(final String expected, final String input, final char delimiter)
+            throws Exception {
+        final LineSplitter splitter = new LineSplitter(new ByteArrayInputStream(input.getBytes()), 0,
+                Charset.defaultCharset(), (byte) delimiter);
+        final StringBuilder sb = new StringBuilder();
+        while (splitter.next()) {
+            sb.append(splitter.line());
+            sb.append('|');
+        }
+        assertEquals(expected, sb.toString());
+    }
+
+    /**
+     * Benchmarks newline scanning over lines of 100-300 bytes.
+     *
+     * @param args
+     */
+    public static void main(final String[] args) throws Exception {
+        final Random r = new Random(1);
+        final byte[] buf = new byte[64 * 1024 * 1024];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte) (' ' + r.nextInt(90));
+        }
+        int lines = 0;
+        for (int i = 100 + r.nextInt(200); i < buf.length; i += 100 + r.nextInt(200)) {
+            buf[i] = '\n';
+            lines++;
+        }
+        System.out.format("%d MB, %d lines. Word-at-a-time scanning %s\n", buf.length >> 20, lines,
+                ByteScanner.SWAR_SUPPORTED ? "supported" : "unsupported");
+
+        for (int iteration = 0; iteration < 5; iteration++) {
+            final long t0 = System.nanoTime();
+            int count = 0;
+            for (int i = ByteScanner.scalarIndexOf((byte) '\n', buf, 0, buf.length); i >= 0; i = ByteScanner
+                    .scalarIndexOf((byte) '\n', buf, i + 1, buf.length)) {
+                count++;
+            }
+            final long t1 = System.nanoTime();
+            for (int i = ByteScanner.indexOf((byte) '\n', buf, 0, buf.length); i >= 0; i = ByteScanner
+                    .indexOf((byte) '\n', buf, i + 1, buf.length)) {
+                count--;
+            }
+            final long t2 = System.nanoTime();
+
+            final LineSplitter splitter = new LineSplitter(new ByteArrayInputStream(buf));
+            while (splitter.next()) {
+                count += splitter.length() >= 0 ? 0 : 1;
+            }
+            final long t3 = System.nanoTime();
+
+            System.out.format("Scalar: %6.0f MB/s   Word-at-a-time: %6.0f MB/s   LineSplitter: %6.0f MB/s %s\n",
+                    mbPerSecond(buf.length, t1 - t0), mbPerSecond(buf.length, t2 - t1),
+                    mbPerSecond(buf.length, t3 - t2), count == 0 ? "" : "(mismatch!)");
+        }
+    }
+
+    private static double mbPerSecond(final long bytes, final long nanos) {
+        return bytes / 1024.0 / 1024.0 / (nanos / 1e9);
+    }
+}
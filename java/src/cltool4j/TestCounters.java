@@ -0,0 +1,114 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link LongCounter}, {@link IntCounter}, and {@link SymbolCounter}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestCounters {
+
+    @Test
+    public void testLongCounter() throws Exception {
+        for (final int stripes : new int[] { 1, 3, 64 }) {
+            final LongCounter counter = new LongCounter(stripes);
+            for (long key = -1000; key < 100000; key++) {
+                counter.increment(key);
+            }
+            for (long key = 0; key < 100000; key += 2) {
+                counter.add(key * 1000000007L, 5);
+            }
+            assertEquals(1, counter.get(-1000));
+            assertEquals(6, counter.get(0));
+            assertEquals(1, counter.get(99999));
+            assertEquals(5, counter.get(2 * 1000000007L));
+            assertEquals(0, counter.get(100000));
+            assertEquals(101000 + 49999, counter.size());
+            assertEquals(101000 + 5 * 50000, counter.total());
+
+            // The cursor visits every key once (including 0)
+            final HashMap<Long, Long> visited = new HashMap<Long, Long>();
+            for (final LongCounter.Cursor c = counter.cursor(); c.next();) {
+                assertEquals(null, visited.put(c.key(), c.count()));
+            }
+            assertEquals(counter.size(), visited.size());
+            assertEquals(6L, visited.get(0L).longValue());
+        }
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final IntCounter counter = new IntCounter();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200000; i++) {
+                        counter.increment(i % 5000);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        assertEquals(5000, counter.size());
+        for (int key = 0; key < 5000; key++) {
+            assertEquals(160, counter.get(key));
+        }
+    }
+
+    @Test
+    public void testSnapshotAndMerge() throws Exception {
+        final IntCounter c1 = new IntCounter(1), c2 = new IntCounter(8);
+        for (int key = 0; key < 1000; key++) {
+            c1.add(key, key);
+            c2.add(key + 500, 1);
+        }
+        final IntCounter snapshot = c1.snapshot();
+        c1.merge(c2);
+        assertEquals(499, c1.get(499));
+        assertEquals(501, c1.get(500));
+        assertEquals(1, c1.get(1499));
+        assertEquals(1500, c1.size());
+
+        // The snapshot is unaffected by later updates
+        assertEquals(500, snapshot.get(500));
+        assertEquals(1000, snapshot.size());
+    }
+
+    @Test
+    public void testSymbolCounter() throws Exception {
+        final SymbolTable shared = new SymbolTable();
+        final SymbolCounter c1 = new SymbolCounter(shared), c2 = new SymbolCounter(shared);
+        final SymbolCounter c3 = new SymbolCounter();
+        final byte[] line = "the cat the hat".getBytes("UTF-8");
+        c1.increment(line, 0, 3);
+        c1.increment(line, 4, 3);
+        c1.increment(line, 8, 3);
+        c2.increment("hat");
+        c3.add("the", 3);
+        c3.increment("bat");
+        assertEquals(2, c1.get("the"));
+        assertEquals(0, c1.get("hat"));
+        // Symbols never counted (or not yet interned) have count 0
+        assertEquals(0, c1.get("dog"));
+
+        // Merge by ID (with a shared table) and by symbol (with separate tables)
+        c1.merge(c2);
+        c1.merge(c3);
+        assertEquals(5, c1.get("the"));
+        assertEquals(1, c1.get("cat"));
+        assertEquals(1, c1.get("hat"));
+        assertEquals(1, c1.get("bat"));
+        assertEquals(4, c1.counts().size());
+        assertEquals(8, c1.counts().total());
+    }
+}
@@ -0,0 +1,96 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CsvCommandlineTool} and {@link CsvRecordSource}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestCsvCommandlineTool extends ToolTestCase {
+
+    @Test
+    public void testQuotedFields() throws Exception {
+        final String input = "a,b,c\n\"x,y\",\"multi\nline\",\"say \"\"hi\"\"\"\r\n\n,,\nlast,\"\"";
+        final String expected = "a|b|c\nx,y|multi\\nline|say \"hi\"\n||\nlast|\n";
+
+        for (final String threads : new String[] { "-xt 1", "-xt 3" }) {
+            for (int chunkSize = 1; chunkSize < 16; chunkSize++) {
+                assertEquals(expected, executeTool(new CsvCat(chunkSize), threads, input));
+            }
+        }
+        assertEquals("a|b,c\n", executeTool(new CsvCat(1024), "-fs \\t", "a\tb,c\n"));
+    }
+
+    /**
+     * Compares parallel parsing of random records (including quotes, separators, and newlines within fields)
+     * with chunks of various sizes against the expected records.
+     */
+    @Test
+    public void testRandomRecords() throws Exception {
+        final Random r = new Random(1);
+        final String alphabet = "ab\",\n\r ";
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+
+        for (int i = 0; i < 500; i++) {
+            final String[] fields = new String[1 + r.nextInt(4)];
+            for (int j = 0; j < fields.length; j++) {
+                final StringBuilder field = new StringBuilder();
+                // Ensure the first field is non-empty and unquoted, so the record is never blank
+                field.append(j == 0 ? "f" : "");
+                for (int k = r.nextInt(8); k > 0; k--) {
+                    field.append(alphabet.charAt(r.nextInt(alphabet.length())));
+                }
+                fields[j] = field.toString();
+            }
+            input.append(CsvRecordSource.format(fields, ','));
+            input.append(r.nextBoolean() ? "\n" : "\r\n");
+            expected.append(CsvCat.format(fields));
+            expected.append('\n');
+        }
+
+        for (final String threads : new String[] { "-xt 1", "-xt 3" }) {
+            for (final int chunkSize : new int[] { 3, 17, 64, 1000, 65536 }) {
+                assertEquals(expected.toString(), executeTool(new CsvCat(chunkSize), threads, input.toString()));
+            }
+        }
+    }
+
+    /**
+     * Outputs fields separated by '|', with newlines escaped
+     */
+    private static class CsvCat extends CsvCommandlineTool {
+
+        public CsvCat(final int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected FutureTask<String> recordTask(final String[] fields) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return format(fields);
+                }
+            });
+        }
+
+        static String format(final String[] fields) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    sb.append('|');
+                }
+                sb.append(fields[i].replace("\n", "\\n").replace("\r", "\\r"));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DistinctFilter} implementations
+ *
+ * @author Aaron Dunlop
+ */
+public class TestDistinctFilter {
+
+    @Test
+    public void testExact() throws Exception {
+        // A small table, forcing many spills (and merges of spilled runs)
+        final ExactDistinctFilter filter = new ExactDistinctFilter(16 * 1024, null);
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(filter.add("record " + i));
+            assertFalse(filter.add("record " + i / 2));
+        }
+        assertTrue(filter.runs() > 1);
+        for (int i = 0; i < 20000; i++) {
+            assertFalse(filter.add("record " + i));
+        }
+        assertTrue(filter.add("record 20000"));
+        assertEquals(20001, filter.count());
+        filter.close();
+    }
+
+    /**
+     * Adds the same records from several threads; each must be reported as distinct exactly once
+     */
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        for (final DistinctFilter filter : new DistinctFilter[] { new ExactDistinctFilter(64 * 1024, null),
+                new BloomDistinctFilter(100000, .00001) }) {
+            final AtomicLong distinct = new AtomicLong();
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 20000; i++) {
+                                if (filter.add("record " + i)) {
+                                    distinct.incrementAndGet();
+                                }
+                            }
+                        } catch (final IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (final Thread t : threads) {
+                t.join();
+            }
+            assertEquals(20000, distinct.get());
+            assertEquals(20000, filter.count());
+            filter.close();
+        }
+    }
+
+    @Test
+    public void testApproximate() throws Exception {
+        for (final double rate : new double[] { .01, .001 }) {
+            final BloomDistinctFilter filter = new BloomDistinctFilter(100000, rate);
+            int falsePositives = 0;
+            for (int i = 0; i < 100000; i++) {
+                if (!filter.add("record " + i)) {
+                    falsePositives++;
+                }
+                assertFalse(filter.add("record " + i));
+            }
+            // The observed rate (over the course of filling the filter) should be below the target rate, but
+            // not by too much (or the filter is larger than necessary)
+            final double observed = falsePositives / 100000.0;
+            assertTrue("Observed " + observed, observed < rate && observed > rate / 10);
+            filter.close();
+        }
+
+        // The blocked filter's size should be reasonably close to that of a conventional Bloom filter
+        final BloomDistinctFilter filter = new BloomDistinctFilter(1000000, .01);
+        final double conventionalBits = -1000000 * Math.log(.01) / (Math.log(2) * Math.log(2));
+        assertTrue(filter.bytes() * 8 < conventionalBits * 1.5);
+        filter.close();
+    }
+
+    @Test
+    public void testHash() throws Exception {
+        // Records which differ only in their final byte (at every tail length), or in length, must be distinct
+        final ExactDistinctFilter filter = new ExactDistinctFilter(1024 * 1024, null);
+        final byte[] buf = new byte[40];
+        for (int len = 0; len < buf.length; len++) {
+            for (int b = 0; b < 4; b++) {
+                if (len > 0) {
+                    buf[len - 1] = (byte) b;
+                }
+                assertTrue(filter.add(buf, 0, len) || len == 0 && b > 0);
+            }
+        }
+        filter.close();
+    }
+}
@@ -0,0 +1,145 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link FieldCursor}. The {@link #main(String[])} method benchmarks field iteration and numeric
+ * parsing against {@link String#split(String)}.
+ *
+ * @author Aaron Dunlop
+ */
+public class TestFieldCursor {
+
+    @Test
+    public void testFields() {
+        final FieldCursor cursor = new FieldCursor();
+        assertFields(cursor, "a\tbc\t\td", "a", "bc", "", "d");
+        assertFields(cursor, "", "");
+        assertFields(cursor, "\t", "", "");
+        assertFields(cursor, "abc\t", "abc", "");
+
+        cursor.reset("a,b,c,d", ',');
+        assertTrue(cursor.seek(2));
+        assertEquals("c", cursor.string());
+        assertTrue(cursor.seek(0));
+        assertTrue(cursor.contentEquals("a"));
+        assertFalse(cursor.contentEquals("ab"));
+        assertFalse(cursor.seek(4));
+    }
+
+    private void assertFields(final FieldCursor cursor, final String line, final String... expected) {
+        cursor.reset(line);
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.index());
+            assertEquals(expected[i], cursor.string());
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testParseLong() {
+        for (final String s : new String[] { "0", "-0", "1", "-1", "+7", "123456789", "9223372036854775807",
+                "-9223372036854775808", "2147483647", "-2147483648", "000123" }) {
+            assertEquals(s, Long.parseLong(s.startsWith("+") ? s.substring(1) : s), FieldCursor.parseLong(s, 0,
+                    s.length()));
+        }
+        for (final String s : new String[] { "", "-", "+", "1a", "9223372036854775808", "-9223372036854775809",
+                "1.0", " 1", "--1" }) {
+            try {
+                FieldCursor.parseLong(s, 0, s.length());
+                fail("Expected NumberFormatException: " + s);
+            } catch (final NumberFormatException expected) {
+            }
+        }
+        assertEquals(Integer.MIN_VALUE, FieldCursor.parseInt("x-2147483648x", 1, 12));
+        try {
+            FieldCursor.parseInt("2147483648", 0, 10);
+            fail("Expected NumberFormatException");
+        } catch (final NumberFormatException expected) {
+        }
+    }
+
+    @Test
+    public void testParseDouble() {
+        for (final String s : new String[] { "0", "-0", "0.0", "1", "-1.5", ".5", "5.", "3.14159", "1e10",
+                "1.5E-7", "-2.5e+3", "123456789012345", "1234567890123456789", "0.1", "0.3", "1e22", "1e23",
+                "1e-22", "4.9e-324", "1.7976931348623157e308", "NaN", "-Infinity", "0x1p3", "1d", " 2 ",
+                "0.000000000000000000000000123", "9007199254740993" }) {
+            assertEquals(s, Double.doubleToLongBits(Double.parseDouble(s)),
+                    Double.doubleToLongBits(FieldCursor.parseDouble(s, 0, s.length())));
+        }
+
+        final Random r = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            final String s = (r.nextInt(1000000) - 500000) + "." + r.nextInt(100000)
+                    + (r.nextBoolean() ? "e" + (r.nextInt(40) - 20) : "");
+            assertEquals(s, Double.parseDouble(s), FieldCursor.parseDouble(s, 0, s.length()), 0);
+        }
+
+        for (final String s : new String[] { "", ".", "-", "1e", "e5", "1..2", "abc" }) {
+            try {
+                FieldCursor.parseDouble(s, 0, s.length());
+                fail("Expected NumberFormatException: " + s);
+            } catch (final NumberFormatException expected) {
+            }
+        }
+    }
+
+    /**
+     * Benchmarks summing the numeric columns of TSV lines with {@link FieldCursor} and with
+     * {@link String#split(String)}.
+     *
+     * @param args
+     */
+    public static void main(final String[] args) {
+        // A typical shape: a string key, a few integer counts, and a couple of real-valued scores
+        final Random r = new Random(1);
+        final String[] lines = new String[1000000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = "key" + r.nextInt(100000) + '\t' + r.nextInt(1000) + '\t' + r.nextInt(1000000) + '\t'
+                    + r.nextInt(100) + '\t' + String.format(Locale.US, "%.4f", r.nextDouble() * 100) + '\t'
+                    + (float) (r.nextGaussian());
+        }
+
+        final FieldCursor cursor = new FieldCursor();
+        for (int iteration = 0; iteration < 5; iteration++) {
+            final long t0 = System.nanoTime();
+            double splitTotal = 0;
+            for (final String line : lines) {
+                final String[] fields = line.split("\t");
+                splitTotal += Integer.parseInt(fields[1]) + Integer.parseInt(fields[2])
+                        + Integer.parseInt(fields[3]) + Double.parseDouble(fields[4])
+                        + Double.parseDouble(fields[5]);
+            }
+            final long t1 = System.nanoTime();
+
+            double cursorTotal = 0;
+            for (final String line : lines) {
+                cursor.reset(line);
+                cursor.skip(2);
+                final int a = cursor.parseInt();
+                cursor.next();
+                final int b = cursor.parseInt();
+                cursor.next();
+                final int c = cursor.parseInt();
+                cursor.next();
+                final double d = cursor.parseDouble();
+                cursor.next();
+                cursorTotal += a + b + c + d + cursor.parseDouble();
+            }
+            final long t2 = System.nanoTime();
+
+            System.out.format("split: %5d ms   FieldCursor: %5d ms %s\n", (t1 - t0) / 1000000,
+                    (t2 - t1) / 1000000, splitTotal == cursorTotal ? "" : "(mismatch!)");
+        }
+    }
+}
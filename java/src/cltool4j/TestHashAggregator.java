@@ -0,0 +1,129 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HashAggregator}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestHashAggregator {
+
+    @Test
+    public void testCounter() throws Exception {
+        // A generous budget (no spills) and a tiny one (many spills, and a multi-pass merge)
+        for (final long budget : new long[] { 64 * 1024 * 1024, 16 * 1024 }) {
+            final HashAggregator.Counter counter = new HashAggregator.Counter(budget, 8, null);
+            final Map<String, Long> expected = new HashMap<String, Long>();
+
+            // Add counts from several threads
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final Random r = new Random(t);
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 50000; i++) {
+                                counter.increment("key" + r.nextInt(20000));
+                            }
+                        } catch (final IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                threads[t].start();
+
+                final Random r2 = new Random(t);
+                for (int i = 0; i < 50000; i++) {
+                    final String key = "key" + r2.nextInt(20000);
+                    expected.put(key, expected.containsKey(key) ? expected.get(key) + 1 : 1);
+                }
+            }
+            for (final Thread t : threads) {
+                t.join();
+            }
+
+            if (budget < 1024 * 1024) {
+                assertTrue(counter.spills() > 8 * 64);
+            } else {
+                assertEquals(0, counter.spills());
+            }
+            assertEquals(expected, aggregate(counter));
+        }
+    }
+
+    /**
+     * Tests a non-commutative aggregation (concatenation), which must combine values in the order they were
+     * added
+     */
+    @Test
+    public void testGrouping() throws Exception {
+        final HashAggregator<StringBuilder> concatenator = new HashAggregator<StringBuilder>(8 * 1024, 4, null) {
+            @Override
+            protected StringBuilder combine(final StringBuilder v1, final StringBuilder v2) {
+                return v1.append(',').append(v2);
+            }
+
+            @Override
+            protected void writeValue(final DataOutput out, final StringBuilder value) throws IOException {
+                out.writeUTF(value.toString());
+            }
+
+            @Override
+            protected StringBuilder readValue(final DataInput in) throws IOException {
+                return new StringBuilder(in.readUTF());
+            }
+
+            @Override
+            protected long valueBytes(final StringBuilder value) {
+                return 48 + value.capacity() * 2;
+            }
+        };
+
+        final Map<String, StringBuilder> expected = new HashMap<String, StringBuilder>();
+        for (int i = 0; i < 10000; i++) {
+            final String key = Integer.toString(i % 97);
+            concatenator.add(key, new StringBuilder(Integer.toString(i)));
+            if (expected.containsKey(key)) {
+                expected.get(key).append(',').append(i);
+            } else {
+                expected.put(key, new StringBuilder(Integer.toString(i)));
+            }
+        }
+        assertTrue(concatenator.spills() > 0);
+
+        final Map<String, StringBuilder> actual = aggregate(concatenator);
+        assertEquals(expected.size(), actual.size());
+        for (final String key : expected.keySet()) {
+            assertEquals(expected.get(key).toString(), actual.get(key).toString());
+        }
+    }
+
+    private <V> Map<String, V> aggregate(final HashAggregator<V> aggregator) throws Exception {
+        final Map<String, V> aggregated = new TreeMap<String, V>();
+        final ArrayList<String> duplicates = new ArrayList<String>();
+        aggregator.finish(3, new HashAggregator.Handler<V>() {
+            @Override
+            public void handle(final String key, final V value) {
+                if (aggregated.put(key, value) != null) {
+                    duplicates.add(key);
+                }
+            }
+        });
+        assertEquals(0, duplicates.size());
+        return aggregated;
+    }
+}
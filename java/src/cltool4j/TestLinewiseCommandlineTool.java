@@ -1,8 +1,24 @@
 package cltool4j;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
+import java.io.File;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -28,8 +44,825 @@ public class TestLinewiseCommandlineTool extends ToolTestCase {
 	}
 
 	/**
-	 * Outputs each line as-is.
+	 * Tests a custom record separator
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecordSeparator() throws Exception {
+		final String input = "a\0b c\0\0d\n";
+		// Note that empty output lines are suppressed
+		assertEquals("a\nb c\nd\n\n", executeTool(new LinewiseCat(),
+				"-rs \\0", input));
+		assertEquals("a\nb\nc\n", executeTool(new LinewiseCat(),
+				"-xt 2 -rs ,", "a,b,,c"));
+	}
+
+	/**
+	 * Tests handling of lines longer than the maximum line length, both
+	 * streamed to a long-line task and quarantined.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLongLines() throws Exception {
+		final StringBuilder longLine = new StringBuilder();
+		// Longer than the splitter's buffer, so we exercise reading directly
+		// from the input stream
+		for (int i = 0; i < 200000; i++) {
+			longLine.append((char) ('a' + i % 26));
+		}
+		final String input = "short 1\n" + longLine + "\nshort 2\n" + longLine
+				+ "\r\nshort 3\n";
+
+		for (final String threads : new String[] { "-xt 1", "-xt 2" }) {
+			// Stream long lines to the tool
+			assertEquals("short 1\nlong: 200000\nshort 2\nlong: 200000\nshort 3\n",
+					executeTool(new LongLineCat(), threads + " -max-line 100",
+							input));
+
+			// Quarantine them
+			final File quarantine = File.createTempFile("quarantine", ".txt");
+			quarantine.deleteOnExit();
+			assertEquals("short 1\nshort 2\nshort 3\n", executeTool(
+					new LinewiseCat(), threads + " -max-line 100 -quarantine "
+							+ quarantine.getPath() + " -v -2", input));
+			assertEquals(longLine + "\n" + longLine + "\n", new String(
+					new LinewiseCat().fileAsString(quarantine.getPath())));
+		}
+
+		// Without a limit, long lines are processed normally
+		assertEquals("short 1\n" + longLine + "\nshort 2\n" + longLine
+				+ "\nshort 3\n", executeTool(new LinewiseCat(), "", input));
+	}
+
+	/**
+	 * Tests lines spanning the splitter's buffers, whose unread data is moved
+	 * to a new buffer while they are scanned. Lines merged by a mis-scan would
+	 * exceed the maximum line length.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLinesSpanningBuffers() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			input.append("line ").append(i).append('\n');
+			expected.append("line ").append(i).append('\n');
+			if (i == 10000) {
+				for (int j = 0; j < 100000; j++) {
+					input.append((char) ('a' + j % 26));
+				}
+				input.append('\n');
+				expected.append("long: 100000\n");
+			}
+		}
+
+		for (final String threads : new String[] { "-xt 1", "-xt 2" }) {
+			assertEquals(expected.toString(), executeTool(new LongLineCat(),
+					threads + " -max-line 100", input.toString()));
+		}
+	}
+
+	/**
+	 * Outputs short lines as-is, and the length of long lines.
+	 */
+	private static class LongLineCat extends LinewiseCat {
+		@Override
+		protected FutureTask<String> longLineTask(final Reader line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() throws Exception {
+					final char[] segment = new char[64];
+					int length = 0;
+					for (int n = line.read(segment); n >= 0; n = line.read(segment)) {
+						length += n;
+					}
+					return "long: " + length;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tests a filter which passes some lines through unchanged (written
+	 * directly from the input bytes) and transforms others
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testPassthrough() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			input.append("line " + i + (i % 2 == 0 ? "\r\n" : "\n"));
+			if (i % 3 == 0) {
+				expected.append("line " + i + "\n");
+			} else if (i % 3 == 1) {
+				expected.append("LINE " + i + "\n");
+			}
+		}
+		for (final String threads : new String[] { "-xt 1", "-xt 2" }) {
+			assertEquals(expected.toString(), executeTool(new Filter(),
+					threads, input.toString()));
+		}
+	}
+
+	/**
+	 * Verifies that output written to a file with parallel positional writes
+	 * is identical to the output written to STDOUT
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFileOutput() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			input.append("line " + i).append('\n');
+		}
+		final String expected = executeTool(new Filter(), "-xt 1", input
+				.toString());
+
+		final File output = File.createTempFile("output", ".txt");
+		output.deleteOnExit();
+		for (final String threads : new String[] { "-xt 1", "-xt 4" }) {
+			assertEquals("", executeTool(new Filter(), threads + " -output "
+					+ output.getPath(), input.toString()));
+			assertEquals(expected, new LinewiseCat().fileAsString(output
+					.getPath()));
+		}
+
+		// And with tiny batches, so many batches are written concurrently
+		final PositionalFileOutput fileOutput = new PositionalFileOutput(output,
+				4, 7);
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			fileOutput.writeRecord("record " + i);
+			sb.append("record " + i + "\n");
+		}
+		fileOutput.close();
+		assertEquals(sb.length(), output.length());
+		assertEquals(sb.toString(), new LinewiseCat().fileAsString(output
+				.getPath()));
+	}
+
+	/**
+	 * Tests splitting output into shards, verifying that concatenating the
+	 * shards listed in the manifest reproduces the output
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testShardedOutput() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			input.append("line " + i).append('\n');
+		}
+		final String expected = executeTool(new Filter(), "-xt 1", input
+				.toString());
+
+		final File dir = createTempDir();
+		final File output = new File(dir, "out");
+		for (final String args : new String[] { "-xt 1 -shard-lines 1000",
+				"-xt 4 -shard-lines 1000 -gzip-shards",
+				"-xt 4 -shard-bytes 5000", "-xt 2 -shard-lines 77 -shard-bytes 999" }) {
+			assertEquals("", executeTool(new Filter(), args + " -output "
+					+ output.getPath(), input.toString()));
+
+			final StringBuilder concatenated = new StringBuilder();
+			int shards = 0;
+			for (final String shard : new LinewiseCat().fileAsString(
+					output.getPath() + ".manifest").split("\n")) {
+				final File f = new File(dir, shard);
+				f.deleteOnExit();
+				final String content = new LinewiseCat().fileAsString(f
+						.getPath());
+				if (args.contains("-shard-bytes")) {
+					assertTrue(content.length() <= (args.contains("999") ? 999
+							: 5000));
+				}
+				if (args.contains("-shard-lines")) {
+					assertTrue(content.split("\n").length <= (args
+							.contains("77") ? 77 : 1000));
+				}
+				concatenated.append(content);
+				shards++;
+			}
+			assertTrue(shards > 1);
+			assertEquals(expected, concatenated.toString());
+			new File(output.getPath() + ".manifest").deleteOnExit();
+		}
+	}
+
+	/**
+	 * Tests hash-partitioning output by key, verifying that each partition
+	 * contains exactly the records with its keys, in input order
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testPartitionedOutput() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			input.append("line " + i + " x\tkey" + (i % 37)).append('\n');
+		}
+		final String expected = executeTool(new Filter(), "-xt 1", input
+				.toString());
+
+		final File dir = createTempDir();
+		final File output = new File(dir, "out");
+		for (final String args : new String[] { "-xt 1 -partitions 5",
+				"-xt 4 -partitions 7 -gzip-shards" }) {
+			assertEquals("", executeTool(new Filter(), args + " -key 2 -output "
+					+ output.getPath(), input.toString()));
+			final int partitions = args.contains("-partitions 5") ? 5 : 7;
+			final boolean gzip = args.contains("gzip");
+
+			final StringBuilder[] expectedPartitions = new StringBuilder[partitions];
+			for (int p = 0; p < partitions; p++) {
+				expectedPartitions[p] = new StringBuilder();
+			}
+			for (final String record : expected.split("\n")) {
+				final String key = record.split("\t")[1];
+				expectedPartitions[(key.hashCode() & 0x7fffffff) % partitions]
+						.append(record).append('\n');
+			}
+			for (int p = 0; p < partitions; p++) {
+				final File f = PartitionedOutput.partitionFile(output, p, gzip);
+				f.deleteOnExit();
+				assertEquals(expectedPartitions[p].toString(),
+						new LinewiseCat().fileAsString(f.getPath()));
+			}
+		}
+
+		// Partitions are not sharded
+		final String usage = executeTool(new Filter(),
+				"-partitions 5 -shard-lines 100 -output " + output.getPath(),
+				input.toString());
+		assertTrue(usage, usage.contains(
+				"-partitions cannot be combined with -shard-lines or -shard-bytes"));
+	}
+
+	/**
+	 * Tests sorting output by key, both in memory and with small memory
+	 * budgets (forcing runs to be spilled to disk and merged in multiple
+	 * passes). The sort must be stable.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSortedOutput() throws Exception {
+		final Random r = new Random(1);
+		final StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			input.append("line " + i + " x\t" + r.nextInt(2000) / 10.0)
+					.append('\n');
+		}
+		final List<String> records = new ArrayList<String>(Arrays
+				.asList(executeTool(new Filter(), "-xt 1", input.toString())
+						.split("\n")));
+
+		final List<String> lexicographic = new ArrayList<String>(records);
+		Collections.sort(lexicographic, new Comparator<String>() {
+			public int compare(final String o1, final String o2) {
+				return o1.split("\t")[1].compareTo(o2.split("\t")[1]);
+			}
+		});
+		final List<String> numeric = new ArrayList<String>(records);
+		Collections.sort(numeric, new Comparator<String>() {
+			public int compare(final String o1, final String o2) {
+				return Double.compare(Double.parseDouble(o1.split("\t")[1]),
+						Double.parseDouble(o2.split("\t")[1]));
+			}
+		});
+
+		for (final String args : new String[] { "-xt 1", "-xt 4",
+				"-xt 1 -sort-buffer 20000", "-xt 4 -sort-buffer 20000",
+				"-xt 4 -memory 40k" }) {
+			assertEquals(join(lexicographic), executeTool(new Filter(), args
+					+ " -sort -key 2", input.toString()));
+			assertEquals(join(numeric), executeTool(new Filter(), args
+					+ " -sort-numeric -key 2", input.toString()));
+		}
+	}
+
+	private static String join(final List<String> records) {
+		final StringBuilder sb = new StringBuilder();
+		for (final String record : records) {
+			sb.append(record).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Tests deduplication of input lines and of output records, with exact
+	 * (spilling) and approximate filters
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDistinct() throws Exception {
+		// Distinct input lines which produce duplicate output (Filter
+		// upper-cases some lines)
+		final Random r = new Random(1);
+		final StringBuilder input = new StringBuilder();
+		final Set<String> distinctLines = new LinkedHashSet<String>();
+		for (int i = 0; i < 10000; i++) {
+			final int n = r.nextInt(3000);
+			final String line = r.nextBoolean() ? "line " + n + " x\tkey" : "LINE "
+					+ n + " X\tKEY";
+			input.append(line).append('\n');
+			distinctLines.add(line);
+		}
+		final StringBuilder distinctInput = new StringBuilder();
+		for (final String line : distinctLines) {
+			distinctInput.append(line).append('\n');
+		}
+		final String expectedInput = executeTool(new Filter(), "-xt 1",
+				distinctInput.toString());
+		final Set<String> distinctOutput = new LinkedHashSet<String>(Arrays
+				.asList(executeTool(new Filter(), "-xt 1", input.toString())
+						.split("\n")));
+		final String expectedOutput = join(new ArrayList<String>(
+				distinctOutput));
+
+		for (final String args : new String[] { "-xt 1",
+				"-xt 4 -distinct-buffer 16384", "-xt 4 -memory 16k",
+				"-xt 4 -distinct-fpr .0001 -distinct-records 100000" }) {
+			assertEquals(expectedInput, executeTool(new Filter(), args
+					+ " -distinct input", input.toString()));
+			assertEquals(expectedOutput, executeTool(new Filter(), args
+					+ " -distinct output", input.toString()));
+		}
+	}
+
+	/**
+	 * Tests merging thread-local partial results at the end of input
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMergedThreadLocals() throws Exception {
+		final Random r = new Random(1);
+		final StringBuilder input = new StringBuilder();
+		final TreeMap<String, Long> counts = new TreeMap<String, Long>();
+		for (int i = 0; i < 10000; i++) {
+			for (int j = r.nextInt(5); j >= 0; j--) {
+				final String word = "w" + r.nextInt(100);
+				input.append(word).append(' ');
+				counts.put(word, counts.containsKey(word) ? counts.get(word) + 1
+						: 1);
+			}
+			input.append('\n');
+		}
+		final StringBuilder expected = new StringBuilder();
+		for (final String word : counts.keySet()) {
+			expected.append(word + "\t" + counts.get(word)).append('\n');
+		}
+
+		// The partial results of a warm-up sample are discarded, so those lines
+		// aren't counted twice
+		for (final String threads : new String[] { "-xt 1", "-xt 3", "-xt 8",
+				"-xt 1 -warm-up-lines 100", "-xt 3 -warm-up-lines 100",
+				"-xt 3 -warm-up -warm-up-lines 100" }) {
+			assertEquals(expected.toString(), executeTool(new WordCount(),
+					threads, input.toString()));
+		}
+		assertEquals("", executeTool(new WordCount(), "-xt 4", ""));
+
+		// Pooled instances, fewer than the number of threads
+		final PooledWordCount pooled = new PooledWordCount();
+		assertEquals(expected.toString(), executeTool(pooled,
+				"-xt 4 -pool-size 2", input.toString()));
+		assertTrue(pooled.instances.get() <= 2);
+		assertEquals(expected.toString(), executeTool(new PooledWordCount(),
+				"-xt 4 -pool-size 2 -warm-up-lines 100", input.toString()));
+	}
+
+	/**
+	 * Tests limiting worker threads by the memory consumed by thread-local
+	 * instances
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testThreadCap() throws Exception {
+		final long mb = 1024 * 1024;
+		assertEquals(8, ThreadLocalLinewiseClTool.threadsForMemory(8,
+				1000 * mb, 100 * mb, 0, 10 * mb));
+		assertEquals(6, ThreadLocalLinewiseClTool.threadsForMemory(8,
+				1000 * mb, 400 * mb, 0, 100 * mb));
+		assertEquals(3, ThreadLocalLinewiseClTool.threadsForMemory(8,
+				1000 * mb, 400 * mb, 300 * mb, 100 * mb));
+		assertEquals(1, ThreadLocalLinewiseClTool.threadsForMemory(8,
+				1000 * mb, 900 * mb, 0, 500 * mb));
+		assertEquals(8, ThreadLocalLinewiseClTool.threadsForMemory(8,
+				1000 * mb, 400 * mb, 0, 0));
+
+		// Each instance consumes 1/4 of the heap, so 3 will fit (with some
+		// margin for imprecise measurement of the instance)
+		final LargeLocal tool = new LargeLocal();
+		final String output = executeTool(tool, "-xt 64", "a\nb\n");
+		assertTrue(output, output.startsWith("Limiting worker threads to ")
+				&& output.endsWith("\na\nb\n"));
+		assertTrue("Threads: " + tool.maxThreads, tool.maxThreads > 1
+				&& tool.maxThreads < 5);
+
+		// The heap reserved for in-memory buffers (-sort is in-heap, and
+		// -distinct off-heap)
+		final long memory = Runtime.getRuntime().maxMemory() / 2;
+		final Filter sorted = new Filter();
+		assertEquals("line 0 0\n", executeTool(sorted, "-sort -distinct input",
+				"line 0 0\n"));
+		assertEquals(memory * 2 / 3, sorted.bufferHeap(), 1);
+		final Filter sortBuffer = new Filter();
+		assertEquals("line 0 0\n", executeTool(sortBuffer,
+				"-sort -sort-buffer 1m", "line 0 0\n"));
+		assertEquals(1024 * 1024, sortBuffer.bufferHeap());
+
+		final LargeLocal uncapped = new LargeLocal();
+		assertEquals("a\n", executeTool(uncapped, "-xt 64 -no-thread-cap",
+				"a\n"));
+		assertEquals(64, uncapped.maxThreads);
+	}
+
+	private static class LargeLocal extends ThreadLocalLinewiseClTool<byte[]> {
+		@Override
+		public byte[] createLocal() {
+			return new byte[(int) Math.min(
+					Runtime.getRuntime().maxMemory() / 4, Integer.MAX_VALUE - 8)];
+		}
+
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() {
+					getLocal();
+					return line;
+				}
+			});
+		}
+	}
+
+	private static class PooledWordCount extends WordCount {
+		private final AtomicInteger instances = new AtomicInteger();
+
+		@Override
+		public WordCount.Histogram createLocal() {
+			instances.incrementAndGet();
+			return super.createLocal();
+		}
+
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() throws InterruptedException {
+					final WordCount.Histogram histogram = checkOut();
+					try {
+						for (final String word : line.split(" ")) {
+							if (word.length() > 0) {
+								histogram.add(word);
+							}
+						}
+					} finally {
+						checkIn(histogram);
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+	static class WordCount extends
+			ThreadLocalLinewiseClTool<WordCount.Histogram> {
+
+		@Override
+		public Histogram createLocal() {
+			return new Histogram();
+		}
+
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() {
+					final Histogram histogram = getLocal();
+					for (final FieldCursor fields = fields(line, ' '); fields
+							.next();) {
+						if (fields.length() > 0) {
+							histogram.add(fields.string());
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		@Override
+		protected void cleanup() {
+			final TreeMap<String, Long> counts = mergedLocal().counts;
+			for (final String word : counts.keySet()) {
+				System.out.println(word + "\t" + counts.get(word));
+			}
+		}
+
+		static class Histogram implements Mergeable<Histogram> {
+			private final TreeMap<String, Long> counts = new TreeMap<String, Long>();
+
+			public void add(final String word) {
+				counts.put(word, counts.containsKey(word) ? counts.get(word) + 1
+						: 1);
+			}
+
+			@Override
+			public void merge(final Histogram other) {
+				for (final String word : other.counts.keySet()) {
+					final long count = other.counts.get(word);
+					counts.put(word, counts.containsKey(word) ? counts.get(word)
+							+ count : count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests a model shared (rather than copied) by all threads
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSharedModel() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			input.append("a b c " + i % 10).append('\n');
+			expected.append("1 2 3 " + i % 10).append('\n');
+		}
+
+		for (final String threads : new String[] { "-xt 1", "-xt 4" }) {
+			final Translator translator = new Translator();
+			assertEquals(expected.toString(), executeTool(translator, threads,
+					input.toString()));
+			assertEquals(1, translator.modelsLoaded);
+		}
+	}
+
+	@Test
+	public void testSideInput() throws Exception {
+		final StringBuilder tsv = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			tsv.append("user" + i).append('\t').append("name " + i).append('\n');
+		}
+		final StringBuilder input = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			input.append("user" + i % 2000).append('\n');
+			expected.append("user" + i % 2000).append('\t')
+					.append(i % 2000 < 1000 ? "name " + i % 2000 : "-")
+					.append('\n');
+		}
+
+		final File f = File.createTempFile("users", ".side");
+		try {
+			executeTool(new BuildSideInput(), "-f " + f + " -bloom-fpr .01",
+					tsv.toString());
+			for (final String threads : new String[] { "-xt 1", "-xt 4" }) {
+				assertEquals(expected.toString(), executeTool(new Enricher(),
+						threads + " -side-input " + f, input.toString()));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	/**
+	 * Appends the value of each line's key in the side input (or '-')
+	 */
+	private static class Enricher extends LinewiseCommandlineTool {
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() {
+					final String value = sideInput().get(line);
+					return line + '\t' + (value != null ? value : "-");
+				}
+			});
+		}
+	}
+
+	private static class Translator extends
+			SharedModelLinewiseClTool<Map<String, String>, StringBuilder> {
+
+		private int modelsLoaded;
+
+		@Override
+		protected Map<String, String> loadModel() {
+			modelsLoaded++;
+			final Map<String, String> dictionary = new HashMap<String, String>();
+			dictionary.put("a", "1");
+			dictionary.put("b", "2");
+			dictionary.put("c", "3");
+			return Collections.unmodifiableMap(dictionary);
+		}
+
+		@Override
+		protected StringBuilder createLocal(
+				final Map<String, String> sharedModel) {
+			assertTrue(sharedModel == model());
+			return new StringBuilder();
+		}
+
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() {
+					final StringBuilder sb = getLocal();
+					sb.setLength(0);
+					for (final String word : line.split(" ")) {
+						final String translation = model().get(word);
+						sb.append(translation != null ? translation : word)
+								.append(' ');
+					}
+					return sb.substring(0, sb.length() - 1);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tests tasks which emit multiple output records, including tasks which
+	 * fill their output buffer and must wait for preceding tasks
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testEmittingTask() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			input.append(i + "\n");
+			for (int j = 0; j < i % 50; j++) {
+				expected.append(i + ":" + j + "\n");
+			}
+		}
+		for (final String threads : new String[] { "-xt 1", "-xt 4",
+				"-xt 4 -warm-up-lines 100" }) {
+			assertEquals(expected.toString(), executeTool(new Expander(),
+					threads, input.toString()));
+		}
+	}
+
+	/**
+	 * Tests that a failed task doesn't leave later tasks blocked waiting to
+	 * emit more output than they can buffer
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailedEmittingTask() throws Exception {
+		final StringBuilder input = new StringBuilder("fail\n");
+		for (int i = 0; i < 20; i++) {
+			input.append(i + "\n");
+		}
+		final FailingExpander tool = new FailingExpander();
+		assertTrue(executeTool(tool, "-xt 4", input.toString()).contains(
+				"Failed"));
+
+		// Every task completes (or is cancelled) once the tool exits
+		for (int i = 0; i < 100 && tool.running.get() > 0; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(0, tool.running.get());
+	}
+
+	/**
+	 * Tests eager creation of thread-locals, and processing a warm-up sample
+	 * of input (whose output is discarded)
+	 * 
+	 * @throws Exception
 	 */
+	@Test
+	public void testWarmUp() throws Exception {
+		final StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			input.append("line " + i + " x\tkey" + (i % 10)).append('\n');
+		}
+		final String expected = executeTool(new Filter(), "-xt 1", input
+				.toString());
+		for (final String args : new String[] { "-xt 1 -warm-up-lines 10",
+				"-xt 4 -warm-up-lines 100", "-xt 4 -warm-up-lines 5000",
+				"-xt 4 -warm-up-lines 100 -distinct input" }) {
+			assertEquals(expected, executeTool(new Filter(), args, input
+					.toString()));
+		}
+
+		// All thread-locals are created before any line is processed
+		final WarmUpCounter counter = new WarmUpCounter();
+		assertEquals("", executeTool(counter, "-xt 4 -warm-up", input
+				.toString()));
+		assertEquals(4, counter.instances.get());
+		assertEquals(4, counter.beforeInput.get());
+		assertEquals(1000, counter.lines.get());
+	}
+
+	private static class WarmUpCounter extends
+			ThreadLocalLinewiseClTool<Object> {
+		private final AtomicInteger instances = new AtomicInteger();
+		private final AtomicInteger beforeInput = new AtomicInteger();
+		private final AtomicInteger lines = new AtomicInteger();
+
+		@Override
+		public Object createLocal() {
+			instances.incrementAndGet();
+			if (lines.get() == 0) {
+				beforeInput.incrementAndGet();
+			}
+			return new Object();
+		}
+
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() {
+					lines.incrementAndGet();
+					getLocal();
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Emits <code>n % 50</code> records for input <code>n</code>, buffering no
+	 * more than a few records at a time
+	 */
+	private static class Expander extends LinewiseCommandlineTool {
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new EmittingTask(16) {
+				@Override
+				protected void run(final Emitter emitter) throws Exception {
+					final int n = Integer.parseInt(line);
+					for (int j = 0; j < n % 50; j++) {
+						emitter.emit(line + ":" + j);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Fails on the input 'fail', and emits 1 MB of output for any other input
+	 */
+	private static class FailingExpander extends LinewiseCommandlineTool {
+		private final AtomicInteger running = new AtomicInteger();
+
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new EmittingTask() {
+				@Override
+				protected void run(final Emitter emitter) throws Exception {
+					running.incrementAndGet();
+					try {
+						if (line.equals("fail")) {
+							throw new IllegalArgumentException("Failed");
+						}
+						final char[] padding = new char[1024];
+						Arrays.fill(padding, 'x');
+						for (int j = 0; j < 1024; j++) {
+							emitter.emit(line + ":" + j + new String(padding));
+						}
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Passes through every third line, upper-cases the next, and drops the
+	 * third
+	 */
+	private static class Filter extends LinewiseCommandlineTool {
+		@Override
+		protected FutureTask<String> lineTask(final String line) {
+			return new FutureTask<String>(new Callable<String>() {
+				public String call() {
+					final FieldCursor fields = fields(line, ' ');
+					fields.skip(2);
+					switch (fields.parseInt() % 3) {
+					case 0:
+						return line;
+					case 1:
+						return line.toUpperCase();
+					default:
+						return null;
+					}
+				}
+			});
+		}
+	}
+
 	private static class LinewiseCat extends LinewiseCommandlineTool {
 		@Override
 		protected FutureTask<String> lineTask(final String line) {
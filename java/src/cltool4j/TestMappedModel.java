@@ -0,0 +1,94 @@
+package cltool4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MappedModel}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestMappedModel {
+
+    @Test
+    public void testReadWrite() throws Exception {
+        final File f = File.createTempFile("model", ".bin");
+        f.deleteOnExit();
+
+        final MappedModel.Writer writer = new MappedModel.Writer(f);
+        DataOutputStream os = writer.beginSection("ints");
+        for (int i = 0; i < 10000; i++) {
+            os.writeInt(i * 31);
+        }
+        os = writer.beginSection("mixed");
+        os.writeByte(7);
+        os.writeLong(Long.MIN_VALUE + 3);
+        os.writeFloat(1.5f);
+        os.writeDouble(Math.PI);
+        os.writeShort(-2);
+        final byte[] bytes = new byte[5000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        os.write(bytes);
+        writer.beginSection("empty");
+        writer.close();
+
+        // Map with the default segment size, and with tiny (1 KB) segments, so values straddle segments
+        for (final MappedModel model : new MappedModel[] { MappedModel.open(f), MappedModel.open(f, 10) }) {
+            assertEquals(Arrays.asList("ints", "mixed", "empty"), Arrays.asList(model.sections().toArray()));
+
+            final MappedModel.Section ints = model.section("ints");
+            assertEquals(40000, ints.length());
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(i * 31, ints.getInt(i * 4));
+            }
+
+            final MappedModel.Section mixed = model.section("mixed");
+            assertEquals(7, mixed.getByte(0));
+            assertEquals(Long.MIN_VALUE + 3, mixed.getLong(1));
+            assertEquals(1.5f, mixed.getFloat(9), 0);
+            assertEquals(Math.PI, mixed.getDouble(13), 0);
+            assertEquals(-2, mixed.getShort(21));
+            final byte[] read = new byte[bytes.length];
+            mixed.get(23, read, 0, read.length);
+            assertArrayEquals(bytes, read);
+
+            assertEquals(0, model.section("empty").length());
+
+            try {
+                ints.getInt(39998);
+                fail("Expected IndexOutOfBoundsException");
+            } catch (final IndexOutOfBoundsException expected) {
+            }
+            try {
+                model.section("missing");
+                fail("Expected IllegalArgumentException");
+            } catch (final IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidFile() throws Exception {
+        final File f = File.createTempFile("model", ".txt");
+        f.deleteOnExit();
+        final FileWriter w = new FileWriter(f);
+        w.write("This is not a model file\n");
+        w.close();
+        try {
+            MappedModel.open(f);
+            fail("Expected IOException");
+        } catch (final IOException expected) {
+        }
+    }
+}
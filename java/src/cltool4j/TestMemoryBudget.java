@@ -0,0 +1,50 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MemoryBudget}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestMemoryBudget {
+
+    @Test
+    public void testShares() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(900);
+        budget.register(MemoryBudget.SORT, 2);
+        budget.register(MemoryBudget.DISTINCT, 1);
+        assertEquals(600, budget.share(MemoryBudget.SORT));
+        assertEquals(300, budget.share(MemoryBudget.DISTINCT));
+        assertEquals(900, budget.sharesExcept());
+        assertEquals(600, budget.sharesExcept(MemoryBudget.DISTINCT, MemoryBudget.AGGREGATION));
+        assertEquals(0, budget.sharesExcept(MemoryBudget.SORT, MemoryBudget.DISTINCT));
+
+        // Registration after allocation would invalidate the shares already allocated
+        try {
+            budget.register(MemoryBudget.AGGREGATION, 1);
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException expected) {
+        }
+        try {
+            budget.share(MemoryBudget.AGGREGATION);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testUsage() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1L << 30);
+        budget.register(MemoryBudget.SORT, 1);
+        budget.reportUsage(MemoryBudget.SORT, 3L << 20);
+        budget.reportUsage(MemoryBudget.SORT, 2L << 20);
+        budget.reportUsage(MemoryBudget.DISTINCT, 5L << 20);
+        assertEquals(3L << 20, budget.used(MemoryBudget.SORT));
+        assertEquals(0, budget.used(MemoryBudget.AGGREGATION));
+        assertEquals("Memory budget 1024 MB; sort: share 1024 MB, used 3 MB; distinct: used 5 MB", budget.toString());
+    }
+}
@@ -0,0 +1,168 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ResourcePool}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestResourcePool {
+
+    @Test
+    public void testCheckOut() throws Exception {
+        final ResourcePool<Resource> pool = new ResourcePool<Resource>(new Factory(), 2, 0);
+        final Resource r1 = pool.checkOut();
+        final Resource r2 = pool.checkOut();
+        assertEquals(2, pool.size());
+
+        // Most-recently-used first
+        pool.checkIn(r1);
+        pool.checkIn(r2);
+        assertSame(r2, pool.checkOut());
+        assertSame(r1, pool.checkOut());
+        assertEquals(2, pool.created());
+        assertEquals(0, pool.waits());
+
+        // The pool is full; a third checkout must wait until a resource is checked in
+        final Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException ignore) {
+                }
+                pool.checkIn(r1);
+            }
+        };
+        t.start();
+        assertSame(r1, pool.checkOut());
+        t.join();
+        assertEquals(1, pool.waits());
+        assertTrue(pool.maxWaitNanos() > 0);
+        assertEquals(2, pool.created());
+        assertEquals(5, pool.checkouts());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final ResourcePool<Resource> pool = new ResourcePool<Resource>(new Factory(), 4, 20);
+        final Resource r1 = pool.checkOut();
+        final Resource r2 = pool.checkOut();
+        pool.checkIn(r1);
+        Thread.sleep(50);
+
+        // r1 has been idle past the timeout; r2 has not been idle at all
+        pool.checkIn(r2);
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.evicted());
+        assertTrue(r1.closed);
+        assertSame(r2, pool.checkOut());
+
+        pool.checkIn(r2);
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertTrue(r2.closed);
+    }
+
+    /**
+     * Mergeable resources hold partial results, so they are never evicted (nor replaced)
+     */
+    @Test
+    public void testMergeableNotEvicted() throws Exception {
+        final ResourcePool<MergeableResource> pool = new ResourcePool<MergeableResource>(
+                new ResourcePool.Factory<MergeableResource>() {
+                    @Override
+                    public MergeableResource create() {
+                        return new MergeableResource();
+                    }
+                }, 4, 20);
+        final MergeableResource r = pool.checkOut();
+        pool.checkIn(r);
+        Thread.sleep(50);
+
+        assertSame(r, pool.checkOut());
+        pool.checkIn(r);
+        pool.clear();
+        assertEquals(1, pool.size());
+        assertEquals(0, pool.evicted());
+        assertEquals(1, pool.created());
+        assertFalse(((Resource) r).closed);
+    }
+
+    /**
+     * Many threads contending for a small pool
+     */
+    @Test
+    public void testConcurrentCheckOut() throws Exception {
+        final ResourcePool<Resource> pool = new ResourcePool<Resource>(new Factory(), 3, 0);
+        final AtomicInteger inUse = new AtomicInteger();
+        final AtomicInteger maxInUse = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 1000; j++) {
+                            final Resource r = pool.checkOut();
+                            try {
+                                assertTrue(r.inUse.compareAndSet(false, true));
+                                final int n = inUse.incrementAndGet();
+                                synchronized (maxInUse) {
+                                    maxInUse.set(Math.max(maxInUse.get(), n));
+                                }
+                                Thread.yield();
+                                inUse.decrementAndGet();
+                                r.inUse.set(false);
+                            } finally {
+                                pool.checkIn(r);
+                            }
+                        }
+                    } catch (final InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        assertTrue(maxInUse.get() <= 3);
+        assertTrue(pool.created() <= 3);
+        assertEquals(8000, pool.checkouts());
+    }
+
+    private static class Resource implements Closeable {
+        private final AtomicBoolean inUse = new AtomicBoolean();
+        private boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class MergeableResource extends Resource implements Mergeable<MergeableResource> {
+        @Override
+        public void merge(final MergeableResource other) {
+        }
+    }
+
+    private static class Factory implements ResourcePool.Factory<Resource> {
+        @Override
+        public Resource create() {
+            return new Resource();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SideInput}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestSideInput {
+
+    @Test
+    public void testLookup() throws Exception {
+        final File f = File.createTempFile("side-input", ".model");
+        try {
+            for (final double fpr : new double[] { 0, .01 }) {
+                final SideInput.Builder builder = new SideInput.Builder(f, fpr);
+                for (int i = 0; i < 20000; i++) {
+                    builder.add("key " + i, "value " + i);
+                }
+                builder.addAll(new ByteArrayInputStream("key 0\tduplicate\nno-value\ntabs\ta\tb\n".getBytes()));
+                builder.close();
+
+                final SideInput sideInput = SideInput.open(f);
+                assertEquals(20003, sideInput.size());
+                for (int i = 0; i < 20000; i++) {
+                    assertEquals("value " + i, sideInput.get("key " + i));
+                }
+                // The first value of a duplicate key wins
+                assertEquals("value 0", sideInput.get("key 0"));
+                assertEquals("", sideInput.get("no-value"));
+                assertEquals("a\tb", sideInput.get("tabs"));
+
+                for (int i = 20000; i < 40000; i++) {
+                    assertNull(sideInput.get("key " + i));
+                }
+                assertFalse(sideInput.containsKey(""));
+
+                // Lookup from a byte view
+                final byte[] line = "x\tkey 42\ty".getBytes();
+                final long record = sideInput.find(line, 2, 6);
+                assertTrue(record >= 0);
+                final byte[] value = new byte[sideInput.valueLength(record)];
+                sideInput.value(record, value, 0);
+                assertEquals("value 42", new String(value));
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentLookup() throws Exception {
+        final File f = File.createTempFile("side-input", ".model");
+        try {
+            final SideInput.Builder builder = new SideInput.Builder(f, 0);
+            for (int i = 0; i < 10000; i++) {
+                builder.add("key " + i, Integer.toString(i * 2));
+            }
+            builder.close();
+
+            final SideInput sideInput = SideInput.open(f);
+            final AtomicInteger failures = new AtomicInteger();
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 10000; i++) {
+                            if (!Integer.toString(i * 2).equals(sideInput.get("key " + i))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (final Thread t : threads) {
+                t.join();
+            }
+            assertEquals(0, failures.get());
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * A side input stored alongside other sections of a model file
+     */
+    @Test
+    public void testModelSections() throws Exception {
+        final File f = File.createTempFile("side-input", ".model");
+        try {
+            final MappedModel.Writer writer = new MappedModel.Writer(f);
+            writer.beginSection("weights").writeDouble(1.5);
+            final SideInput.Builder builder = new SideInput.Builder(writer, "dictionary", .001);
+            builder.add("a", "b");
+            builder.close();
+            final SideInput.Builder empty = new SideInput.Builder(writer, "empty", 0);
+            empty.close();
+            writer.close();
+
+            final MappedModel model = MappedModel.open(f);
+            assertEquals(1.5, model.section("weights").getDouble(0), 0);
+            assertEquals("b", SideInput.open(model, "dictionary").get("a"));
+            assertNull(SideInput.open(model, "dictionary").get("b"));
+            assertEquals(0, SideInput.open(model, "empty").size());
+            assertNull(SideInput.open(model, "empty").get("a"));
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HyperLogLog}, {@link CountMinSketch}, and {@link QuantileSketch}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestSketches {
+
+    @Test
+    public void testHyperLogLog() throws Exception {
+        final HyperLogLog all = new HyperLogLog(), h1 = new HyperLogLog(), h2 = new HyperLogLog();
+        for (int i = 0; i < 200000; i++) {
+            all.add("user " + i);
+            (i % 2 == 0 ? h1 : h2).add("user " + i);
+            // Duplicates don't affect the estimate
+            h2.add("user " + (i / 2));
+        }
+        assertEquals(200000, all.estimate(), 200000 * all.standardError() * 3);
+
+        // The merged sketch is identical to the sketch of the union
+        h1.merge(h2);
+        assertEquals(all.estimate(), h1.estimate());
+        assertEquals(all.estimate(), roundTrip(h1).estimate());
+
+        // Small cardinalities are nearly exact
+        final HyperLogLog small = new HyperLogLog();
+        for (long i = 0; i < 100; i++) {
+            small.add(i);
+        }
+        assertEquals(100, small.estimate(), 2);
+        assertEquals(0, new HyperLogLog(4).estimate());
+    }
+
+    @Test
+    public void testCountMinSketch() throws Exception {
+        // Item i occurs ~1/i times as often as item 1
+        final Random random = new Random(42);
+        final CountMinSketch all = new CountMinSketch(.001, .01, 10);
+        final CountMinSketch s1 = new CountMinSketch(.001, .01, 10), s2 = new CountMinSketch(.001, .01, 10);
+        final int[] counts = new int[10000];
+        for (int n = 0; n < 200000; n++) {
+            final int item = (int) Math.floor(Math.exp(random.nextDouble() * Math.log(counts.length)));
+            counts[item]++;
+            all.add("query " + item);
+            final byte[] bytes = ("query " + item).getBytes("UTF-8");
+            (n % 2 == 0 ? s1 : s2).add(bytes, 0, bytes.length, 1);
+        }
+        s1.merge(s2);
+
+        for (final CountMinSketch sketch : new CountMinSketch[] { all, s1, roundTrip(s1) }) {
+            assertEquals(200000, sketch.total());
+            for (int item = 1; item < counts.length; item += 97) {
+                final long estimate = sketch.estimate("query " + item);
+                assertTrue(estimate >= counts[item]);
+                assertTrue(estimate <= counts[item] + .001 * 200000 * 5);
+            }
+            final List<CountMinSketch.Item> top = sketch.topK();
+            assertEquals(10, top.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("query " + (i + 1), top.get(i).item());
+            }
+        }
+    }
+
+    @Test
+    public void testQuantileSketch() throws Exception {
+        final QuantileSketch all = new QuantileSketch(.01), q1 = new QuantileSketch(.01), q2 = new QuantileSketch(
+                .01);
+        for (int i = 1; i <= 100000; i++) {
+            all.add(i);
+            (i % 3 == 0 ? q1 : q2).add(i);
+        }
+        q1.merge(q2);
+
+        for (final QuantileSketch sketch : new QuantileSketch[] { all, q1, roundTrip(q1) }) {
+            assertEquals(100000, sketch.count());
+            assertEquals(1, sketch.quantile(0), 0);
+            assertEquals(100000, sketch.quantile(1), 0);
+            for (final double q : new double[] { .01, .25, .5, .9, .99, .999 }) {
+                final double expected = 1 + q * 99999;
+                assertEquals(expected, sketch.quantile(q), expected * .01);
+            }
+        }
+
+        // Negative values and zeros
+        final QuantileSketch mixed = new QuantileSketch(.01);
+        for (int i = -1000; i <= 1000; i++) {
+            mixed.add(i);
+        }
+        assertEquals(-1000, mixed.quantile(0), 0);
+        assertEquals(-500, mixed.quantile(.25), 5);
+        assertEquals(0, mixed.quantile(.5), 0);
+        assertEquals(900, mixed.quantile(.95), 9);
+        assertTrue(Double.isNaN(new QuantileSketch().quantile(.5)));
+    }
+
+    private static HyperLogLog roundTrip(final HyperLogLog sketch) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bos));
+        return HyperLogLog.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    private static CountMinSketch roundTrip(final CountMinSketch sketch) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bos));
+        return CountMinSketch.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    private static QuantileSketch roundTrip(final QuantileSketch sketch) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bos));
+        return QuantileSketch.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    }
+}
@@ -0,0 +1,119 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SymbolTable}
+ *
+ * @author Aaron Dunlop
+ */
+public class TestSymbolTable {
+
+    @Test
+    public void testIntern() throws Exception {
+        // Small chunks, so symbols are spread across many
+        final SymbolTable table = new SymbolTable(8);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, table.intern("symbol " + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, table.intern("symbol " + i));
+            assertEquals(i, table.id("symbol " + i));
+            assertEquals("symbol " + i, table.symbol(i));
+        }
+        assertEquals(-1, table.id("symbol 10000"));
+        assertEquals(10000, table.size());
+
+        // Lookup from a byte view, and non-ASCII symbols
+        final byte[] line = "a\tsymbol 42\tb".getBytes("UTF-8");
+        assertEquals(42, table.id(line, 2, 9));
+        assertEquals(10000, table.intern("s\u00fcmbol"));
+        assertEquals("s\u00fcmbol", table.symbol(10000));
+        assertEquals(7, table.length(10000));
+        assertEquals(10001, table.intern(""));
+        assertEquals("", table.symbol(10001));
+    }
+
+    /**
+     * Interns the same symbols from several threads; each must receive the same (dense) IDs
+     */
+    @Test
+    public void testConcurrentIntern() throws Exception {
+        final SymbolTable table = new SymbolTable(12);
+        final int[][] ids = new int[4][20000];
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread[] threads = new Thread[ids.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int[] threadIds = ids[t];
+            final int offset = t * 5000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < threadIds.length; i++) {
+                            final int symbol = (i + offset) % threadIds.length;
+                            threadIds[symbol] = table.intern("symbol " + symbol);
+                        }
+                    } catch (final RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(20000, table.size());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals("symbol " + i, table.symbol(ids[0][i]));
+            for (int t = 1; t < ids.length; t++) {
+                assertEquals(ids[0][i], ids[t][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndOpen() throws Exception {
+        final File f = File.createTempFile("symbols", ".model");
+        final File f2 = File.createTempFile("symbols", ".model");
+        try {
+            final SymbolTable table = new SymbolTable();
+            for (int i = 0; i < 5000; i++) {
+                table.intern("symbol " + i);
+            }
+            table.save(f);
+
+            // Saved symbols are mapped; new symbols follow them
+            final SymbolTable opened = SymbolTable.open(f);
+            assertEquals(5000, opened.size());
+            assertEquals(0, opened.bytes());
+            for (int i = 0; i < 5000; i++) {
+                assertEquals(i, opened.id("symbol " + i));
+                assertEquals("symbol " + i, opened.symbol(i));
+            }
+            assertEquals(-1, opened.id("symbol 5000"));
+            assertEquals(5000, opened.intern("symbol 5000"));
+            assertEquals(17, opened.intern("symbol 17"));
+            assertTrue(opened.bytes() > 0);
+
+            // Save again, including both mapped and new symbols
+            opened.save(f2);
+            final SymbolTable reopened = SymbolTable.open(f2);
+            assertEquals(5001, reopened.size());
+            for (int i = 0; i <= 5000; i++) {
+                assertEquals(i, reopened.id("symbol " + i));
+            }
+        } finally {
+            f.delete();
+            f2.delete();
+        }
+    }
+}
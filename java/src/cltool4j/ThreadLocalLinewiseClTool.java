@@ -1,10 +1,66 @@
 package cltool4j;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
+import cltool4j.args4j.Option;
+
+/**
+ * A {@link LinewiseCommandlineTool} which maintains a data structure per worker thread (see
+ * {@link #createLocal()}).
+ *
+ * Thread-local instances may also accumulate partial results (totals, histograms, etc.), in the style of a
+ * map/reduce 'combiner', without synchronizing with other threads. If the thread-local class implements
+ * {@link Mergeable}, the instances are merged when all input has been processed (pairwise, in a parallel
+ * tree), and the combined result is available to {@link #cleanup()} from {@link #mergedLocal()}.
+ *
+ * Alternatively, tasks may check instances out of a bounded pool (see {@link #checkOut()}), rather than
+ * holding one per thread. The pool size is independent of the number of threads, and idle instances may be
+ * evicted (see <code>-pool-size</code> and <code>-pool-idle</code>).
+ *
+ * Unless the pool size is specified, the number of worker threads is limited to the number of thread-local
+ * instances which will fit in the heap, as measured by creating the first instance before processing input
+ * (see <code>-no-thread-cap</code>).
+ */
 public abstract class ThreadLocalLinewiseClTool<T> extends LinewiseCommandlineTool
 {
+    @Option(name = "-pool-size", metaVar = "count", usage = "Maximum pooled thread-local instances (0 = one per thread)")
+    protected int poolSize = 0;
+
+    @Option(name = "-pool-idle", metaVar = "seconds", usage = "Evict pooled thread-local instances idle for this long (0 = never)")
+    protected int poolIdleSeconds = 0;
+
+    @Option(name = "-warm-up", usage = "Create thread-local instances on all worker threads (concurrently) before processing input")
+    protected boolean warmUp = false;
+
+    @Option(name = "-no-thread-cap", usage = "Don't limit threads by the measured memory cost of thread-local instances")
+    protected boolean noThreadCap = false;
+
+    /**
+     * Heap reserved for purposes other than thread-local instances (input and output buffers, task
+     * allocation, etc.), as a fraction of the maximum heap size
+     */
+    private final static double HEAP_RESERVE = 0.1;
+
     ThreadLocal<T> threadLocal = new ThreadLocal<T>();
 
+    private ResourcePool<T> pool;
+
+    /** All thread-local instances created (if they are {@link Mergeable}) */
+    private final List<T> locals = Collections.synchronizedList(new ArrayList<T>());
+
+    private volatile boolean created;
+
+    /** An instance created before input (see {@link #limitThreads()}), claimed by the first caller */
+    private final AtomicReference<T> spare = new AtomicReference<T>();
+    private T merged;
+
     /**
      * Creates an instance of a thread-local data structure (generally a structure that is
      * expensive to create and initialize). This method will be called by the first task invoked
@@ -23,9 +79,287 @@ public abstract class ThreadLocalLinewiseClTool<T> extends LinewiseCommandlineTo
         T local = threadLocal.get();
         if (local == null)
         {
-            local = createLocal();
+            local = newLocal();
             threadLocal.set(local);
         }
         return local;
     }
+
+    /**
+     * Returns the spare instance, if it has not been claimed, or creates a new instance
+     */
+    private T newLocal()
+    {
+        final T local = spare.getAndSet(null);
+        if (local != null)
+        {
+            return local;
+        }
+        final T newLocal = createLocal();
+        track(newLocal);
+        return newLocal;
+    }
+
+    /**
+     * Checks an instance out of a pool of thread-local data structures (creating one if none is available and
+     * the pool is not full, or waiting for one to be checked in). An alternative to {@link #getLocal()} which
+     * bounds the number of instances independently of the number of threads. The caller must return the
+     * instance with {@link #checkIn(Object)}, generally in a <code>finally</code> block.
+     *
+     * Instances which implement {@link Mergeable} are never released by the pool, since they hold partial
+     * results which will be merged at the end of input.
+     *
+     * @return A thread-local data structure, for the exclusive use of the caller until it is checked in.
+     * @throws InterruptedException if interrupted while waiting for an instance
+     */
+    protected final T checkOut() throws InterruptedException
+    {
+        return pool.checkOut();
+    }
+
+    /**
+     * Returns an instance obtained from {@link #checkOut()} to the pool.
+     *
+     * @param local
+     */
+    protected final void checkIn(final T local)
+    {
+        pool.checkIn(local);
+    }
+
+    private void track(final T local)
+    {
+        created = true;
+        if (local instanceof Mergeable<?>)
+        {
+            locals.add(local);
+        }
+    }
+
+    /**
+     * Returns the merged result of all thread-local instances (see {@link Mergeable}). Available once all
+     * input has been processed (e.g., in {@link #cleanup()}). If no thread-local instances were created
+     * (because the input was empty), returns a new instance.
+     *
+     * @return Merged thread-local data structure
+     * @throws UnsupportedOperationException if the thread-local class does not implement {@link Mergeable}
+     */
+    protected final T mergedLocal()
+    {
+        if (merged == null && !created)
+        {
+            final T local = createLocal();
+            if (local instanceof Mergeable<?>)
+            {
+                merged = local;
+            }
+        }
+        if (merged == null)
+        {
+            throw new UnsupportedOperationException("Thread-local instances are not Mergeable");
+        }
+        return merged;
+    }
+
+    @Override
+    void beginInput() throws Exception
+    {
+        // If the pool size is specified, it bounds the number of instances, regardless of the number of threads
+        if (maxThreads > 1 && poolSize == 0 && !noThreadCap)
+        {
+            limitThreads();
+        }
+
+        pool = newPool();
+    }
+
+    private ResourcePool<T> newPool()
+    {
+        return new ResourcePool<T>(new ResourcePool.Factory<T>()
+        {
+            @Override
+            public T create()
+            {
+                return newLocal();
+            }
+        }, poolSize > 0 ? poolSize : maxThreads, poolIdleSeconds * 1000L);
+    }
+
+    /**
+     * Optionally creates thread-local instances eagerly, so the first lines processed by each thread don't
+     * pay the cost of initialization (see <code>-warm-up</code>)
+     */
+    @Override
+    void beforeDispatch(final OrderedTaskExecutor executor) throws Exception
+    {
+        if (warmUp)
+        {
+            createLocals(executor);
+        }
+    }
+
+    /**
+     * Discards the partial results accumulated from the warm-up sample (which is processed again as input), by
+     * replacing any {@link Mergeable} thread-local instances with new ones
+     */
+    @Override
+    void afterWarmUp(final OrderedTaskExecutor executor) throws Exception
+    {
+        if (locals.isEmpty())
+        {
+            return;
+        }
+        locals.clear();
+        threadLocal = new ThreadLocal<T>();
+        pool = newPool();
+        if (warmUp)
+        {
+            createLocals(executor);
+        }
+    }
+
+    /**
+     * Creates a thread-local instance on each worker thread (see <code>-warm-up</code>)
+     */
+    private void createLocals(final OrderedTaskExecutor executor) throws Exception
+    {
+        final long start = System.currentTimeMillis();
+        executor.runOnEachThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                getLocal();
+            }
+        });
+        globalLogger.fine("Created thread-local instances on " + maxThreads + " threads in "
+            + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Measures the heap consumed by a thread-local instance (creating the first instance before any input is
+     * processed), and reduces the number of worker threads if an instance per thread would not fit in the
+     * remaining heap. Better to run with fewer threads than to run out of memory hours into a job.
+     */
+    private void limitThreads()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        final long before = usedHeap();
+        spare.set(newLocal());
+        final long after = usedHeap();
+
+        // Sorting and aggregation buffers will grow into their shares of the heap as input is processed
+        final long reserved = bufferHeap();
+        final int threads = threadsForMemory(maxThreads, runtime.maxMemory(), after, reserved, after - before);
+        if (threads < maxThreads)
+        {
+            globalLogger.info(String.format("Limiting worker threads to %d (of %d): each thread-local instance "
+                + "requires ~%d MB, and the heap has ~%d MB available", threads, maxThreads,
+                (after - before) >> 20, (runtime.maxMemory() - after - reserved) >> 20));
+            maxThreads = threads;
+        }
+    }
+
+    /**
+     * A single {@link System#gc()} may leave some garbage uncollected (which, if collected between two
+     * measurements, would make an instance appear smaller than it is), so we collect until the heap in use
+     * stops shrinking.
+     *
+     * @return Heap in use after garbage collection (bytes)
+     */
+    private static long usedHeap()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            final long u = runtime.totalMemory() - runtime.freeMemory();
+            if (u >= used)
+            {
+                return u;
+            }
+            used = u;
+        }
+        return used;
+    }
+
+    /**
+     * @param maxThreads Requested number of threads
+     * @param maxMemory Maximum heap size
+     * @param used Heap in use (including one thread-local instance)
+     * @param reserved Heap reserved for in-memory buffers (see {@link #bufferHeap()})
+     * @param instanceBytes Heap consumed by a single thread-local instance
+     * @return The number of threads whose thread-local instances will fit in the heap (at least 1)
+     */
+    static int threadsForMemory(final int maxThreads, final long maxMemory, final long used,
+        final long reserved, final long instanceBytes)
+    {
+        if (instanceBytes <= 0)
+        {
+            // Too small to measure (or explicit garbage collection is disabled)
+            return maxThreads;
+        }
+        final long available = maxMemory - used - reserved - (long) (maxMemory * HEAP_RESERVE);
+        return (int) Math.max(1, Math.min(maxThreads, 1 + available / instanceBytes));
+    }
+
+    /**
+     * Merges thread-local instances, if they implement {@link Mergeable}
+     */
+    @Override
+    void endOfInput() throws Exception
+    {
+        if (pool.checkouts() > 0)
+        {
+            globalLogger.fine(pool.toString());
+        }
+        pool.clear();
+
+        final ArrayList<T> l = new ArrayList<T>(locals);
+        if (l.isEmpty())
+        {
+            return;
+        }
+
+        // Merge pairs of instances in parallel, halving the number of instances at each level of the tree
+        final ExecutorService mergers = BaseCommandlineTool.newDaemonPool(l.size() / 2,
+            "ThreadLocalLinewiseClTool");
+        try
+        {
+            for (int stride = 1; stride < l.size(); stride *= 2)
+            {
+                final ArrayList<Future<Object>> merges = new ArrayList<Future<Object>>();
+                for (int i = 0; i + stride < l.size(); i += stride * 2)
+                {
+                    final T into = l.get(i), from = l.get(i + stride);
+                    merges.add(mergers.submit(new Callable<Object>()
+                    {
+                        @SuppressWarnings("unchecked")
+                        @Override
+                        public Object call()
+                        {
+                            ((Mergeable<T>) into).merge(from);
+                            return null;
+                        }
+                    }));
+                }
+                for (final Future<Object> f : merges)
+                {
+                    f.get();
+                }
+            }
+        }
+        catch (final ExecutionException e)
+        {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        finally
+        {
+            mergers.shutdown();
+        }
+
+        merged = l.get(0);
+        locals.clear();
+    }
 }
@@ -3,7 +3,9 @@ package cltool4j;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -95,6 +97,34 @@ public abstract class ToolTestCase {
         return output.replaceAll("\r\n|\r", "\n");
     }
 
+    /**
+     * Creates a temporary directory, which will be deleted (along with its contents) on exit
+     * 
+     * @return Temporary directory
+     * @throws IOException
+     */
+    protected static File createTempDir() throws IOException {
+        final File dir = File.createTempFile("cltool", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    /**
+     * Writes the specified contents to a file, which will be deleted on exit
+     * 
+     * @param f
+     * @param contents
+     * @throws IOException
+     */
+    protected static void writeFile(final File f, final String contents) throws IOException {
+        final FileOutputStream os = new FileOutputStream(f);
+        os.write(contents.getBytes());
+        os.close();
+        f.deleteOnExit();
+    }
+
     /**
      * Returns the contents of the specified file
      * 
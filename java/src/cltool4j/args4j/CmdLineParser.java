@@ -531,12 +531,7 @@ public class CmdLineParser {
 
         registerParser(new IntParser(), Integer.class, int.class);
 
-        registerParser(new ArgumentParser<Long>() {
-            @Override
-            public Long parse(String arg) throws NumberFormatException {
-                return Long.parseLong(arg);
-            }
-        }, Long.class, long.class);
+        registerParser(new LongParser(), Long.class, long.class);
 
         registerParser(new ArgumentParser<Short>() {
             @Override
@@ -0,0 +1,20 @@
+package cltool4j.args4j;
+
+public class LongParser extends ArgumentParser<Long> {
+
+    @Override
+    public Long parse(String arg) throws NumberFormatException {
+        long multiplier = 1;
+        if (arg.endsWith("m")) {
+            multiplier = 1024 * 1024;
+            arg = arg.substring(0, arg.length() - 1);
+        } else if (arg.endsWith("k")) {
+            multiplier = 1024;
+            arg = arg.substring(0, arg.length() - 1);
+        } else if (arg.endsWith("g")) {
+            multiplier = 1024L * 1024 * 1024;
+            arg = arg.substring(0, arg.length() - 1);
+        }
+        return new Long(Long.parseLong(arg) * multiplier);
+    }
+}
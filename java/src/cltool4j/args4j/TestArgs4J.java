@@ -66,6 +66,8 @@ public class TestArgs4J {
 
         // long
         assertEquals(42, parseArgs(new NativeTypeOptions(), "-long", "42")._long);
+        assertEquals(3L * 1024 * 1024 * 1024, parseArgs(new NativeTypeOptions(), "-long", "3g")._long);
+        assertEquals(64 * 1024, parseArgs(new NativeTypeOptions(), "-long", "64k")._long);
 
         // short
         assertEquals(42, parseArgs(new NativeTypeOptions(), "-short", "42")._short);